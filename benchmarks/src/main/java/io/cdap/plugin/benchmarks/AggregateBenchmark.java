@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.DefaultProfiler;
+import io.cdap.plugin.PartialProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simulates the aggregation of a partition of generated records, either keyed by field name
+ * the way <code>DataProfiler.aggregate</code> sees them, or in a single pass over the records
+ * the way the reducible profiler does. An operation is a record.
+ */
+@State(Scope.Thread)
+public class AggregateBenchmark {
+  private static final int ROWS = 10000;
+
+  @Param({"UNIFORM", "ZIPF", "SKEWED"})
+  public Distribution distribution;
+
+  // Number of times the six columns of the schema (double, long, string, boolean) are repeated.
+  @Param({"1", "20"})
+  public int width;
+
+  private Schema schema;
+  private List<StructuredRecord> records;
+  private DefaultProfiler profiler;
+
+  @Setup
+  public void generate() {
+    List<Schema.Field> fields = new ArrayList<>();
+    for (int i = 0; i < width; i++) {
+      fields.add(Schema.Field.of("d" + i, Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))));
+      fields.add(Schema.Field.of("e" + i, Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))));
+      fields.add(Schema.Field.of("l" + i, Schema.nullableOf(Schema.of(Schema.Type.LONG))));
+      fields.add(Schema.Field.of("s" + i, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+      fields.add(Schema.Field.of("t" + i, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+      fields.add(Schema.Field.of("b" + i, Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+    }
+    schema = Schema.recordOf("data", fields);
+    List<StructuredRecord.Builder> builders = new ArrayList<>(ROWS);
+    for (int row = 0; row < ROWS; row++) {
+      builders.add(StructuredRecord.builder(schema));
+    }
+    for (int i = 0; i < width; i++) {
+      double[] d = Columns.doubles(distribution, ROWS, i);
+      double[] e = Columns.doubles(distribution, ROWS, i + 1000);
+      String[] s = Columns.strings(distribution, ROWS, i + 2000);
+      String[] t = Columns.strings(distribution, ROWS, i + 3000);
+      boolean[] b = Columns.booleans(ROWS, i + 4000);
+      for (int row = 0; row < ROWS; row++) {
+        StructuredRecord.Builder builder = builders.get(row);
+        // One value in a hundred is null.
+        builder.set("d" + i, row % 100 == 0 ? null : d[row]);
+        builder.set("e" + i, e[row]);
+        builder.set("l" + i, (long) d[row]);
+        builder.set("s" + i, row % 100 == 0 ? null : s[row]);
+        builder.set("t" + i, t[row]);
+        builder.set("b" + i, b[row]);
+      }
+    }
+    records = new ArrayList<>(ROWS);
+    for (StructuredRecord.Builder builder : builders) {
+      records.add(builder.build());
+    }
+    profiler = new DefaultProfiler(ProfilerBenchmark.profiles(), schema);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void keyed(Blackhole blackhole) {
+    for (Schema.Field field : schema.getFields()) {
+      String name = field.getName();
+      profiler.reset();
+      for (StructuredRecord record : records) {
+        // Same checks as DataProfiler.aggregate.
+        Schema.Field recordField = record.getSchema().getField(name);
+        if (recordField == null || !recordField.getSchema().isSimpleOrNullableSimple()) {
+          continue;
+        }
+        profiler.update(name, record.get(name));
+      }
+      blackhole.consume(profiler.result(name));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void singlePass(Blackhole blackhole) {
+    PartialProfile partial = profiler.newPartialProfile(false);
+    for (StructuredRecord record : records) {
+      partial.update(record);
+    }
+    for (int i = 0; i < partial.size(); i++) {
+      blackhole.consume(profiler.result(partial.getName(i), partial.getStates(i)));
+    }
+  }
+}
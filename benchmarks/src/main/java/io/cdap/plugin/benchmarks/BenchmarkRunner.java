@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks in throughput mode with the GC profiler, so that every benchmark reports
+ * its operations per second and the bytes allocated per operation (<code>gc.alloc.rate.norm</code>).
+ *
+ * Any JMH command line option can be passed, for example a regular expression of the benchmarks to run.
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    ChainedOptionsBuilder options = new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .mode(Mode.Throughput)
+      .timeUnit(TimeUnit.SECONDS)
+      .addProfiler(GCProfiler.class);
+    new Runner(options.build()).run();
+  }
+}
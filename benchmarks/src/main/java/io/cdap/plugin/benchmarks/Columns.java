@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import org.apache.commons.math3.distribution.ZipfDistribution;
+import org.apache.commons.math3.random.Well19937c;
+
+import java.util.Random;
+
+/**
+ * This class <code>Columns</code> generates the values of the columns profiled by the benchmarks.
+ * Values are generated up front from a fixed seed, so that every run profiles the same data.
+ */
+final class Columns {
+  private static final int ZIPF_ELEMENTS = 10000;
+  private static final double ZIPF_EXPONENT = 1.2;
+
+  private Columns() {
+  }
+
+  static double[] doubles(Distribution distribution, int size, long seed) {
+    Random random = new Random(seed);
+    ZipfDistribution zipf = new ZipfDistribution(new Well19937c(seed), ZIPF_ELEMENTS, ZIPF_EXPONENT);
+    double[] values = new double[size];
+    for (int i = 0; i < size; i++) {
+      switch (distribution) {
+        case UNIFORM:
+          values[i] = random.nextDouble() * 1000;
+          break;
+        case ZIPF:
+          values[i] = zipf.sample();
+          break;
+        default:
+          values[i] = Math.exp(random.nextGaussian() * 2);
+      }
+    }
+    return values;
+  }
+
+  static String[] strings(Distribution distribution, int size, long seed) {
+    double[] lengths = doubles(distribution, size, seed);
+    String[] values = new String[size];
+    for (int i = 0; i < size; i++) {
+      // Values of the same rank are equal, so that the number of unique values follows the distribution.
+      int rank = (int) Math.min(lengths[i], 100000);
+      StringBuilder value = new StringBuilder("v").append(rank);
+      for (int j = value.length(); j < rank % 64; j++) {
+        value.append('x');
+      }
+      values[i] = value.toString();
+    }
+    return values;
+  }
+
+  static boolean[] booleans(int size, long seed) {
+    Random random = new Random(seed);
+    boolean[] values = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = random.nextBoolean();
+    }
+    return values;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import io.cdap.plugin.profiles.DynamicHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures adding a point to a seeded <code>DynamicHistogram</code>, and repartitioning its buckets.
+ */
+@State(Scope.Thread)
+public class DynamicHistogramBenchmark {
+  private static final int SIZE = 1 << 16;
+  private static final int MASK = SIZE - 1;
+
+  @Param({"UNIFORM", "ZIPF", "SKEWED"})
+  public Distribution distribution;
+
+  private double[] values;
+  private DynamicHistogram histogram;
+  private int index;
+
+  @Setup(Level.Trial)
+  public void generate() {
+    values = Columns.doubles(distribution, SIZE, 7);
+  }
+
+  @Setup(Level.Iteration)
+  public void seed() {
+    // Same configuration as the histogram profile.
+    histogram = new DynamicHistogram(10, 5, 10);
+    for (int i = 0; i < SIZE; i++) {
+      histogram.addDataPoint(values[i]);
+    }
+    index = 0;
+  }
+
+  @Benchmark
+  public DynamicHistogram addDataPoint() {
+    histogram.addDataPoint(values[index++ & MASK]);
+    return histogram;
+  }
+
+  @Benchmark
+  public DynamicHistogram repartition() {
+    histogram.repartition();
+    return histogram;
+  }
+}
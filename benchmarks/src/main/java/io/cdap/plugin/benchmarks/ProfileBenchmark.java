@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Histogram;
+import io.cdap.plugin.profiles.Logical;
+import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.Uniques;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the update of the state of every profile with a single value, through the typed
+ * update methods and through <code>update(Object)</code>.
+ */
+@State(Scope.Thread)
+public class ProfileBenchmark {
+  private static final int SIZE = 1 << 16;
+  private static final int MASK = SIZE - 1;
+  private static final int STRING = 0;
+  private static final int BOOLEAN = 1;
+  private static final int NUMBER = 2;
+
+  @Param({"categorical", "quantitative", "logical", "uniques", "histogram"})
+  public String profile;
+
+  @Param({"UNIFORM", "ZIPF", "SKEWED"})
+  public Distribution distribution;
+
+  private Profile descriptor;
+  private ProfileState state;
+  private double[] doubles;
+  private String[] strings;
+  private boolean[] booleans;
+  private Object[] boxed;
+  private int kind;
+  private int index;
+
+  @Setup(Level.Trial)
+  public void generate() {
+    doubles = Columns.doubles(distribution, SIZE, 42);
+    strings = Columns.strings(distribution, SIZE, 42);
+    booleans = Columns.booleans(SIZE, 42);
+    boxed = new Object[SIZE];
+    switch (profile) {
+      case "categorical":
+        descriptor = new Categorical();
+        kind = STRING;
+        System.arraycopy(strings, 0, boxed, 0, SIZE);
+        break;
+      case "uniques":
+        descriptor = new Uniques();
+        kind = STRING;
+        System.arraycopy(strings, 0, boxed, 0, SIZE);
+        break;
+      case "logical":
+        descriptor = new Logical();
+        kind = BOOLEAN;
+        for (int i = 0; i < SIZE; i++) {
+          boxed[i] = booleans[i];
+        }
+        break;
+      case "quantitative":
+        descriptor = new Quantitative();
+        kind = NUMBER;
+        for (int i = 0; i < SIZE; i++) {
+          boxed[i] = doubles[i];
+        }
+        break;
+      default:
+        descriptor = new Histogram();
+        kind = NUMBER;
+        for (int i = 0; i < SIZE; i++) {
+          boxed[i] = doubles[i];
+        }
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    state = descriptor.newState();
+    index = 0;
+  }
+
+  @Benchmark
+  public ProfileState updateTyped() {
+    int i = index++ & MASK;
+    switch (kind) {
+      case STRING:
+        state.update((CharSequence) strings[i]);
+        break;
+      case BOOLEAN:
+        state.update(booleans[i]);
+        break;
+      default:
+        state.update(doubles[i]);
+    }
+    return state;
+  }
+
+  @Benchmark
+  public ProfileState updateObject() {
+    state.update(boxed[index++ & MASK]);
+    return state;
+  }
+}
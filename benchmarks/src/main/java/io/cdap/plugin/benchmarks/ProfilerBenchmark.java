@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.benchmarks;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.DefaultProfiler;
+import io.cdap.plugin.Profile;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Histogram;
+import io.cdap.plugin.profiles.Logical;
+import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.TopK;
+import io.cdap.plugin.profiles.Uniques;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures <code>DefaultProfiler.update</code> with boxed values of a numeric and a string field,
+ * and <code>DefaultProfiler.result</code> of a field holding all the values.
+ */
+@State(Scope.Thread)
+public class ProfilerBenchmark {
+  private static final int SIZE = 1 << 16;
+  private static final int MASK = SIZE - 1;
+  private static final Schema SCHEMA = Schema.recordOf(
+    "data",
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+
+  private Object[] doubles;
+  private Object[] strings;
+  private DefaultProfiler profiler;
+  private int index;
+
+  static List<Profile> profiles() {
+    return Arrays.asList(new Categorical(), new Logical(), new Quantitative(), new Uniques(), new Histogram(),
+                         new TopK());
+  }
+
+  @Setup(Level.Trial)
+  public void generate() {
+    doubles = new Object[SIZE];
+    double[] values = Columns.doubles(Distribution.UNIFORM, SIZE, 11);
+    for (int i = 0; i < SIZE; i++) {
+      doubles[i] = values[i];
+    }
+    strings = Columns.strings(Distribution.ZIPF, SIZE, 11);
+  }
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    profiler = new DefaultProfiler(profiles(), SCHEMA);
+    for (int i = 0; i < SIZE; i++) {
+      profiler.update("d", doubles[i]);
+      profiler.update("s", strings[i]);
+    }
+    index = 0;
+  }
+
+  @Benchmark
+  public DefaultProfiler updateNumber() {
+    profiler.update("d", doubles[index++ & MASK]);
+    return profiler;
+  }
+
+  @Benchmark
+  public DefaultProfiler updateString() {
+    profiler.update("s", strings[index++ & MASK]);
+    return profiler;
+  }
+
+  @Benchmark
+  public StructuredRecord resultNumber() {
+    return profiler.result("d");
+  }
+
+  @Benchmark
+  public StructuredRecord resultString() {
+    return profiler.result("s");
+  }
+}
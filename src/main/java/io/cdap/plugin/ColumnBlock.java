@@ -0,0 +1,374 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class <code>ColumnBlock</code> buffers the values of a single field in packed
+ * primitive arrays, so that only the values of that field are shuffled. Integral values
+ * are kept as longs, floating point values as doubles, booleans as bits and nulls in a bitmap.
+ */
+final class ColumnBlock implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final int INITIAL_CAPACITY = 64;
+  // Approximate heap size of a string, without its characters.
+  private static final long STRING_OVERHEAD = 40;
+
+  private final Schema.Type type;
+  private transient int size;
+  private transient long[] nulls;
+  private transient long[] longs;
+  private transient double[] doubles;
+  private transient String[] strings;
+  // Approximate heap size of the strings of the block.
+  private transient long stringBytes;
+
+  private ColumnBlock(Schema.Type type) {
+    this.type = type;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates a block for the values of the given type.
+   *
+   * @param type of the field.
+   * @return a block, or null if the values of the type can't be packed.
+   */
+  static ColumnBlock of(Schema.Type type) {
+    switch (type) {
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+      case STRING:
+        return new ColumnBlock(type);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Appends a value to the block.
+   *
+   * @param value to be appended, can be null.
+   */
+  void add(Object value) {
+    ensureCapacity(size + 1);
+    if (value == null) {
+      nulls[size >>> 6] |= 1L << size;
+    } else {
+      switch (type) {
+        case INT:
+        case LONG:
+          longs[size] = ((Number) value).longValue();
+          break;
+        case FLOAT:
+        case DOUBLE:
+          doubles[size] = ((Number) value).doubleValue();
+          break;
+        case BOOLEAN:
+          if ((Boolean) value) {
+            longs[size >>> 6] |= 1L << size;
+          }
+          break;
+        default:
+          strings[size] = value.toString();
+          stringBytes += STRING_OVERHEAD + 2L * strings[size].length();
+      }
+    }
+    size++;
+  }
+
+  /**
+   * Appends all the values of another block of the same type, copying its arrays and shifting its bitmaps
+   * into place without boxing any value.
+   *
+   * @param other block to be appended.
+   */
+  void addAll(ColumnBlock other) {
+    int n = other.size;
+    ensureCapacity(size + n);
+    orBits(other.nulls, nulls, size, n);
+    switch (type) {
+      case INT:
+      case LONG:
+        System.arraycopy(other.longs, 0, longs, size, n);
+        break;
+      case FLOAT:
+      case DOUBLE:
+        System.arraycopy(other.doubles, 0, doubles, size, n);
+        break;
+      case BOOLEAN:
+        orBits(other.longs, longs, size, n);
+        break;
+      default:
+        System.arraycopy(other.strings, 0, strings, size, n);
+        stringBytes += other.stringBytes;
+    }
+    size += n;
+  }
+
+  /**
+   * @return type of the values of the block.
+   */
+  Schema.Type getType() {
+    return type;
+  }
+
+  /**
+   * @return number of values in the block.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return estimated number of bytes used by the block, its arrays and its strings.
+   */
+  long estimateSize() {
+    long bytes = 8L * nulls.length + stringBytes;
+    if (longs != null) {
+      bytes += 8L * longs.length;
+    }
+    if (doubles != null) {
+      bytes += 8L * doubles.length;
+    }
+    if (strings != null) {
+      bytes += 8L * strings.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Removes all the values of the block, keeping its arrays so that it can be filled again.
+   */
+  void clear() {
+    Arrays.fill(nulls, 0, words(size), 0L);
+    if (type == Schema.Type.BOOLEAN) {
+      Arrays.fill(longs, 0, words(size), 0L);
+    } else if (strings != null) {
+      Arrays.fill(strings, 0, size, null);
+    }
+    stringBytes = 0;
+    size = 0;
+  }
+
+  /**
+   * Updates the states with every value of the block, in the order they were added. Numbers are
+   * handed to the states in a single batch.
+   *
+   * @param states to be updated.
+   */
+  void replay(ProfileState[] states) {
+    long[] batchNulls = hasNulls() ? nulls : null;
+    for (ProfileState state : states) {
+      switch (type) {
+        case INT:
+        case LONG:
+          state.updateBatch(longs, batchNulls, size);
+          break;
+        case FLOAT:
+        case DOUBLE:
+          state.updateBatch(doubles, batchNulls, size);
+          break;
+        default:
+          for (int i = 0; i < size; i++) {
+            if ((nulls[i >>> 6] & (1L << i)) != 0) {
+              state.updateNull();
+            } else if (type == Schema.Type.BOOLEAN) {
+              state.update((longs[i >>> 6] & (1L << i)) != 0);
+            } else {
+              state.update((CharSequence) strings[i]);
+            }
+          }
+      }
+    }
+  }
+
+  /**
+   * @return number of null values in the block.
+   */
+  int nulls() {
+    int count = 0;
+    for (int i = 0; i < words(size); i++) {
+      count += Long.bitCount(nulls[i]);
+    }
+    return count;
+  }
+
+  private boolean hasNulls() {
+    for (int i = 0; i < words(size); i++) {
+      if (nulls[i] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void allocate(int capacity) {
+    nulls = new long[words(capacity)];
+    switch (type) {
+      case INT:
+      case LONG:
+        longs = new long[capacity];
+        break;
+      case FLOAT:
+      case DOUBLE:
+        doubles = new double[capacity];
+        break;
+      case BOOLEAN:
+        longs = new long[words(capacity)];
+        break;
+      default:
+        strings = new String[capacity];
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= nulls.length * 64 && fits(capacity)) {
+      return;
+    }
+    int grown = Math.max(capacity, 2 * size);
+    nulls = Arrays.copyOf(nulls, words(grown));
+    switch (type) {
+      case INT:
+      case LONG:
+        longs = Arrays.copyOf(longs, grown);
+        break;
+      case FLOAT:
+      case DOUBLE:
+        doubles = Arrays.copyOf(doubles, grown);
+        break;
+      case BOOLEAN:
+        longs = Arrays.copyOf(longs, words(grown));
+        break;
+      default:
+        strings = Arrays.copyOf(strings, grown);
+    }
+  }
+
+  private boolean fits(int capacity) {
+    switch (type) {
+      case INT:
+      case LONG:
+        return capacity <= longs.length;
+      case FLOAT:
+      case DOUBLE:
+        return capacity <= doubles.length;
+      case BOOLEAN:
+        return capacity <= longs.length * 64;
+      default:
+        return capacity <= strings.length;
+    }
+  }
+
+  private static int words(int bits) {
+    return (bits + 63) >>> 6;
+  }
+
+  // Sets the bits set in the first n bits of a bitmap into another bitmap, starting at the given bit. The bits
+  // of a bitmap past its values are never set, so whole words are shifted in.
+  private static void orBits(long[] source, long[] target, int offset, int n) {
+    int base = offset >>> 6;
+    int shift = offset & 63;
+    for (int i = 0; i < words(n); i++) {
+      long word = source[i];
+      if (word == 0) {
+        continue;
+      }
+      target[base + i] |= word << shift;
+      if (shift != 0 && base + i + 1 < target.length) {
+        target[base + i + 1] |= word >>> (64 - shift);
+      }
+    }
+  }
+
+  // Only the used part of the arrays is written, so the block is shuffled in its packed form.
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    for (int i = 0; i < words(size); i++) {
+      out.writeLong(nulls[i]);
+    }
+    switch (type) {
+      case INT:
+      case LONG:
+        for (int i = 0; i < size; i++) {
+          out.writeLong(longs[i]);
+        }
+        break;
+      case FLOAT:
+      case DOUBLE:
+        for (int i = 0; i < size; i++) {
+          out.writeDouble(doubles[i]);
+        }
+        break;
+      case BOOLEAN:
+        for (int i = 0; i < words(size); i++) {
+          out.writeLong(longs[i]);
+        }
+        break;
+      default:
+        out.writeObject(Arrays.copyOf(strings, size));
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    size = in.readInt();
+    allocate(Math.max(size, INITIAL_CAPACITY));
+    for (int i = 0; i < words(size); i++) {
+      nulls[i] = in.readLong();
+    }
+    switch (type) {
+      case INT:
+      case LONG:
+        for (int i = 0; i < size; i++) {
+          longs[i] = in.readLong();
+        }
+        break;
+      case FLOAT:
+      case DOUBLE:
+        for (int i = 0; i < size; i++) {
+          doubles[i] = in.readDouble();
+        }
+        break;
+      case BOOLEAN:
+        for (int i = 0; i < words(size); i++) {
+          longs[i] = in.readLong();
+        }
+        break;
+      default:
+        String[] values = (String[]) in.readObject();
+        System.arraycopy(values, 0, strings, 0, size);
+        for (int i = 0; i < size; i++) {
+          if (strings[i] != null) {
+            stringBytes += STRING_OVERHEAD + 2L * strings[i].length();
+          }
+        }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.annotation.Description;
+import io.cdap.cdap.api.annotation.Name;
+import io.cdap.cdap.api.annotation.Plugin;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.api.Emitter;
+import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.StageConfigurer;
+import io.cdap.cdap.etl.api.StageMetrics;
+import io.cdap.cdap.etl.api.batch.BatchAggregator;
+import io.cdap.cdap.etl.api.batch.BatchAggregatorContext;
+import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
+
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class <code>DataProfileMerger</code> merges the partial profiles of the shards of every field, output by
+ * a Data Profiler or a Reducible Data Profiler whose records are sharded, and calculates the statistics of every
+ * field from the merged states. Only one partial profile per shard and per field is shuffled, keyed by field.
+ */
+@Plugin(type = BatchAggregator.PLUGIN_TYPE)
+@Name(DataProfileMerger.NAME)
+@Description("Merges the partial profiles of the shards of every field, output by a Data Profiler or a Reducible " +
+  "Data Profiler whose records are sharded, and calculates the statistics of every field. Must be configured " +
+  "with the same profile properties as the profiler.")
+public class DataProfileMerger extends BatchAggregator<String, StructuredRecord, StructuredRecord> {
+  public static final String NAME = "DataProfileMerger";
+  private final DataProfiler.Conf conf;
+  // Profilers of the input fields the partial profiles come from, by schema of the field.
+  private transient Map<String, DefaultProfiler> profilers;
+  private StateStore store;
+  private StageMetrics metrics;
+
+  public DataProfileMerger(DataProfiler.Conf conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void configurePipeline(PipelineConfigurer configurer) {
+    StageConfigurer stageConfigurer = configurer.getStageConfigurer();
+    FailureCollector collector = stageConfigurer.getFailureCollector();
+    conf.validate(collector);
+    if (conf.isSharded()) {
+      collector.addFailure("The partial profiles cannot be sharded again.", "Remove the shards.")
+        .withConfigProperty(DataProfiler.Conf.SHARDS);
+    }
+    Schema input = stageConfigurer.getInputSchema();
+    if (input != null && !Profiler.PARTIAL_SCHEMA.equals(input)) {
+      collector.addFailure("The input records are not partial profiles.",
+                           "Set the shards of the Data Profiler stage before this stage.");
+    }
+    stageConfigurer.setOutputSchema(DataProfiler.createProfiler(conf, null).getOutputSchema());
+  }
+
+  @Override
+  public void prepareRun(BatchAggregatorContext context) throws Exception {
+    Integer numPartitions = conf.getNumPartitions();
+    if (numPartitions != null) {
+      context.setNumPartitions(numPartitions);
+    }
+  }
+
+  @Override
+  public void onRunFinish(boolean succeeded, BatchAggregatorContext context) {
+    super.onRunFinish(succeeded, context);
+    DataProfiler.finishRun(conf, succeeded, context.getLogicalStartTime());
+  }
+
+  @Override
+  public void initialize(BatchRuntimeContext context) throws Exception {
+    profilers = new HashMap<>();
+    store = conf.newStateStore(context.getLogicalStartTime());
+    metrics = context.getMetrics();
+  }
+
+  @Override
+  public void groupBy(StructuredRecord partial, Emitter<String> groupKeyEmitter) throws Exception {
+    groupKeyEmitter.emit(partial.<String>get("name"));
+  }
+
+  @Override
+  public void aggregate(String name, Iterator<StructuredRecord> partials,
+                        Emitter<StructuredRecord> emitter) throws IOException {
+    DefaultProfiler profiler = null;
+    ProfileState[] states = null;
+    Sampler<Object> sampler = conf.newSampler(0);
+    while (partials.hasNext()) {
+      StructuredRecord partial = partials.next();
+      if (profiler == null) {
+        profiler = getProfiler(partial.<String>get("field"));
+        states = profiler.newStates(name);
+      }
+      Profiler.mergePartial(partial, states);
+      Long seen = partial.get("seen");
+      if (sampler != null && seen != null) {
+        sampler.count(seen, partial.<Long>get("sampled"));
+      }
+    }
+    if (profiler == null) {
+      return;
+    }
+    if (store != null && states.length > 0) {
+      store.merge(name, states);
+    }
+    long start = System.nanoTime();
+    StructuredRecord result = profiler.result(name, states, sampler);
+    ProfileMetrics.emitResult(metrics, name, states, System.nanoTime() - start);
+    emitter.emit(result);
+    for (ProfileState state : states) {
+      state.release();
+    }
+  }
+
+  // Creates the profiler of the input field a partial profile comes from, once per field.
+  private DefaultProfiler getProfiler(String field) throws IOException {
+    DefaultProfiler profiler = profilers.get(field);
+    if (profiler == null) {
+      profiler = DataProfiler.createProfiler(conf, Schema.parseJson(field));
+      profilers.put(field, profiler);
+    }
+    return profiler;
+  }
+
+  class Request {}
+
+  /**
+   * This method retrieves the schema of the profiler output schema.
+   *
+   * @param request empty object.
+   * @return Translated schema.
+   * @throws Exception
+   */
+  @Path("getSchema")
+  public Schema getSchema(Request request) throws Exception {
+    return DataProfiler.createProfiler(conf, null).getOutputSchema();
+  }
+}
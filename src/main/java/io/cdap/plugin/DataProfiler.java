@@ -17,6 +17,7 @@
 package io.cdap.plugin;
 
 import com.google.common.base.Strings;
+import com.google.common.primitives.Ints;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
@@ -26,6 +27,7 @@ import io.cdap.cdap.api.plugin.PluginConfig;
 import io.cdap.cdap.etl.api.Emitter;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.StageMetrics;
 import io.cdap.cdap.etl.api.StageConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchAggregator;
 import io.cdap.cdap.etl.api.batch.BatchAggregatorContext;
@@ -34,7 +36,9 @@ import io.cdap.plugin.profiles.*;
 
 import javax.annotation.Nullable;
 import javax.ws.rs.Path;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -49,16 +53,24 @@ import java.util.List;
   "For boolean fields, true and false counts will be calculated.")
 public class DataProfiler extends BatchAggregator<String, StructuredRecord, StructuredRecord> {
   public static final String NAME = "DataProfiler";
+  // Number of values of a field profiled in a single batch.
+  private static final int BATCH_SIZE = 4096;
+  // Separates the name of a field from its shard in the keys of the sharded fields.
+  static final String SHARD_SEPARATOR = "#";
+  // Key of the records left out of the sample, which can't be the name of a field.
+  private static final String SKIPPED = "#skipped";
   private final Conf conf;
-  private Profiler executor;
+  private DefaultProfiler executor;
+  private StateStore store;
+  private StageMetrics metrics;
   private Schema schema;
-  private static final List<Profile> profiles = Arrays.asList(
-    new Categorical(),
-    new Logical(),
-    new Quantitative(),
-    new Uniques(),
-    new Histogram()
-  );
+  // Number of shards of every field, and shard of the next record, when the fields are sharded.
+  private int shards;
+  private int shard;
+  // Seed of the samplers of the run, and sampler of the records of the task, if they are sampled.
+  private long seed;
+  private Sampler<StructuredRecord> sampler;
+  private KeySink keys;
 
   public DataProfiler(Conf conf) {
     this.conf = conf;
@@ -68,8 +80,14 @@ public class DataProfiler extends BatchAggregator<String, StructuredRecord, Stru
   public void configurePipeline(PipelineConfigurer configurer) {
     StageConfigurer stageConfigurer = configurer.getStageConfigurer();
     conf.validate(stageConfigurer.getFailureCollector());
-    executor = new DefaultProfiler(profiles, stageConfigurer.getInputSchema());
-    stageConfigurer.setOutputSchema(executor.getOutputSchema());
+    if (conf.isSampled() && !conf.isSharded()) {
+      stageConfigurer.getFailureCollector()
+        .addFailure("The records are sampled before the shuffle, so the records left out of the sample need shards.",
+                    "Set the shards and merge them with a Data Profile Merger, or use the Reducible Data Profiler.")
+        .withConfigProperty(Conf.SAMPLING).withConfigProperty(Conf.SHARDS);
+    }
+    executor = createProfiler(conf, stageConfigurer.getInputSchema());
+    stageConfigurer.setOutputSchema(conf.isSharded() ? Profiler.PARTIAL_SCHEMA : executor.getOutputSchema());
   }
 
   @Override
@@ -77,7 +95,8 @@ public class DataProfiler extends BatchAggregator<String, StructuredRecord, Stru
     if (conf.numPartitions == null) {
       Schema inputSchema = context.getInputSchema();
       if (inputSchema != null) {
-        context.setNumPartitions(inputSchema.getFields().size());
+        int fields = inputSchema.getFields().size();
+        context.setNumPartitions(fields * conf.getShards(fields));
       }
     } else {
       context.setNumPartitions(conf.numPartitions);
@@ -87,35 +106,203 @@ public class DataProfiler extends BatchAggregator<String, StructuredRecord, Stru
   @Override
   public void onRunFinish(boolean succeeded, BatchAggregatorContext context) {
     super.onRunFinish(succeeded, context);
+    finishRun(conf, succeeded, context.getLogicalStartTime());
   }
 
   @Override
   public void initialize(BatchRuntimeContext context) throws Exception {
-    executor = new DefaultProfiler(profiles, context.getInputSchema());
+    executor = createProfiler(conf, context.getInputSchema());
+    store = conf.newStateStore(context.getLogicalStartTime());
+    metrics = context.getMetrics();
+    seed = conf.getSeed(context.getLogicalStartTime());
   }
 
   @Override
   public void groupBy(StructuredRecord input, Emitter<String> groupKeyEmitter)
     throws Exception {
-    for (Schema.Field field : input.getSchema().getFields()) {
-      groupKeyEmitter.emit(field.getName());
+    List<Schema.Field> fields = input.getSchema().getFields();
+    if (!conf.isSharded()) {
+      for (Schema.Field field : fields) {
+        groupKeyEmitter.emit(field.getName());
+      }
+      return;
+    }
+    // The records are dealt to the shards in turn, every task starting from its own shard. Every task draws
+    // its first shard and seeds its sampler with its first record, so that a run deals and samples the same
+    // records as long as its input does not change, without using the same shards and positions in every task.
+    if (shards == 0) {
+      shards = conf.getShards(fields.size());
+      long salt = Sampler.seed(seed, input.hashCode());
+      shard = (int) ((salt >>> 1) % shards);
+      sampler = conf.newSampler(salt);
+      keys = new KeySink();
+    }
+    keys.emitter = groupKeyEmitter;
+    keys.suffix = SHARD_SEPARATOR + shard;
+    shard = shard + 1 == shards ? 0 : shard + 1;
+    if (sampler == null) {
+      keys.sample(input);
+    } else {
+      sampler.offer(input, keys);
     }
   }
 
   @Override
-  public void aggregate(String name, Iterator<StructuredRecord> values,
+  public void aggregate(String key, Iterator<StructuredRecord> values,
                         Emitter<StructuredRecord> emitter) throws Exception {
+    String name = conf.isSharded() ? key.substring(0, key.lastIndexOf(SHARD_SEPARATOR)) : key;
     executor.reset();
-    while (values.hasNext()) {
-      StructuredRecord record = values.next();
-      Schema.Field field = record.getSchema().getField(name);
-      if (field == null || !field.getSchema().isSimpleOrNullableSimple()) {
-        continue;
+    if (name.equals(SKIPPED)) {
+      aggregateSkipped(values, emitter);
+      return;
+    }
+    // Only the records of the sample are keyed by field, so all of them are profiled.
+    Sampler<Object> sampler = conf.newSampler(0);
+    NestedField nested = executor.getNested(name);
+    if (nested != null) {
+      aggregate(nested, values, sampler, emitter);
+      return;
+    }
+    FieldPlan plan = executor.getPlan(name);
+    ProfileState[] states = executor.getStates(name);
+    // Fields that are not simple or have no profiles only get a name in the output.
+    if (plan == null) {
+      long records = 0;
+      while (values.hasNext()) {
+        values.next();
+        records++;
+      }
+      emitter.emit(result(name, states, count(sampler, records)));
+      return;
+    }
+    ProfileMetrics profileMetrics = new ProfileMetrics(plan);
+    MemoryBudget budget = executor.getMemoryBudget();
+    List<ProfileState[]> budgeted = Collections.singletonList(states);
+    ColumnBlock batch = plan.newBatch();
+    long records = 0;
+    if (batch != null) {
+      // Numbers are buffered in blocks and profiled in tight loops over their arrays.
+      while (values.hasNext()) {
+        batch.add(values.next().get(name));
+        records++;
+        if (batch.size() == BATCH_SIZE) {
+          profileMetrics.replay(batch, states);
+          batch.clear();
+          if (budget != null) {
+            budget.enforce(budgeted, 0);
+          }
+        }
+      }
+      profileMetrics.replay(batch, states);
+    } else {
+      while (values.hasNext()) {
+        profileMetrics.update(values.next().get(name), states);
+        records++;
+        checkBudget(budget, budgeted);
       }
-      executor.update(name, record.get(name));
     }
-    StructuredRecord result = executor.result(name);
+    if (store != null) {
+      store.merge(name, states);
+    }
+    long start = System.nanoTime();
+    StructuredRecord result = result(name, states, count(sampler, records));
+    profileMetrics.emit(metrics, states, System.nanoTime() - start);
     emitter.emit(result);
+    // Gives the memory kept out of the heap back, to be reused by the states of the next field.
+    for (ProfileState state : states) {
+      state.release();
+    }
+  }
+
+  // Walks the values of a record, array or map field down to its leaves, and emits the results of every leaf.
+  private void aggregate(NestedField nested, Iterator<StructuredRecord> values, @Nullable Sampler<Object> sampler,
+                         Emitter<StructuredRecord> emitter) throws IOException {
+    String name = nested.getName();
+    ProfileState[][] states = nested.newStates();
+    MemoryBudget budget = executor.getMemoryBudget();
+    List<ProfileState[]> budgeted = Arrays.asList(states);
+    long records = 0;
+    while (values.hasNext()) {
+      nested.update(values.next().get(name), states, 0);
+      records++;
+      checkBudget(budget, budgeted);
+    }
+    count(sampler, records);
+    FieldPlan[] leaves = nested.getLeaves();
+    for (int i = 0; i < leaves.length; i++) {
+      String path = leaves[i].getName();
+      if (store != null) {
+        store.merge(path, states[i]);
+      }
+      long start = System.nanoTime();
+      StructuredRecord result = result(path, states[i], sampler);
+      ProfileMetrics.emitResult(metrics, path, states[i], System.nanoTime() - start);
+      emitter.emit(result);
+      for (ProfileState state : states[i]) {
+        state.release();
+      }
+    }
+  }
+
+  // Counts the records left out of the sample of a shard into the exact counters of every field, and emits
+  // the partial profile of every field, merged with the partial profiles of the sample by the merger.
+  private void aggregateSkipped(Iterator<StructuredRecord> values, Emitter<StructuredRecord> emitter) {
+    PartialProfile skipped = executor.newPartialProfile(false, null);
+    long records = 0;
+    while (values.hasNext()) {
+      skipped.skip(values.next());
+      records++;
+    }
+    Sampler<Object> sampler = conf.newSampler(0);
+    if (sampler != null) {
+      sampler.count(records, 0);
+    }
+    for (int i = 0; i < skipped.size(); i++) {
+      emitter.emit(executor.partial(skipped.getName(i), skipped.getStates(i), sampler));
+    }
+    skipped.release();
+  }
+
+  // Counts the records of the sample profiled by a shard, if the records are sampled.
+  @Nullable
+  private static Sampler<Object> count(@Nullable Sampler<Object> sampler, long records) {
+    if (sampler != null) {
+      sampler.count(records, records);
+    }
+    return sampler;
+  }
+
+  // Builds the results of a field, or the partial profile of its shard when the fields are sharded.
+  private StructuredRecord result(String name, ProfileState[] states, @Nullable Sampler<?> sampler) {
+    return conf.isSharded() ? executor.partial(name, states, sampler) : executor.result(name, states, sampler);
+  }
+
+  // Shrinks the states of a field once every few values if they are over the memory budget.
+  private static void checkBudget(@Nullable MemoryBudget budget, List<ProfileState[]> states) {
+    if (budget != null && budget.tick()) {
+      budget.enforce(states, 0);
+    }
+  }
+
+  /**
+   * Emits the keys of a record of a shard: the name of every field if the record is part of the sample,
+   * or a single key for all the fields if it is left out, so that skipped records are only shuffled once.
+   */
+  private static final class KeySink implements Sampler.Sink<StructuredRecord> {
+    private Emitter<String> emitter;
+    private String suffix;
+
+    @Override
+    public void sample(StructuredRecord record) {
+      for (Schema.Field field : record.getSchema().getFields()) {
+        emitter.emit(field.getName() + suffix);
+      }
+    }
+
+    @Override
+    public void skip(StructuredRecord record) {
+      emitter.emit(SKIPPED + suffix);
+    }
   }
 
   class Request {}
@@ -129,23 +316,349 @@ public class DataProfiler extends BatchAggregator<String, StructuredRecord, Stru
    */
   @Path("getSchema")
   public Schema getSchema(Request request) throws Exception {
-    return new DefaultProfiler(profiles, null).getOutputSchema();
+    return conf.isSharded() ? Profiler.PARTIAL_SCHEMA : createProfiler(conf, null).getOutputSchema();
+  }
+
+  /**
+   * Creates the profiler of the fields.
+   *
+   * @param conf configuration of the profiler.
+   * @param input schema, can be null when only the output schema is needed.
+   * @return profiler applying the profiles of the configuration.
+   */
+  static DefaultProfiler createProfiler(Conf conf, @Nullable Schema input) {
+    DefaultProfiler profiler = new DefaultProfiler(createProfiles(conf), input, conf.isSampled());
+    profiler.setMemoryBudget(conf.getMemoryBudget());
+    return profiler;
+  }
+
+  /**
+   * Commits the states persisted by a run if it succeeded, or drops them if it failed.
+   *
+   * @param conf configuration of the profiler.
+   * @param succeeded true if the run succeeded.
+   * @param runTime logical start time of the run.
+   */
+  static void finishRun(Conf conf, boolean succeeded, long runTime) {
+    StateStore store = conf.newStateStore(runTime);
+    if (store == null) {
+      return;
+    }
+    try {
+      if (succeeded) {
+        store.commit();
+      } else {
+        store.abort();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to persist the profile states in '" + conf.statePath + "'.", e);
+    }
+  }
+
+  /**
+   * Creates the profiles applied to every field.
+   *
+   * @param conf configuration of the profiler.
+   * @return list of profiles.
+   */
+  static List<Profile> createProfiles(Conf conf) {
+    int accuracy = conf.getQuantileAccuracy();
+    return Arrays.asList(
+      new Categorical(accuracy),
+      new Logical(),
+      new Quantitative(accuracy),
+      new Uniques(conf.getUniquesPrecision(), conf.isOffHeap()),
+      new Histogram(),
+      new TopK(conf.getTopK(), conf.getTopKError()),
+      new Temporal(),
+      new Decimal()
+    );
   }
 
 
   public static class Conf extends PluginConfig {
+    private static final long serialVersionUID = 1L;
+
     private static final String NUM_PARTITIONS = "partitions";
+    private static final String QUANTILE_ACCURACY = "quantileAccuracy";
+    private static final String UNIQUES_PRECISION = "uniquesPrecision";
+    private static final String STORAGE = "storage";
+    private static final String TOP_K = "topK";
+    private static final String TOP_K_ERROR = "topKError";
+    static final String SAMPLING = "sampling";
+    private static final String SAMPLING_RATE = "samplingRate";
+    private static final String SAMPLE_SIZE = "sampleSize";
+    private static final String SEED = "seed";
+    static final String STATE_PATH = "statePath";
+    private static final String MEMORY_BUDGET = "memoryBudget";
+    static final String SHARDS = "shards";
+    private static final String AUTO = "auto";
+    private static final String NONE = "none";
+    private static final String BERNOULLI = "bernoulli";
+    private static final String RESERVOIR = "reservoir";
+    private static final String HEAP = "heap";
+    private static final String OFF_HEAP = "offheap";
+    private static final double DEFAULT_SAMPLING_RATE = 0.01d;
+    private static final int DEFAULT_SAMPLE_SIZE = 100000;
+    // Number of partitions the shards of all the fields are spread over when their number is chosen automatically.
+    private static final int DEFAULT_SHARDED_PARTITIONS = 64;
     @Nullable
     @Description("The number of partitions to use when shuffling the data. " +
       "Defaults to the number of fields in the input fields.")
     @Name(NUM_PARTITIONS)
     private Integer numPartitions;
 
-    private void validate(FailureCollector collector) {
+    @Nullable
+    @Description("The accuracy of the sketch used to estimate the median and percentiles. Higher values " +
+      "are more accurate but use more memory, the rank error is about 1.65 / accuracy. Defaults to 200.")
+    @Name(QUANTILE_ACCURACY)
+    private Integer quantileAccuracy;
+
+    @Nullable
+    @Description("The precision of the sketch used to estimate the number of unique values, between 4 and 18. " +
+      "Every field uses at most 2^precision bytes, the relative error is about 1.04 / sqrt(2^precision). " +
+      "Defaults to 12.")
+    @Name(UNIQUES_PRECISION)
+    private Integer uniquesPrecision;
+
+    @Nullable
+    @Description("Where the registers of the sketches estimating the number of unique values are kept. 'heap' " +
+      "keeps them in arrays, 'offheap' keeps them in large blocks of direct memory, which are not scanned by the " +
+      "garbage collector, for inputs with thousands of fields. Defaults to 'heap'.")
+    @Name(STORAGE)
+    private String storage;
+
+    @Nullable
+    @Description("The number of most frequent values reported for string and integer fields. Defaults to 10.")
+    @Name(TOP_K)
+    private Integer topK;
+
+    @Nullable
+    @Description("The maximum overestimation of the counts of the most frequent values, as a fraction of " +
+      "the number of values of the field, between 0 and 1. Every field keeps max(top k, 1 / error) counters. " +
+      "Defaults to 0.001.")
+    @Name(TOP_K_ERROR)
+    private Double topKError;
+
+    @Nullable
+    @Description("How the records are sampled. 'none' profiles every record, 'bernoulli' profiles every record " +
+      "with the same probability and 'reservoir' profiles a uniform sample of a fixed size. Counts, nulls and " +
+      "empty values are always computed on every record. Defaults to 'none'.")
+    @Name(SAMPLING)
+    private String sampling;
+
+    @Nullable
+    @Description("The probability of a record to be profiled with the 'bernoulli' sampling, between 0 and 1. " +
+      "Defaults to 0.01.")
+    @Name(SAMPLING_RATE)
+    private Double samplingRate;
+
+    @Nullable
+    @Description("The number of records profiled with the 'reservoir' sampling. Defaults to 100000.")
+    @Name(SAMPLE_SIZE)
+    private Integer sampleSize;
+
+    @Nullable
+    @Description("The seed of the random numbers choosing the sampled records. Runs with the same seed sample " +
+      "the same records of the same input. Defaults to the logical start time of the run.")
+    @Name(SEED)
+    private Long seed;
+
+    @Nullable
+    @Description("The directory where the profile states of every field are kept between runs, on any file " +
+      "system supported by Hadoop. When set, every run merges the records it profiles with the states of the " +
+      "previous runs, so append-only datasets can be profiled incrementally.")
+    @Name(STATE_PATH)
+    private String statePath;
+
+    @Nullable
+    @Description("The maximum memory, in megabytes, used by the profile states of the fields profiled by a task, " +
+      "including the values buffered when 'values' are shuffled. Past this budget, the buffered values are " +
+      "profiled right away, and the biggest sketches are shrunk to a lower accuracy until the states fit. " +
+      "Defaults to no budget.")
+    @Name(MEMORY_BUDGET)
+    private Integer memoryBudget;
+
+    @Nullable
+    @Description("The number of shards the records of every field are split into, so that a field is profiled " +
+      "by several tasks, or 'auto' to spread the shards of all the fields over the partitions. When set, the " +
+      "stage outputs the partial profile of every shard of every field instead of its results, which must be " +
+      "merged by a Data Profile Merger stage. Defaults to a single shard per field.")
+    @Name(SHARDS)
+    private String shards;
+
+    @Nullable
+    Integer getNumPartitions() {
+      return numPartitions;
+    }
+
+    int getQuantileAccuracy() {
+      return quantileAccuracy == null ? QuantileSketch.DEFAULT_K : quantileAccuracy;
+    }
+
+    int getUniquesPrecision() {
+      return uniquesPrecision == null ? HllSketch.DEFAULT_PRECISION : uniquesPrecision;
+    }
+
+    /**
+     * @return memory budget in bytes, or 0 if the memory is not bounded.
+     */
+    long getMemoryBudget() {
+      return memoryBudget == null ? 0 : memoryBudget * 1024L * 1024L;
+    }
+
+    /**
+     * @return true if the records of every field are split into shards, whose partial profiles are output.
+     */
+    boolean isSharded() {
+      return !Strings.isNullOrEmpty(shards);
+    }
+
+    /**
+     * Returns the number of shards of every key, chosen from the number of partitions when it is automatic.
+     *
+     * @param keys number of keys that are sharded.
+     * @return number of shards of every key, 1 if the keys are not sharded.
+     */
+    int getShards(int keys) {
+      if (!isSharded()) {
+        return 1;
+      }
+      if (AUTO.equalsIgnoreCase(shards)) {
+        int partitions = numPartitions == null ? DEFAULT_SHARDED_PARTITIONS : numPartitions;
+        return Math.max(1, (partitions + keys - 1) / Math.max(1, keys));
+      }
+      return Integer.parseInt(shards);
+    }
+
+    boolean isOffHeap() {
+      return OFF_HEAP.equalsIgnoreCase(storage);
+    }
+
+    int getTopK() {
+      return topK == null ? TopK.DEFAULT_K : topK;
+    }
+
+    double getTopKError() {
+      return topKError == null ? TopK.DEFAULT_ERROR : topKError;
+    }
+
+    /**
+     * Creates the store of the profile states kept between runs.
+     *
+     * @param runTime logical start time of the run.
+     * @return state store, or null if the states are not kept between runs.
+     */
+    @Nullable
+    StateStore newStateStore(long runTime) {
+      return isPersisted() ? new StateStore(statePath, runTime) : null;
+    }
+
+    @Nullable
+    String getStatePath() {
+      return statePath;
+    }
+
+    boolean isPersisted() {
+      return !Strings.isNullOrEmpty(statePath);
+    }
+
+    boolean isSampled() {
+      return BERNOULLI.equalsIgnoreCase(sampling) || RESERVOIR.equalsIgnoreCase(sampling);
+    }
+
+    /**
+     * @param runTime logical start time of the run.
+     * @return seed of the samplers of the run.
+     */
+    long getSeed(long runTime) {
+      return seed == null ? runTime : seed;
+    }
+
+    /**
+     * Creates a sampler choosing the records that are profiled.
+     *
+     * @param seed of the random numbers, see <code>Sampler.seed</code>.
+     * @return new sampler, or null if every record is profiled.
+     */
+    @Nullable
+    <T> Sampler<T> newSampler(long seed) {
+      if (BERNOULLI.equalsIgnoreCase(sampling)) {
+        return Sampler.bernoulli(samplingRate == null ? DEFAULT_SAMPLING_RATE : samplingRate, seed);
+      }
+      if (RESERVOIR.equalsIgnoreCase(sampling)) {
+        return Sampler.reservoir(sampleSize == null ? DEFAULT_SAMPLE_SIZE : sampleSize, seed);
+      }
+      return null;
+    }
+
+    void validate(FailureCollector collector) {
       if (numPartitions != null && numPartitions < 1) {
         collector.addFailure("Invalid number of partitions: '" + numPartitions + "'. Must be at least 1.", null)
           .withConfigProperty(NUM_PARTITIONS);
       }
+      if (quantileAccuracy != null && quantileAccuracy < QuantileSketch.MIN_K) {
+        collector.addFailure("Invalid quantile accuracy: '" + quantileAccuracy + "'.",
+                             "Must be at least " + QuantileSketch.MIN_K + ".")
+          .withConfigProperty(QUANTILE_ACCURACY);
+      }
+      if (uniquesPrecision != null
+        && (uniquesPrecision < HllSketch.MIN_PRECISION || uniquesPrecision > HllSketch.MAX_PRECISION)) {
+        collector.addFailure("Invalid uniques precision: '" + uniquesPrecision + "'.",
+                             "Must be between " + HllSketch.MIN_PRECISION + " and " + HllSketch.MAX_PRECISION + ".")
+          .withConfigProperty(UNIQUES_PRECISION);
+      }
+      if (storage != null && !HEAP.equalsIgnoreCase(storage) && !isOffHeap()) {
+        collector.addFailure("Invalid storage: '" + storage + "'.", "Must be 'heap' or 'offheap'.")
+          .withConfigProperty(STORAGE);
+      }
+      if (topK != null && topK < 1) {
+        collector.addFailure("Invalid top k: '" + topK + "'.", "Must be at least 1.")
+          .withConfigProperty(TOP_K);
+      }
+      if (topKError != null && (topKError <= 0 || topKError >= 1)) {
+        collector.addFailure("Invalid top k error: '" + topKError + "'.", "Must be between 0 and 1.")
+          .withConfigProperty(TOP_K_ERROR);
+      }
+      if (sampling != null && !NONE.equalsIgnoreCase(sampling) && !isSampled()) {
+        collector.addFailure("Invalid sampling: '" + sampling + "'.", "Must be 'none', 'bernoulli' or 'reservoir'.")
+          .withConfigProperty(SAMPLING);
+      }
+      if (samplingRate != null && (samplingRate <= 0 || samplingRate > 1)) {
+        collector.addFailure("Invalid sampling rate: '" + samplingRate + "'.", "Must be between 0 and 1.")
+          .withConfigProperty(SAMPLING_RATE);
+      }
+      if (sampleSize != null && sampleSize < 1) {
+        collector.addFailure("Invalid sample size: '" + sampleSize + "'.", "Must be at least 1.")
+          .withConfigProperty(SAMPLE_SIZE);
+      }
+      if (memoryBudget != null && memoryBudget < 1) {
+        collector.addFailure("Invalid memory budget: '" + memoryBudget + "'.", "Must be at least 1 megabyte.")
+          .withConfigProperty(MEMORY_BUDGET);
+      }
+      if (isSharded()) {
+        validateShards(collector);
+      }
+    }
+
+    private void validateShards(FailureCollector collector) {
+      if (!AUTO.equalsIgnoreCase(shards)) {
+        Integer count = Ints.tryParse(shards);
+        if (count == null || count < 1) {
+          collector.addFailure("Invalid shards: '" + shards + "'.", "Must be 'auto' or at least 1.")
+            .withConfigProperty(SHARDS);
+        }
+      }
+      if (RESERVOIR.equalsIgnoreCase(sampling)) {
+        collector.addFailure("Reservoir sampling cannot be used with shards, since every shard would keep its own " +
+                               "sample.", "Use the 'bernoulli' sampling.")
+          .withConfigProperty(SAMPLING).withConfigProperty(SHARDS);
+      }
+      if (isPersisted()) {
+        collector.addFailure("The profile states of sharded fields cannot be kept between runs.",
+                             "Set the state path on the Data Profile Merger stage instead.")
+          .withConfigProperty(STATE_PATH).withConfigProperty(SHARDS);
+      }
     }
   }
 }
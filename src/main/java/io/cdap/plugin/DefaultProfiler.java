@@ -19,6 +19,7 @@ package io.cdap.plugin;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 
+import javax.annotation.Nullable;
 import java.util.List;
 
 /**
@@ -30,26 +31,66 @@ public class DefaultProfiler extends Profiler {
     super(profiles, schema);
   }
 
+  public DefaultProfiler(List<Profile> profiles, Schema schema, boolean sampled) {
+    super(profiles, schema, sampled);
+  }
+
+  /**
+   * Updates the states of a field with a value, within the memory budget of the profiler if any. The value of a
+   * record, array or map field updates the states of its leaves, whose results are named by their path, see
+   * <code>NestedField</code>.
+   *
+   * @param name of the field.
+   * @param value of the field, can be null.
+   */
   @Override
   public void update(String name, Object value) {
-    List<Profile> profiles = getProfiles(name);
-    for(Profile profile : profiles) {
-      profile.update(value);
+    FieldPlan plan = getPlan(name);
+    if (plan != null) {
+      plan.update(value, getStates(name));
+      checkBudget();
+      return;
+    }
+    NestedField nested = getNested(name);
+    if (nested != null) {
+      nested.update(value, getStates(nested), 0);
+      checkBudget();
     }
   }
 
   @Override
   public StructuredRecord result(String name) {
+    return result(name, getStates(name));
+  }
+
+  /**
+   * Generates the result of a field from the given states.
+   *
+   * @param name of the field.
+   * @param states of the profiles of the field, in the order of the profiles.
+   * @return record with the results of all the profiles.
+   */
+  public StructuredRecord result(String name, ProfileState[] states) {
+    return result(name, states, null);
+  }
+
+  /**
+   * Generates the result of a field from the given states, computed from a sample of the values.
+   *
+   * @param name of the field.
+   * @param states of the profiles of the field, in the order of the profiles.
+   * @param sampler that chose the values that were profiled, or null if every value was profiled.
+   * @return record with the results of all the profiles and the description of the sample.
+   */
+  StructuredRecord result(String name, ProfileState[] states, @Nullable Sampler<?> sampler) {
     StructuredRecord.Builder builder = StructuredRecord.builder(getOutputSchema());
     builder.set("name", name);
-    for (Profile profile : getProfiles(name)) {
-      StructuredRecord record = profile.results(
-        Schema.recordOf(
-          profile.name(),
-          profile.fields()
-        )
-      );
-      builder.set(profile.name(), record);
+    FieldPlan plan = getPlan(name);
+    if (plan != null) {
+      plan.results(builder, states);
+    }
+    if (sampler != null && isSampled()) {
+      builder.set(SAMPLE, sample(name, sampler));
     }
     return builder.build();
   }
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.schema.Schema;
+
+/**
+ * This class <code>Dispatcher</code> hands the values of a field to the typed update methods
+ * of its profile states. The dispatcher is chosen once per field from the input schema, so
+ * every value is unboxed once and the states don't have to test its type.
+ */
+enum Dispatcher {
+  INTEGRAL {
+    @Override
+    void dispatch(Object value, ProfileState[] states) {
+      long val = ((Number) value).longValue();
+      for (int i = 0; i < states.length; i++) {
+        states[i].update(val);
+      }
+    }
+  },
+  FLOATING {
+    @Override
+    void dispatch(Object value, ProfileState[] states) {
+      double val = ((Number) value).doubleValue();
+      for (int i = 0; i < states.length; i++) {
+        states[i].update(val);
+      }
+    }
+  },
+  BOOLEAN {
+    @Override
+    void dispatch(Object value, ProfileState[] states) {
+      boolean val = (Boolean) value;
+      for (int i = 0; i < states.length; i++) {
+        states[i].update(val);
+      }
+    }
+  },
+  STRING {
+    @Override
+    void dispatch(Object value, ProfileState[] states) {
+      CharSequence val = (CharSequence) value;
+      for (int i = 0; i < states.length; i++) {
+        states[i].update(val);
+      }
+    }
+  },
+  OBJECT {
+    @Override
+    void dispatch(Object value, ProfileState[] states) {
+      for (int i = 0; i < states.length; i++) {
+        states[i].update(value);
+      }
+    }
+  };
+
+  /**
+   * Updates the states with a value of the field.
+   *
+   * @param value to be profiled, can be null.
+   * @param states of the profiles of the field.
+   */
+  void update(Object value, ProfileState[] states) {
+    if (value == null) {
+      for (int i = 0; i < states.length; i++) {
+        states[i].updateNull();
+      }
+    } else {
+      dispatch(value, states);
+    }
+  }
+
+  abstract void dispatch(Object value, ProfileState[] states);
+
+  /**
+   * Chooses the dispatcher of a field.
+   *
+   * @param schema of the field.
+   * @return dispatcher for the values of the field.
+   */
+  static Dispatcher of(Schema schema) {
+    Schema.Type type = schema.isNullable() ? schema.getNonNullable().getType() : schema.getType();
+    switch (type) {
+      case INT:
+      case LONG:
+        return INTEGRAL;
+      case FLOAT:
+      case DOUBLE:
+        return FLOATING;
+      case BOOLEAN:
+        return BOOLEAN;
+      case STRING:
+        return STRING;
+      default:
+        return OBJECT;
+    }
+  }
+}
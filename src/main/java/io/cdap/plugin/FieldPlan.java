@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class <code>FieldPlan</code> is the profiling plan of a field, compiled once from the input
+ * schema when the profiler is created: the unwrapped type of the field, its profiles,
+ * the dispatcher of its values and the output schema of every profile. Profiling a value or
+ * generating the results of a field then needs no lookup by name and no schema to be built.
+ */
+final class FieldPlan {
+  private final String name;
+  private final Schema.Type type;
+  private final List<Profile> profiles;
+  private final String[] profileNames;
+  // Output schema of every profile, in the order of the profiles.
+  private final Schema[] schemas;
+  private final Dispatcher dispatcher;
+  private final List<String> sampledProfiles;
+
+  /**
+   * @param field of the input schema.
+   * @param profiles applicable to the field.
+   * @param output schema of the profiler, holding the output schema of every profile.
+   */
+  FieldPlan(Schema.Field field, List<Profile> profiles, Schema output) {
+    this(field.getName(), field.getSchema(), profiles, output);
+  }
+
+  /**
+   * @param name of the field, or path of a leaf of a nested field.
+   * @param schema of the field, which is simple or nullable simple.
+   * @param profiles applicable to the field, which are bound to its schema.
+   * @param output schema of the profiler, holding the output schema of every profile.
+   */
+  FieldPlan(String name, Schema schema, List<Profile> profiles, Schema output) {
+    if (schema.isNullable()) {
+      schema = schema.getNonNullable();
+    }
+    this.name = name;
+    this.type = schema.getType();
+    List<Profile> bound = new ArrayList<>();
+    for (Profile profile : profiles) {
+      bound.add(profile.forSchema(schema));
+    }
+    this.profiles = Collections.unmodifiableList(bound);
+    this.profileNames = new String[profiles.size()];
+    this.schemas = new Schema[profiles.size()];
+    this.dispatcher = Dispatcher.of(schema);
+    List<String> sampled = new ArrayList<>();
+    for (int i = 0; i < profileNames.length; i++) {
+      Profile profile = profiles.get(i);
+      profileNames[i] = profile.name();
+      schemas[i] = output.getField(profile.name()).getSchema().getNonNullable();
+      if (profile.isSampled()) {
+        sampled.add(profile.name());
+      }
+    }
+    this.sampledProfiles = Collections.unmodifiableList(sampled);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  Schema.Type getType() {
+    return type;
+  }
+
+  List<Profile> getProfiles() {
+    return profiles;
+  }
+
+  Dispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * @return names of the profiles of the field that only see the sampled values.
+   */
+  List<String> getSampledProfiles() {
+    return sampledProfiles;
+  }
+
+  /**
+   * Creates the states of the field, which only count the nulls and the values of the field until it
+   * has different values, see <code>LazyState</code>.
+   *
+   * @return new empty states of the profiles of the field, in the order of the profiles.
+   */
+  ProfileState[] newStates() {
+    ProfileState[] states = new ProfileState[profileNames.length];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = new LazyState(profiles.get(i));
+    }
+    return states;
+  }
+
+  /**
+   * Creates a block buffering the values of the field, so that they are profiled in batches.
+   *
+   * @return a block, or null if the values of the field are not numbers and are profiled one by one.
+   */
+  @Nullable
+  ColumnBlock newBatch() {
+    switch (type) {
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return ColumnBlock.of(type);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Updates the states of the field with a value.
+   *
+   * @param value to be profiled, can be null.
+   * @param states of the field.
+   */
+  void update(Object value, ProfileState[] states) {
+    dispatcher.update(value, states);
+  }
+
+  /**
+   * Sets the results of every profile of the field.
+   *
+   * @param builder of the output record of the field.
+   * @param states of the field.
+   */
+  void results(StructuredRecord.Builder builder, ProfileState[] states) {
+    for (int i = 0; i < states.length; i++) {
+      builder.set(profileNames[i], states[i].results(schemas[i]));
+    }
+  }
+}
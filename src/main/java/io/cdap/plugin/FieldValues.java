@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * This class <code>FieldValues</code> holds the values of a single field taken out of a partial profile,
+ * packed in a <code>ColumnBlock</code>, along with the states of the field. It is shuffled on its own under
+ * the position of the field, so every field is profiled by its own task, see <code>SparkDataProfiler</code>.
+ *
+ * The parts of a field are merged by profiling their values into the states of the first part. The states
+ * are serialized in the binary form of the partial profiles, see <code>LazyState</code>.
+ */
+final class FieldValues implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String name;
+  private final Profile[] profiles;
+  @Nullable
+  private ColumnBlock block;
+  private transient ProfileState[] states;
+
+  /**
+   * @param name of the field, or path of the leaf.
+   * @param profiles of the field, which create the states when the values are deserialized.
+   * @param block of values of the field not profiled yet, or null if they were all profiled.
+   * @param states of the profiles of the field.
+   */
+  FieldValues(String name, Profile[] profiles, @Nullable ColumnBlock block, ProfileState[] states) {
+    this.name = name;
+    this.profiles = profiles;
+    this.block = block;
+    this.states = states;
+  }
+
+  /**
+   * @return name of the field, or path of the leaf.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Profiles the values of another part of the field into the states of this one, and merges its states.
+   * The other part is released.
+   *
+   * @param other part of the same field.
+   * @return this part.
+   */
+  FieldValues merge(FieldValues other) {
+    ProfileState[] fieldStates = getStates();
+    if (other.block != null) {
+      other.block.replay(fieldStates);
+    }
+    for (int i = 0; i < fieldStates.length; i++) {
+      fieldStates[i].merge(other.states[i]);
+    }
+    other.release();
+    return this;
+  }
+
+  /**
+   * Returns the states of the field, once its values are profiled.
+   *
+   * @return states of the profiles of the field.
+   */
+  ProfileState[] getStates() {
+    if (block != null) {
+      block.replay(states);
+      block = null;
+    }
+    return states;
+  }
+
+  /**
+   * Releases the memory held out of the heap by the states, once their results were built or once they
+   * were merged into another part.
+   */
+  void release() {
+    for (ProfileState state : states) {
+      state.release();
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    StateOutput output = new StateOutput();
+    for (ProfileState state : states) {
+      ((LazyState) state).writePartial(output);
+    }
+    out.writeInt(output.size());
+    out.write(output.toByteArray());
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    StateInput input = new StateInput(ByteBuffer.wrap(bytes));
+    states = new ProfileState[profiles.length];
+    for (int i = 0; i < states.length; i++) {
+      LazyState state = new LazyState(profiles[i]);
+      state.mergePartial(input);
+      states[i] = state;
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+
+import javax.annotation.Nullable;
+
+/**
+ * This class <code>LazyState</code> is the state of a profile for a field that is created on demand.
+ * Until the field has two different non-null values, only the number of nulls and the number of
+ * occurrences of its single value are counted, in a few words of memory, including the values left out
+ * of the sample. The state of the profile is only created once the field turns out to have different
+ * values, or when its binary form or its results are needed, and the counted values are then replayed
+ * into it.
+ *
+ * Columns that are mostly or entirely null, or constant, so never allocate the sketches, buffers and
+ * histograms of their profiles while they are profiled. The counted values are replayed with the weighted
+ * updates of the state, so replaying costs the same whatever the number of occurrences. It gives the same
+ * state as profiling the values as they came, except that the nulls are profiled before the value.
+ */
+final class LazyState extends ProfileState {
+  private static final long serialVersionUID = 1L;
+
+  // Estimated number of bytes of the counters.
+  static final long SIZE = 64;
+  private static final int NONE = 0;
+  private static final int LONG = 1;
+  private static final int DOUBLE = 2;
+  private static final int BOOLEAN = 3;
+  private static final int CHARS = 4;
+  private static final int OBJECT = 5;
+  // Binary forms of the state in a partial profile.
+  private static final int COUNTERS = 0;
+  private static final int STATE = 1;
+
+  private final Profile profile;
+  @Nullable
+  private ProfileState state;
+  private long nulls;
+  private long skippedNulls;
+  private long count;
+  private long skipped;
+  // Type and value of the single non-null value, the bits of primitive values or the value itself.
+  private int kind;
+  private long bits;
+  @Nullable
+  private Object value;
+
+  LazyState(Profile profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * @return profile whose state is created on demand.
+   */
+  Profile getProfile() {
+    return profile;
+  }
+
+  /**
+   * @return true if the state of the profile was created.
+   */
+  boolean isPromoted() {
+    return state != null;
+  }
+
+  @Override
+  public void update(Object value) {
+    if (value == null) {
+      updateNull();
+    } else if (state == null && same(OBJECT, 0, value)) {
+      count++;
+    } else {
+      promote().update(value);
+    }
+  }
+
+  @Override
+  public void updateNull() {
+    if (state == null) {
+      nulls++;
+    } else {
+      state.updateNull();
+    }
+  }
+
+  @Override
+  public void update(long value) {
+    if (state == null && same(LONG, value, null)) {
+      count++;
+    } else {
+      promote().update(value);
+    }
+  }
+
+  @Override
+  public void update(double value) {
+    if (state == null && same(DOUBLE, Double.doubleToRawLongBits(value), null)) {
+      count++;
+    } else {
+      promote().update(value);
+    }
+  }
+
+  @Override
+  public void update(boolean value) {
+    if (state == null && same(BOOLEAN, value ? 1 : 0, null)) {
+      count++;
+    } else {
+      promote().update(value);
+    }
+  }
+
+  @Override
+  public void update(CharSequence value) {
+    if (state == null && same(CHARS, 0, value)) {
+      count++;
+    } else {
+      promote().update(value);
+    }
+  }
+
+  @Override
+  public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+    if (state != null) {
+      state.updateBatch(values, nulls, n);
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      if (state != null) {
+        if (isNull(nulls, i)) {
+          state.updateNull();
+        } else {
+          state.update(values[i]);
+        }
+      } else if (isNull(nulls, i)) {
+        this.nulls++;
+      } else {
+        update(values[i]);
+      }
+    }
+  }
+
+  @Override
+  public void updateBatch(double[] values, @Nullable long[] nulls, int n) {
+    if (state != null) {
+      state.updateBatch(values, nulls, n);
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      if (state != null) {
+        if (isNull(nulls, i)) {
+          state.updateNull();
+        } else {
+          state.update(values[i]);
+        }
+      } else if (isNull(nulls, i)) {
+        this.nulls++;
+      } else {
+        update(values[i]);
+      }
+    }
+  }
+
+  @Override
+  public void skip(Object value) {
+    if (state != null) {
+      state.skip(value);
+    } else if (value == null) {
+      skippedNulls++;
+    } else if (same(value)) {
+      skipped++;
+    } else {
+      promote().skip(value);
+    }
+  }
+
+  @Override
+  public void merge(ProfileState other) {
+    LazyState lazy = (LazyState) other;
+    if (lazy.state != null) {
+      promote().merge(lazy.state);
+    } else if (state == null && (lazy.kind == NONE || same(lazy.kind, lazy.bits, lazy.value))) {
+      nulls += lazy.nulls;
+      skippedNulls += lazy.skippedNulls;
+      count += lazy.count;
+      skipped += lazy.skipped;
+    } else {
+      lazy.replay(promote());
+    }
+  }
+
+  @Override
+  public void write(StateOutput out) {
+    promote().write(out);
+  }
+
+  @Override
+  public void merge(StateInput in) {
+    promote().merge(in);
+  }
+
+  /**
+   * Writes the binary form of the state within a partial profile, which is only the counters while the
+   * state of the profile was not created. Counted values that are neither primitives nor strings are
+   * written as the binary form of the state of the profile.
+   *
+   * @param out to write the state to.
+   */
+  void writePartial(StateOutput out) {
+    if (state != null || kind == OBJECT) {
+      out.writeByte(STATE);
+      out.writeBytes(serialize());
+      return;
+    }
+    out.writeByte(COUNTERS);
+    out.writeVarLong(nulls);
+    out.writeVarLong(skippedNulls);
+    out.writeVarLong(count);
+    out.writeVarLong(skipped);
+    out.writeByte(kind);
+    if (kind == CHARS) {
+      out.writeString((String) value);
+    } else if (kind != NONE) {
+      out.writeSignedVarLong(bits);
+    }
+  }
+
+  /**
+   * Merges a state written by <code>writePartial</code> into this one.
+   *
+   * @param in to read the state from.
+   */
+  void mergePartial(StateInput in) {
+    if (in.readByte() == STATE) {
+      merge(in.readBytes());
+      return;
+    }
+    LazyState other = new LazyState(profile);
+    other.nulls = in.readVarLong();
+    other.skippedNulls = in.readVarLong();
+    other.count = in.readVarLong();
+    other.skipped = in.readVarLong();
+    other.kind = in.readByte();
+    if (other.kind == CHARS) {
+      other.value = in.readString();
+    } else if (other.kind != NONE) {
+      other.bits = in.readSignedVarLong();
+    }
+    merge(other);
+  }
+
+  @Override
+  public long estimateSize() {
+    return state == null ? SIZE : state.estimateSize();
+  }
+
+  @Override
+  public boolean shrink() {
+    return state != null && state.shrink();
+  }
+
+  @Override
+  public void release() {
+    if (state != null) {
+      state.release();
+    }
+  }
+
+  @Override
+  public void results(StructuredRecord.Builder builder) {
+    promote().results(builder);
+  }
+
+  // Tells whether a value is the single value of the field, which it becomes if the field had none.
+  private boolean same(int kind, long bits, @Nullable Object value) {
+    if (this.kind == NONE) {
+      this.kind = kind;
+      this.bits = bits;
+      this.value = kind == CHARS ? value.toString() : value;
+      return true;
+    }
+    if (this.kind != kind || this.bits != bits) {
+      return false;
+    }
+    if (kind == CHARS) {
+      return ((String) this.value).contentEquals((CharSequence) value);
+    }
+    return kind != OBJECT || this.value.equals(value);
+  }
+
+  // Tells whether a value left out of the sample, given as an object, is the single value of the field,
+  // typed like the values of the field are typed when they are profiled.
+  private boolean same(Object value) {
+    if (value instanceof Long || value instanceof Integer) {
+      return same(LONG, ((Number) value).longValue(), null);
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return same(DOUBLE, Double.doubleToRawLongBits(((Number) value).doubleValue()), null);
+    }
+    if (value instanceof Boolean) {
+      return same(BOOLEAN, (Boolean) value ? 1 : 0, null);
+    }
+    if (value instanceof CharSequence) {
+      return same(CHARS, 0, value);
+    }
+    return same(OBJECT, 0, value);
+  }
+
+  private ProfileState promote() {
+    if (state == null) {
+      state = profile.newState();
+      replay(state);
+      value = null;
+    }
+    return state;
+  }
+
+  // Profiles the counted nulls and values into the state of the profile.
+  private void replay(ProfileState target) {
+    if (skippedNulls > 0) {
+      target.skip(null, skippedNulls);
+    }
+    if (nulls > 0) {
+      target.updateNull(nulls);
+    }
+    if (count > 0) {
+      switch (kind) {
+        case LONG:
+          target.update(bits, count);
+          break;
+        case DOUBLE:
+          target.update(Double.longBitsToDouble(bits), count);
+          break;
+        case BOOLEAN:
+          target.update(bits != 0, count);
+          break;
+        case CHARS:
+          target.update((CharSequence) value, count);
+          break;
+        default:
+          target.update(value, count);
+      }
+    }
+    if (skipped > 0) {
+      target.skip(box(), skipped);
+    }
+  }
+
+  // The single value as an object, as values left out of the sample are given.
+  private Object box() {
+    switch (kind) {
+      case LONG:
+        return bits;
+      case DOUBLE:
+        return Double.longBitsToDouble(bits);
+      case BOOLEAN:
+        return bits != 0;
+      default:
+        return value;
+    }
+  }
+}
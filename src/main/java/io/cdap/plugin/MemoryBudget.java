@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class <code>MemoryBudget</code> bounds the memory used by the states of a profiler.
+ *
+ * The states are checked every few values, from the sizes they estimate in constant time. Once they are
+ * over the budget, the biggest states are shrunk a step at a time, see <code>ProfileState.shrink</code>,
+ * until they fit or none of them can be shrunk anymore. Shrunk states give up accuracy for memory, so the
+ * results of their fields are less accurate than the configuration asks for.
+ */
+final class MemoryBudget implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Number of values profiled between two checks of the budget.
+  static final int CHECK_PERIOD = 1024;
+
+  private final long bytes;
+  private transient int unchecked;
+
+  /**
+   * @param bytes maximum estimated size of the states.
+   */
+  MemoryBudget(long bytes) {
+    if (bytes < 1) {
+      throw new IllegalArgumentException("Memory budget must be positive, but was " + bytes + ".");
+    }
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return maximum estimated size of the states, in bytes.
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Counts a profiled value.
+   *
+   * @return true once every <code>CHECK_PERIOD</code> values, when the states should be checked.
+   */
+  boolean tick() {
+    if (++unchecked < CHECK_PERIOD) {
+      return false;
+    }
+    unchecked = 0;
+    return true;
+  }
+
+  /**
+   * Shrinks the biggest states until the states fit in the budget or can't be shrunk anymore.
+   *
+   * @param states of the profiles of every field.
+   * @param reserved number of bytes used besides the states, like buffered values.
+   * @return estimated size of the states once shrunk, in bytes.
+   */
+  long enforce(Iterable<ProfileState[]> states, long reserved) {
+    final List<ProfileState> all = new ArrayList<>();
+    long total = reserved;
+    for (ProfileState[] fieldStates : states) {
+      for (ProfileState state : fieldStates) {
+        all.add(state);
+        total += state.estimateSize();
+      }
+    }
+    if (total <= bytes) {
+      return total;
+    }
+    final long[] sizes = new long[all.size()];
+    PriorityQueue<Integer> biggest = new PriorityQueue<>(Math.max(1, all.size()), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second) {
+        return Long.compare(sizes[second], sizes[first]);
+      }
+    });
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = all.get(i).estimateSize();
+      biggest.add(i);
+    }
+    while (total > bytes && !biggest.isEmpty()) {
+      int i = biggest.poll();
+      ProfileState state = all.get(i);
+      if (state.shrink()) {
+        long size = state.estimateSize();
+        total += size - sizes[i];
+        sizes[i] = size;
+        biggest.add(i);
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class <code>NestedField</code> profiles a record, array or map field as a set of leaf fields
+ * addressed by their path, compiled once from the schema of the field. The path of a field of a record
+ * is <code>record.field</code>, the path of the elements of an array is <code>array[]</code> and the
+ * paths of the keys and values of a map are <code>map{key}</code> and <code>map{value}</code>, so the
+ * values of <code>a.b[].c</code> are the <code>c</code> fields of all the elements of the <code>b</code>
+ * arrays. The number of elements of every array and map is profiled as a long leaf, <code>array#size</code>.
+ *
+ * Every value is walked once down the tree of the schema, each leaf value being handed to the
+ * dispatcher of its leaf, so no flattened record or list of values is built. A null record counts as a
+ * null for every leaf below it that isn't in an array or a map, and a null array or map counts as a
+ * null size.
+ */
+final class NestedField implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final String SIZE = "#size";
+
+  private final String name;
+  private final Node root;
+  // Plans of the leaves, in the order of the schema, each array or map size before its elements. Only the
+  // nodes are needed to profile the values, so the plans are not shipped with the partial profiles.
+  private final transient FieldPlan[] leaves;
+  private final int size;
+
+  private NestedField(String name, Node root, List<FieldPlan> leaves) {
+    this.name = name;
+    this.root = root;
+    this.leaves = leaves.toArray(new FieldPlan[0]);
+    this.size = this.leaves.length;
+  }
+
+  /**
+   * Compiles the paths of a field.
+   *
+   * @param field of the input schema, which is a record, an array or a map.
+   * @param types profiles applicable to every type, by name of the type.
+   * @param output schema of the profiler, holding the output schema of every profile.
+   * @return the nested field, or null if none of its leaves has profiles.
+   */
+  @Nullable
+  static NestedField of(Schema.Field field, Map<String, List<Profile>> types, Schema output) {
+    List<FieldPlan> leaves = new ArrayList<>();
+    Node root = compile(field.getName(), field.getSchema(), types, output, leaves);
+    return root == null ? null : new NestedField(field.getName(), root, leaves);
+  }
+
+  @Nullable
+  private static Node compile(String path, Schema schema, Map<String, List<Profile>> types, Schema output,
+                              List<FieldPlan> leaves) {
+    if (schema.isNullable()) {
+      schema = schema.getNonNullable();
+    }
+    switch (schema.getType()) {
+      case RECORD: {
+        List<String> names = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        for (Schema.Field field : schema.getFields()) {
+          Node child = compile(path + "." + field.getName(), field.getSchema(), types, output, leaves);
+          if (child != null) {
+            names.add(field.getName());
+            children.add(child);
+          }
+        }
+        return children.isEmpty() ? null
+          : new RecordNode(names.toArray(new String[0]), children.toArray(new Node[0]));
+      }
+      case ARRAY: {
+        int size = leaf(path + SIZE, Schema.of(Schema.Type.LONG), types, output, leaves);
+        Node element = compile(path + "[]", schema.getComponentSchema(), types, output, leaves);
+        return size < 0 && element == null ? null : new ArrayNode(size, element);
+      }
+      case MAP: {
+        int size = leaf(path + SIZE, Schema.of(Schema.Type.LONG), types, output, leaves);
+        Map.Entry<Schema, Schema> entry = schema.getMapSchema();
+        Node key = compile(path + "{key}", entry.getKey(), types, output, leaves);
+        Node value = compile(path + "{value}", entry.getValue(), types, output, leaves);
+        return size < 0 && key == null && value == null ? null : new MapNode(size, key, value);
+      }
+      case UNION:
+        // Only nullable unions are profiled.
+        return null;
+      default:
+        int index = leaf(path, schema, types, output, leaves);
+        return index < 0 ? null : new LeafNode(index, Dispatcher.of(schema));
+    }
+  }
+
+  private static int leaf(String path, Schema schema, Map<String, List<Profile>> types, Schema output,
+                          List<FieldPlan> leaves) {
+    List<Profile> profiles = Profiler.getProfiles(types, schema);
+    if (profiles == null) {
+      return -1;
+    }
+    leaves.add(new FieldPlan(path, schema, profiles, output));
+    return leaves.size() - 1;
+  }
+
+  /**
+   * @return name of the field in the input schema.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @return number of leaves of the field.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return plans of the leaves of the field, named by their path.
+   */
+  FieldPlan[] getLeaves() {
+    return leaves;
+  }
+
+  /**
+   * @return new empty states of every leaf, in the order of the leaves.
+   */
+  ProfileState[][] newStates() {
+    ProfileState[][] states = new ProfileState[leaves.length][];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = leaves[i].newStates();
+    }
+    return states;
+  }
+
+  /**
+   * Updates the states of the leaves with a value of the field.
+   *
+   * @param value of the field, can be null.
+   * @param states of the leaves, the states of the leaf i being at offset + i.
+   * @param offset of the states of the first leaf.
+   */
+  void update(@Nullable Object value, ProfileState[][] states, int offset) {
+    root.visit(value, states, offset, true);
+  }
+
+  /**
+   * Updates the exact counters of the states of the leaves with a value left out of the sample.
+   *
+   * @param value of the field, can be null.
+   * @param states of the leaves, the states of the leaf i being at offset + i.
+   * @param offset of the states of the first leaf.
+   */
+  void skip(@Nullable Object value, ProfileState[][] states, int offset) {
+    root.visit(value, states, offset, false);
+  }
+
+  /**
+   * Node of the schema of the field, visited by every value.
+   */
+  private abstract static class Node implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    abstract void visit(@Nullable Object value, ProfileState[][] states, int offset, boolean sampled);
+  }
+
+  private static final class LeafNode extends Node {
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final Dispatcher dispatcher;
+
+    LeafNode(int index, Dispatcher dispatcher) {
+      this.index = index;
+      this.dispatcher = dispatcher;
+    }
+
+    @Override
+    void visit(@Nullable Object value, ProfileState[][] states, int offset, boolean sampled) {
+      ProfileState[] leafStates = states[offset + index];
+      if (sampled) {
+        dispatcher.update(value, leafStates);
+      } else {
+        for (int i = 0; i < leafStates.length; i++) {
+          leafStates[i].skip(value);
+        }
+      }
+    }
+  }
+
+  private static final class RecordNode extends Node {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] names;
+    private final Node[] children;
+
+    RecordNode(String[] names, Node[] children) {
+      this.names = names;
+      this.children = children;
+    }
+
+    @Override
+    void visit(@Nullable Object value, ProfileState[][] states, int offset, boolean sampled) {
+      StructuredRecord record = (StructuredRecord) value;
+      for (int i = 0; i < children.length; i++) {
+        children[i].visit(record == null ? null : record.get(names[i]), states, offset, sampled);
+      }
+    }
+  }
+
+  private abstract static class RepeatedNode extends Node {
+    private static final long serialVersionUID = 1L;
+
+    // Index of the size leaf, or -1 if sizes have no profiles.
+    private final int size;
+
+    RepeatedNode(int size) {
+      this.size = size;
+    }
+
+    void visitSize(@Nullable Object value, int length, ProfileState[][] states, int offset, boolean sampled) {
+      if (size < 0) {
+        return;
+      }
+      ProfileState[] sizeStates = states[offset + size];
+      for (int i = 0; i < sizeStates.length; i++) {
+        if (!sampled) {
+          sizeStates[i].skip(value == null ? null : (long) length);
+        } else if (value == null) {
+          sizeStates[i].updateNull();
+        } else {
+          sizeStates[i].update((long) length);
+        }
+      }
+    }
+  }
+
+  private static final class ArrayNode extends RepeatedNode {
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final Node element;
+
+    ArrayNode(int size, @Nullable Node element) {
+      super(size);
+      this.element = element;
+    }
+
+    @Override
+    void visit(@Nullable Object value, ProfileState[][] states, int offset, boolean sampled) {
+      if (value instanceof Collection) {
+        Collection<?> elements = (Collection<?>) value;
+        visitSize(value, elements.size(), states, offset, sampled);
+        if (element != null) {
+          for (Object item : elements) {
+            element.visit(item, states, offset, sampled);
+          }
+        }
+      } else if (value != null) {
+        int length = Array.getLength(value);
+        visitSize(value, length, states, offset, sampled);
+        if (element != null) {
+          for (int i = 0; i < length; i++) {
+            element.visit(Array.get(value, i), states, offset, sampled);
+          }
+        }
+      } else {
+        visitSize(null, 0, states, offset, sampled);
+      }
+    }
+  }
+
+  private static final class MapNode extends RepeatedNode {
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final Node key;
+    @Nullable
+    private final Node value;
+
+    MapNode(int size, @Nullable Node key, @Nullable Node value) {
+      super(size);
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    void visit(@Nullable Object map, ProfileState[][] states, int offset, boolean sampled) {
+      if (map == null) {
+        visitSize(null, 0, states, offset, sampled);
+        return;
+      }
+      Map<?, ?> entries = (Map<?, ?>) map;
+      visitSize(map, entries.size(), states, offset, sampled);
+      if (key == null && value == null) {
+        return;
+      }
+      for (Map.Entry<?, ?> entry : entries.entrySet()) {
+        if (key != null) {
+          key.visit(entry.getKey(), states, offset, sampled);
+        }
+        if (value != null) {
+          value.visit(entry.getValue(), states, offset, sampled);
+        }
+      }
+    }
+  }
+}
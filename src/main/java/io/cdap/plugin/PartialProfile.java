@@ -0,0 +1,347 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class <code>PartialProfile</code> holds the states of the profiles of every field
+ * for a part of the records. Partial profiles are built before the shuffle and merged
+ * with each other, so only the profile states are shuffled instead of the records.
+ *
+ * The states are kept in an array of slots, one per field in the order of the input schema,
+ * so every record is profiled in a single sequential walk over its fields and a partition
+ * produces a single bundle holding the states of all its fields. Record, array and map fields
+ * take one slot per leaf, named by its path, see <code>NestedField</code>.
+ *
+ * When the values are projected, the values of every field are buffered in a
+ * <code>ColumnBlock</code> instead and only profiled once all the partial profiles are
+ * merged, or once they are taken out to be shuffled on their own, see <code>FieldValues</code>.
+ * Fields whose values can't be packed in a block are profiled right away.
+ *
+ * When the records are sampled, only the records chosen by the <code>Sampler</code> are fully
+ * profiled, the other records only update the exact counters of the states.
+ *
+ * When a memory budget is set, the size of the blocks and the states is checked every few records and
+ * after every merge, see <code>MemoryBudget</code>. Once the budget is exceeded, the blocks are profiled
+ * right away into the states, and the next values of the fields are profiled as they come. The results
+ * are then estimated by merging sketches, instead of being exactly those of the Data Profiler. If the
+ * states are still over the budget, the biggest ones are shrunk.
+ *
+ * The states are serialized in their compact binary form, see <code>StateOutput</code>, instead of
+ * as Java objects, and are merged straight from it into new states of the profiles of every field.
+ * States that were not created yet, see <code>LazyState</code>, are serialized as their counters.
+ */
+public final class PartialProfile implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Names of the fields of the input schema, and their first slot.
+  private final String[] fields;
+  private final int[] slots;
+  // Dispatchers of the simple fields, null for the other fields and the fields that have no profiles.
+  private final Dispatcher[] dispatchers;
+  // Paths of the record, array and map fields, null for the other fields.
+  private final NestedField[] nested;
+  // Names of the fields or the paths of the leaves of every slot.
+  private final String[] names;
+  // Profiles of every slot, which create the states when the partial profile is deserialized.
+  private final Profile[][] profiles;
+  private transient ProfileState[][] states;
+  @Nullable
+  private final ColumnBlock[] columns;
+  @Nullable
+  private final Sampler<StructuredRecord> sampler;
+  private boolean flushed;
+  private transient Sampler.Sink<StructuredRecord> sink;
+  @Nullable
+  private MemoryBudget budget;
+
+  PartialProfile(String[] fields, int[] slots, Dispatcher[] dispatchers, NestedField[] nested,
+                 String[] names, Profile[][] profiles, ProfileState[][] states,
+                 @Nullable ColumnBlock[] columns, @Nullable Sampler<StructuredRecord> sampler) {
+    this.fields = fields;
+    this.slots = slots;
+    this.dispatchers = dispatchers;
+    this.nested = nested;
+    this.names = names;
+    this.profiles = profiles;
+    this.states = states;
+    this.columns = columns;
+    this.sampler = sampler;
+  }
+
+  /**
+   * Updates the states of every field with the values of the record.
+   *
+   * @param record to be profiled.
+   */
+  public void update(StructuredRecord record) {
+    if (sampler == null) {
+      profile(record);
+    } else {
+      sampler.offer(record, getSink());
+    }
+    if (budget != null && budget.tick()) {
+      checkBudget();
+    }
+  }
+
+  /**
+   * Bounds the memory used by the blocks of values and the states of the partial profile, see the
+   * class description.
+   *
+   * @param bytes maximum estimated size of the partial profile, or 0 if its size is not bounded.
+   */
+  void setMemoryBudget(long bytes) {
+    budget = bytes > 0 ? new MemoryBudget(bytes) : null;
+  }
+
+  /**
+   * @return estimated number of bytes used by the states and the blocks of values.
+   */
+  long estimateSize() {
+    long bytes = 0;
+    for (int i = 0; i < states.length; i++) {
+      for (ProfileState state : states[i]) {
+        bytes += state.estimateSize();
+      }
+      if (columns != null && columns[i] != null) {
+        bytes += columns[i].estimateSize();
+      }
+    }
+    return bytes;
+  }
+
+  // Profiles the blocks of values into the states once the budget is exceeded, then shrinks the states.
+  private void checkBudget() {
+    if (estimateSize() <= budget.getBytes()) {
+      return;
+    }
+    if (columns != null) {
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i] != null) {
+          columns[i].replay(states[i]);
+          columns[i] = null;
+        }
+      }
+    }
+    budget.enforce(Arrays.asList(states), 0);
+  }
+
+  private void profile(StructuredRecord record) {
+    for (int i = 0; i < fields.length; i++) {
+      int slot = slots[i];
+      if (nested[i] != null) {
+        nested[i].update(record.get(fields[i]), states, slot);
+      } else if (columns != null && columns[slot] != null) {
+        columns[slot].add(record.get(fields[i]));
+      } else if (dispatchers[i] != null) {
+        dispatchers[i].update(record.get(fields[i]), states[slot]);
+      }
+    }
+  }
+
+  /**
+   * Only updates the exact counters of the states of every field with the values of a record left out of
+   * the sample.
+   *
+   * @param record to be counted.
+   */
+  void skip(StructuredRecord record) {
+    for (int i = 0; i < fields.length; i++) {
+      if (nested[i] != null) {
+        nested[i].skip(record.get(fields[i]), states, slots[i]);
+      } else if (dispatchers[i] != null) {
+        Object value = record.get(fields[i]);
+        ProfileState[] fieldStates = states[slots[i]];
+        for (int j = 0; j < fieldStates.length; j++) {
+          fieldStates[j].skip(value);
+        }
+      }
+    }
+  }
+
+  private Sampler.Sink<StructuredRecord> getSink() {
+    if (sink == null) {
+      sink = new Sampler.Sink<StructuredRecord>() {
+        @Override
+        public void sample(StructuredRecord record) {
+          profile(record);
+        }
+
+        @Override
+        public void skip(StructuredRecord record) {
+          PartialProfile.this.skip(record);
+        }
+      };
+    }
+    return sink;
+  }
+
+  /**
+   * Merges the states of another partial profile of the same schema into this one.
+   *
+   * @param other partial profile to be merged.
+   * @return this partial profile.
+   */
+  public PartialProfile merge(PartialProfile other) {
+    if (sampler != null) {
+      sampler.merge(other.sampler, getSink());
+    }
+    for (int i = 0; i < states.length; i++) {
+      // Either partial profile may have profiled its block already to stay within its budget.
+      if (columns != null && columns[i] != null && other.columns[i] != null) {
+        columns[i].addAll(other.columns[i]);
+      } else if (columns != null && other.columns[i] != null) {
+        other.columns[i].replay(states[i]);
+      }
+      // Projected fields only have the exact counters of the records left out of the sample, if any.
+      ProfileState[] fieldStates = states[i];
+      ProfileState[] otherStates = other.states[i];
+      for (int j = 0; j < fieldStates.length; j++) {
+        fieldStates[j].merge(otherStates[j]);
+      }
+    }
+    if (budget != null) {
+      checkBudget();
+    }
+    return this;
+  }
+
+  /**
+   * Releases the memory held out of the heap by the states of every field, once their results were built
+   * or once they were merged into another partial profile. The partial profile must not be used afterwards.
+   */
+  public void release() {
+    for (ProfileState[] fieldStates : states) {
+      for (ProfileState state : fieldStates) {
+        state.release();
+      }
+    }
+  }
+
+  /**
+   * Takes the values buffered for a slot and its states out of the partial profile, leaving an empty
+   * block and new states in their place, so the values of every field are shuffled on their own.
+   *
+   * @param position of the slot.
+   * @return values and states of the slot.
+   */
+  FieldValues take(int position) {
+    ColumnBlock block = null;
+    if (columns != null && columns[position] != null) {
+      block = ColumnBlock.of(columns[position].getType());
+      block.addAll(columns[position]);
+      columns[position].clear();
+    }
+    FieldValues values = new FieldValues(names[position], profiles[position], block, states[position]);
+    ProfileState[] fieldStates = new ProfileState[profiles[position].length];
+    for (int i = 0; i < fieldStates.length; i++) {
+      fieldStates[i] = new LazyState(profiles[position][i]);
+    }
+    states[position] = fieldStates;
+    return values;
+  }
+
+  /**
+   * @param position of the slot.
+   * @return true if the values of the slot are buffered in a block.
+   */
+  boolean isProjected(int position) {
+    return columns != null && columns[position] != null;
+  }
+
+  /**
+   * @return number of slots, which is the number of fields of the input schema plus the number
+   *         of leaves of its record, array and map fields, minus one for each of these fields.
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * @param position of the slot, which is the position of the field in the input schema as long
+   *                 as no record, array or map field comes before it.
+   * @return name of the field, or path of the leaf.
+   */
+  public String getName(int position) {
+    return names[position];
+  }
+
+  /**
+   * @return sampler choosing the records that are profiled, or null if every record is profiled.
+   */
+  @Nullable
+  Sampler<StructuredRecord> getSampler() {
+    return sampler;
+  }
+
+  /**
+   * Returns the states of a field. If the records are sampled, the records held in the sample are
+   * profiled first, and if the values of the field were projected, they are profiled next.
+   *
+   * @param position of the slot of the field.
+   * @return states of the profiles of the field.
+   */
+  public ProfileState[] getStates(int position) {
+    if (sampler != null && !flushed) {
+      sampler.flush(getSink());
+      flushed = true;
+    }
+    if (columns != null && columns[position] != null) {
+      columns[position].replay(states[position]);
+      columns[position] = null;
+    }
+    return states[position];
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    StateOutput output = new StateOutput();
+    for (ProfileState[] fieldStates : states) {
+      for (ProfileState state : fieldStates) {
+        ((LazyState) state).writePartial(output);
+      }
+    }
+    out.writeInt(output.size());
+    out.write(output.toByteArray());
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    StateInput input = new StateInput(ByteBuffer.wrap(bytes));
+    states = new ProfileState[profiles.length][];
+    for (int i = 0; i < profiles.length; i++) {
+      states[i] = new ProfileState[profiles[i].length];
+      for (int j = 0; j < states[i].length; j++) {
+        LazyState state = new LazyState(profiles[i][j]);
+        state.mergePartial(input);
+        states[i][j] = state;
+      }
+    }
+  }
+}
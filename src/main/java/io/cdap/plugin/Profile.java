@@ -16,44 +16,70 @@
 
 package io.cdap.plugin;
 
-import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 
+import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Class description here.
+ * This class <code>Profile</code> describes a profile: its name, the types of fields it
+ * applies to and the fields of its results. A profile is stateless, the values of every
+ * field are profiled in a <code>ProfileState</code> created by the profile, so the states
+ * of different fields can live side by side and be merged independently.
  */
-public abstract class Profile {
+public abstract class Profile implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private String name;
   public Profile(String name) {
     this.name = name;
   }
 
-  public void initialize() {
-    reset();
+  public abstract List<Schema.Type> types();
+
+  /**
+   * Lists the logical types this profile applies to. A field of a logical type gets the profiles of its
+   * physical type followed by the profiles of its logical type. By default, the profile applies to no
+   * logical type.
+   *
+   * @return logical types of the fields this profile applies to.
+   */
+  public List<Schema.LogicalType> logicalTypes() {
+    return Collections.emptyList();
   }
 
-  public abstract List<Schema.Type> types();
   public String name() {
     return name;
   }
   public abstract List<Schema.Field> fields();
-  public abstract void reset();
-  public abstract void update(Object value);
 
-  public StructuredRecord results(Schema schema) {
-    StructuredRecord.Builder builder = StructuredRecord.builder(schema);
-    results(builder);
-    return builder.build();
+  /**
+   * Tells whether the results of this profile are computed from the sample only, when the records
+   * are sampled. Profiles that are cheap enough to see every value return false.
+   *
+   * @return true if the profile only sees the sampled values.
+   */
+  public boolean isSampled() {
+    return true;
   }
 
-  protected double V(double value) {
-    if(value != value) {
-      return 0;
-    }
-    return value;
-  }
+  /**
+   * Creates an empty state for the values of a single field.
+   *
+   * @return a new state of this profile.
+   */
+  public abstract ProfileState newState();
 
-  public abstract void results(StructuredRecord.Builder builder);
+  /**
+   * Returns the profile applied to a field. Profiles whose states depend on the schema of the field, such as
+   * the unit of its logical type, return a profile of the same name bound to the schema. By default, this
+   * profile is returned.
+   *
+   * @param schema of the field, not nullable.
+   * @return profile creating the states of the field.
+   */
+  public Profile forSchema(Schema schema) {
+    return this;
+  }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.etl.api.StageMetrics;
+
+import java.util.List;
+
+/**
+ * This class <code>ProfileMetrics</code> measures the profiling of a field and emits it through the
+ * metrics of the stage: the number of records and non null values profiled, the time spent by every
+ * profile, the time spent building the results and the estimated size of the states.
+ *
+ * Timing every value would cost more than most updates, so only one value out of
+ * <code>TIMING_PERIOD</code> is timed, profile by profile, and its time is extrapolated to the values
+ * that were not timed. Batches of values are cheap to time, so every batch is timed.
+ *
+ * The metrics of a field are named <code>profile.&lt;field&gt;.&lt;metric&gt;</code>.
+ */
+final class ProfileMetrics {
+  static final int TIMING_PERIOD = 64;
+
+  private final FieldPlan plan;
+  private final String prefix;
+  private final long[] nanos;
+  private final ProfileState[] single = new ProfileState[1];
+  private long records;
+  private long values;
+  private int untimed;
+
+  ProfileMetrics(FieldPlan plan) {
+    this.plan = plan;
+    this.prefix = "profile." + plan.getName() + ".";
+    this.nanos = new long[plan.getProfiles().size()];
+  }
+
+  /**
+   * Updates the states of the field with a value, timing the update of every profile once in a while.
+   *
+   * @param value to be profiled, can be null.
+   * @param states of the field.
+   */
+  void update(Object value, ProfileState[] states) {
+    count(value);
+    if (++untimed < TIMING_PERIOD) {
+      plan.update(value, states);
+      return;
+    }
+    untimed = 0;
+    for (int i = 0; i < states.length; i++) {
+      single[0] = states[i];
+      long start = System.nanoTime();
+      plan.update(value, single);
+      nanos[i] += (System.nanoTime() - start) * TIMING_PERIOD;
+    }
+  }
+
+  /**
+   * Updates the states of the field with a batch of values, timing the update of every profile.
+   *
+   * @param batch of values of the field.
+   * @param states of the field.
+   */
+  void replay(ColumnBlock batch, ProfileState[] states) {
+    records += batch.size();
+    values += batch.size() - batch.nulls();
+    for (int i = 0; i < states.length; i++) {
+      single[0] = states[i];
+      long start = System.nanoTime();
+      batch.replay(single);
+      nanos[i] += System.nanoTime() - start;
+    }
+  }
+
+  private void count(Object value) {
+    records++;
+    if (value != null) {
+      values++;
+    }
+  }
+
+  /**
+   * Emits the metrics of the field.
+   *
+   * @param metrics of the stage.
+   * @param states of the field.
+   * @param resultNanos time spent building the results of the field.
+   */
+  void emit(StageMetrics metrics, ProfileState[] states, long resultNanos) {
+    metrics.countLong(prefix + "records", records);
+    metrics.countLong(prefix + "values", values);
+    List<Profile> profiles = plan.getProfiles();
+    for (int i = 0; i < nanos.length; i++) {
+      metrics.countLong(prefix + profiles.get(i).name() + ".nanos", nanos[i]);
+    }
+    emitResult(metrics, plan.getName(), states, resultNanos);
+  }
+
+  /**
+   * Emits the time spent building the results of a field and the estimated size of its states, when
+   * the values of the field were profiled elsewhere.
+   *
+   * @param metrics of the stage.
+   * @param name of the field.
+   * @param states of the field.
+   * @param resultNanos time spent building the results of the field.
+   */
+  static void emitResult(StageMetrics metrics, String name, ProfileState[] states, long resultNanos) {
+    String prefix = "profile." + name + ".";
+    metrics.countLong(prefix + "result.nanos", resultNanos);
+    long size = 0;
+    for (ProfileState state : states) {
+      size += state.estimateSize();
+    }
+    metrics.gauge(prefix + "state.bytes", size);
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * This class <code>ProfileState</code> holds the state of a <code>Profile</code> for the values
+ * of a single field. States are created by their profile, updated with the values of the field,
+ * merged with the states of other partitions and finally turned into results.
+ */
+public abstract class ProfileState implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Version of the binary form of the states, written before the binary form of every state.
+   */
+  public static final int FORMAT_VERSION = 1;
+
+  public abstract void update(Object value);
+
+  /**
+   * Updates the state with a null value.
+   */
+  public void updateNull() {
+    update((Object) null);
+  }
+
+  /**
+   * Updates the state with a value of an integral field. States of numbers override this
+   * method, so that the value is neither boxed nor type tested.
+   *
+   * @param value to be profiled.
+   */
+  public void update(long value) {
+    update((Object) value);
+  }
+
+  /**
+   * Updates the state with a value of a floating point field.
+   *
+   * @param value to be profiled.
+   */
+  public void update(double value) {
+    update((Object) value);
+  }
+
+  /**
+   * Updates the state with a value of a boolean field.
+   *
+   * @param value to be profiled.
+   */
+  public void update(boolean value) {
+    update((Object) value);
+  }
+
+  /**
+   * Updates the state with a value of a string field.
+   *
+   * @param value to be profiled, not null.
+   */
+  public void update(CharSequence value) {
+    update((Object) value.toString());
+  }
+
+  /**
+   * Updates the state with the same value of an integral field repeated a number of times, as if the
+   * value was given as many times to <code>update(long)</code>. By default the value is profiled once per
+   * repetition, states whose counters and sketches can weigh a value override this method so that the
+   * cost doesn't grow with the number of repetitions.
+   *
+   * @param value to be profiled.
+   * @param times number of repetitions of the value.
+   */
+  public void update(long value, long times) {
+    for (long i = 0; i < times; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Updates the state with the same value of a floating point field repeated a number of times.
+   *
+   * @param value to be profiled.
+   * @param times number of repetitions of the value.
+   */
+  public void update(double value, long times) {
+    for (long i = 0; i < times; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Updates the state with the same value of a boolean field repeated a number of times.
+   *
+   * @param value to be profiled.
+   * @param times number of repetitions of the value.
+   */
+  public void update(boolean value, long times) {
+    for (long i = 0; i < times; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Updates the state with the same value of a string field repeated a number of times.
+   *
+   * @param value to be profiled, not null.
+   * @param times number of repetitions of the value.
+   */
+  public void update(CharSequence value, long times) {
+    for (long i = 0; i < times; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Updates the state with the same value repeated a number of times.
+   *
+   * @param value to be profiled, not null.
+   * @param times number of repetitions of the value.
+   */
+  public void update(Object value, long times) {
+    for (long i = 0; i < times; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Updates the state with a number of null values.
+   *
+   * @param times number of nulls.
+   */
+  public void updateNull(long times) {
+    for (long i = 0; i < times; i++) {
+      updateNull();
+    }
+  }
+
+  /**
+   * Updates the state with a batch of values of an integral field, packed in an array. States of
+   * numbers override this method to profile the values in tight loops over the array, instead of
+   * one call per value.
+   *
+   * @param values to be profiled, the values at the positions of the nulls are ignored.
+   * @param nulls bitmap of the nulls, the bit i % 64 of the word i / 64 being set if the value i
+   *              is null, or null if none of the values is null.
+   * @param n number of values.
+   */
+  public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+    for (int i = 0; i < n; i++) {
+      if (isNull(nulls, i)) {
+        updateNull();
+      } else {
+        update(values[i]);
+      }
+    }
+  }
+
+  /**
+   * Updates the state with a batch of values of a floating point field, packed in an array.
+   *
+   * @param values to be profiled, the values at the positions of the nulls are ignored.
+   * @param nulls bitmap of the nulls, or null if none of the values is null.
+   * @param n number of values.
+   */
+  public void updateBatch(double[] values, @Nullable long[] nulls, int n) {
+    for (int i = 0; i < n; i++) {
+      if (isNull(nulls, i)) {
+        updateNull();
+      } else {
+        update(values[i]);
+      }
+    }
+  }
+
+  /**
+   * @param nulls bitmap of the nulls of a batch, or null if none of the values is null.
+   * @param index of a value of the batch.
+   * @return true if the value is null.
+   */
+  protected static boolean isNull(@Nullable long[] nulls, int index) {
+    return nulls != null && (nulls[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /**
+   * Updates the state with a value that was left out of the sample, when the records are sampled.
+   * Only the exact counters of the state, which are cheap to update, should see this value. By default,
+   * the value is ignored.
+   *
+   * @param value left out of the sample, can be null.
+   */
+  public void skip(Object value) {
+  }
+
+  /**
+   * Updates the state with the same value left out of the sample repeated a number of times. By default,
+   * the values are ignored, states that count the values left out of the sample override both this method
+   * and <code>skip(Object)</code>.
+   *
+   * @param value left out of the sample, can be null.
+   * @param times number of repetitions of the value.
+   */
+  public void skip(Object value, long times) {
+  }
+
+  /**
+   * Merges another state of the same profile into this one. This allows states built on
+   * different partitions of the data to be combined.
+   *
+   * @param other state of the same profile to be merged into this one.
+   */
+  public abstract void merge(ProfileState other);
+
+  /**
+   * Writes the binary form of the state, which can be merged into another state of the same
+   * profile with <code>merge(StateInput)</code>.
+   *
+   * @param out to write the state to.
+   */
+  public abstract void write(StateOutput out);
+
+  /**
+   * Merges a state of the same profile, read from its binary form, into this one. Merging into
+   * an empty state restores the state that was written.
+   *
+   * @param in to read the state from.
+   */
+  public abstract void merge(StateInput in);
+
+  /**
+   * Estimates the number of bytes used by the state. The estimate is checked while values are added to
+   * the state, so it is kept in constant time, from the sizes the sketches of the state keep track of.
+   *
+   * @return estimated size of the state, in bytes.
+   */
+  public abstract long estimateSize();
+
+  /**
+   * Gives back memory by lowering the accuracy of the state, when the states of a profiler don't fit
+   * in its memory budget. The sketches of the state are shrunk a step at a time, and merge with sketches
+   * of other accuracies at the lowest of their accuracies. By default, a state doesn't shrink.
+   *
+   * @return true if the state was shrunk, false if it can't be shrunk anymore.
+   */
+  public boolean shrink() {
+    return false;
+  }
+
+  /**
+   * Releases the memory held out of the heap by the state, once its results were built. The state must
+   * not be updated afterwards. By default, nothing is released.
+   */
+  public void release() {
+  }
+
+  /**
+   * @return versioned binary form of the state.
+   */
+  public ByteBuffer serialize() {
+    StateOutput out = new StateOutput();
+    out.writeVarInt(FORMAT_VERSION);
+    write(out);
+    return out.toByteBuffer();
+  }
+
+  /**
+   * Merges a state of the same profile, in the versioned binary form returned by <code>serialize</code>.
+   *
+   * @param bytes binary form of the state, read from their position to their limit.
+   */
+  public void merge(ByteBuffer bytes) {
+    StateInput in = new StateInput(bytes);
+    int version = in.readVarInt();
+    if (version != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unsupported profile state version: " + version + ".");
+    }
+    merge(in);
+  }
+
+  public StructuredRecord results(Schema schema) {
+    StructuredRecord.Builder builder = StructuredRecord.builder(schema);
+    results(builder);
+    return builder.build();
+  }
+
+  protected double V(double value) {
+    if(value != value) {
+      return 0;
+    }
+    return value;
+  }
+
+  public abstract void results(StructuredRecord.Builder builder);
+}
@@ -19,7 +19,10 @@ package io.cdap.plugin;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -28,43 +31,109 @@ import java.util.TreeMap;
  * Statistics about a field.
  */
 public abstract class Profiler {
+  public static final String SAMPLE = "sample";
+  // Schema of the description of the sample the results were computed from.
+  private static final Schema SAMPLE_SCHEMA = Schema.recordOf(
+    SAMPLE,
+    Schema.Field.of("rate", Schema.of(Schema.Type.DOUBLE)),
+    Schema.Field.of("rows", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("profiles", Schema.arrayOf(Schema.of(Schema.Type.STRING)))
+  );
+  // Schema of the partial profiles of the shards of a field, merged by the Data Profile Merger. Every partial
+  // profile has the name or path of the field, the schema of the input field holding it, in JSON, the binary form
+  // of its states and, when the records are sampled, the number of records seen and sampled by the shard.
+  public static final Schema PARTIAL_SCHEMA = Schema.recordOf(
+    "partial",
+    Schema.Field.of("name", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("field", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("states", Schema.of(Schema.Type.BYTES)),
+    Schema.Field.of("seen", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("sampled", Schema.nullableOf(Schema.of(Schema.Type.LONG)))
+  );
+  private static final ProfileState[] NO_STATES = new ProfileState[0];
   private Map<String, List<Profile>> types = new TreeMap<>();
-  private Map<String, List<Profile>> mappings;
+  // Plans of the fields that have profiles, by name and by position in the input schema. The leaves of
+  // the nested fields have their plans by path, and the nested fields by name and position.
+  private Map<String, FieldPlan> plans;
+  private FieldPlan[] positions;
+  private Map<String, NestedField> nested;
+  private NestedField[] nestedPositions;
+  // Input fields by name, and the record, array and map fields holding every leaf by path.
+  private Map<String, Schema.Field> sources;
+  private Map<String, ProfileState[]> states = new HashMap<>();
+  // States of the leaves of the nested fields, in the order of their leaves, resolved on first use.
+  private Map<String, ProfileState[][]> leafStates = new HashMap<>();
   private Schema output, input;
   private List<Profile> profiles;
+  private boolean sampled;
+  @Nullable
+  private MemoryBudget budget;
 
   public Profiler(List<Profile> profiles, Schema input) {
+    this(profiles, input, false);
+  }
+
+  /**
+   * @param profiles applied to the fields.
+   * @param input schema, can be null when only the output schema is needed.
+   * @param sampled true if the records are sampled, which adds the description of the sample to the output.
+   */
+  public Profiler(List<Profile> profiles, Schema input, boolean sampled) {
     this.input = input;
     this.profiles = profiles;
+    this.sampled = sampled;
     this.output = createOutputSchema();
     if (input != null) {
-      this.mappings = createMappings();
+      compile();
     }
   }
 
-  private Map<String, List<Profile>> createMappings() {
-    Map<String, List<Profile>> maps = new TreeMap<>();
-    for (Schema.Field field : input.getFields()) {
+  // Compiles the plan of every field of the input schema that has profiles.
+  private void compile() {
+    List<Schema.Field> fields = input.getFields();
+    plans = new HashMap<>();
+    positions = new FieldPlan[fields.size()];
+    nested = new HashMap<>();
+    nestedPositions = new NestedField[fields.size()];
+    sources = new HashMap<>();
+    for (int i = 0; i < positions.length; i++) {
+      Schema.Field field = fields.get(i);
       Schema schema = field.getSchema();
+      sources.put(field.getName(), field);
       if (!schema.isSimpleOrNullableSimple()) {
+        NestedField nestedField = NestedField.of(field, types, output);
+        if (nestedField != null) {
+          nestedPositions[i] = nestedField;
+          nested.put(field.getName(), nestedField);
+          for (FieldPlan leaf : nestedField.getLeaves()) {
+            plans.put(leaf.getName(), leaf);
+            sources.put(leaf.getName(), field);
+          }
+        }
         continue;
       }
       if (schema.isNullable()) {
         schema = schema.getNonNullable();
       }
-      String type = schema.getType().name();
-      String name = field.getName();
-      if (types.containsKey(type)) {
-        maps.put(name, types.get(type));
+      List<Profile> fieldProfiles = getProfiles(types, schema);
+      if (fieldProfiles != null) {
+        positions[i] = new FieldPlan(field, fieldProfiles, output);
+        plans.put(field.getName(), positions[i]);
       }
     }
-    return maps;
   }
 
   public Schema getOutputSchema() {
     return output;
   }
 
+  /**
+   * @return true if the output holds the description of the sample the results were computed from.
+   */
+  protected boolean isSampled() {
+    return sampled;
+  }
+
   private Schema createOutputSchema() {
     List<Schema.Field> fields = new ArrayList<>();
     fields.add(Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
@@ -89,24 +158,285 @@ public abstract class Profiler {
           types.put(type.name(), temp);
         }
       }
-      profile.initialize();
+      for (Schema.LogicalType logicalType : profile.logicalTypes()) {
+        List<Profile> temp = types.get(logicalType.name());
+        if (temp == null) {
+          temp = new ArrayList<>();
+          types.put(logicalType.name(), temp);
+        }
+        temp.add(profile);
+      }
+    }
+    if (sampled) {
+      fields.add(Schema.Field.of(SAMPLE, Schema.nullableOf(SAMPLE_SCHEMA)));
     }
     return Schema.recordOf("profiles", fields);
   }
 
+  /**
+   * Finds the profiles of a field, the profiles of its physical type followed by the profiles of
+   * its logical type, if any.
+   *
+   * @param types profiles applicable to every physical and logical type, by name of the type.
+   * @param schema of the field, not nullable.
+   * @return profiles of the field, or null if none applies.
+   */
+  @Nullable
+  static List<Profile> getProfiles(Map<String, List<Profile>> types, Schema schema) {
+    List<Profile> physical = types.get(schema.getType().name());
+    List<Profile> logical = schema.getLogicalType() == null ? null : types.get(schema.getLogicalType().name());
+    if (logical == null) {
+      return physical;
+    }
+    List<Profile> profiles = new ArrayList<>();
+    if (physical != null) {
+      profiles.addAll(physical);
+    }
+    profiles.addAll(logical);
+    return profiles;
+  }
+
   public void reset() {
-    for (Profile profile : profiles) {
-      profile.reset();
+    states.clear();
+    leafStates.clear();
+  }
+
+  /**
+   * Bounds the memory used by the states of the profiler, see <code>MemoryBudget</code>. The budget applies
+   * to the states of every field profiled side by side, and to the partial profiles created afterwards.
+   *
+   * @param bytes maximum estimated size of the states, or 0 if their size is not bounded.
+   */
+  public void setMemoryBudget(long bytes) {
+    budget = bytes > 0 ? new MemoryBudget(bytes) : null;
+  }
+
+  /**
+   * @return memory budget of the states, or null if their size is not bounded.
+   */
+  @Nullable
+  MemoryBudget getMemoryBudget() {
+    return budget;
+  }
+
+  /**
+   * Counts a profiled value against the memory budget, and shrinks the states of the fields profiled
+   * so far once every few values if they are over the budget.
+   */
+  protected void checkBudget() {
+    if (budget != null && budget.tick()) {
+      budget.enforce(states.values(), 0);
     }
   }
 
   protected List<Profile> getProfiles(String name) {
-    if (mappings.containsKey(name)) {
-      return mappings.get(name);
+    FieldPlan plan = plans.get(name);
+    if (plan != null) {
+      return plan.getProfiles();
     }
     return new ArrayList<>();
   }
 
+  /**
+   * Returns the plan of a field, compiled from the input schema.
+   *
+   * @param name of the field.
+   * @return plan of the field, or null if the field has no profiles.
+   */
+  FieldPlan getPlan(String name) {
+    return plans.get(name);
+  }
+
+  /**
+   * Returns the paths of a record, array or map field, compiled from the input schema.
+   *
+   * @param name of the field.
+   * @return nested field, or null if the field is simple or none of its leaves has profiles.
+   */
+  @Nullable
+  NestedField getNested(String name) {
+    return nested.get(name);
+  }
+
+  /**
+   * Returns the states of a field, creating them on first use. Every field has its own
+   * states, so fields can be profiled side by side until the profiler is reset.
+   *
+   * @param name of the field.
+   * @return states of the profiles of the field.
+   */
+  protected ProfileState[] getStates(String name) {
+    ProfileState[] fieldStates = states.get(name);
+    if (fieldStates == null) {
+      fieldStates = newStates(name);
+      states.put(name, fieldStates);
+    }
+    return fieldStates;
+  }
+
+  /**
+   * Returns the states of the leaves of a record, array or map field, in the order of its leaves,
+   * resolving them on first use so every value of the field updates them without any lookup.
+   *
+   * @param nestedField field of the input schema.
+   * @return states of the profiles of every leaf of the field.
+   */
+  protected ProfileState[][] getStates(NestedField nestedField) {
+    ProfileState[][] fieldStates = leafStates.get(nestedField.getName());
+    if (fieldStates == null) {
+      FieldPlan[] leaves = nestedField.getLeaves();
+      fieldStates = new ProfileState[leaves.length][];
+      for (int i = 0; i < leaves.length; i++) {
+        fieldStates[i] = getStates(leaves[i].getName());
+      }
+      leafStates.put(nestedField.getName(), fieldStates);
+    }
+    return fieldStates;
+  }
+
+  /**
+   * Creates new empty states of the profiles of a field.
+   *
+   * @param name of the field.
+   * @return states of the profiles of the field, in the order of the profiles.
+   */
+  public ProfileState[] newStates(String name) {
+    FieldPlan plan = plans.get(name);
+    return plan == null ? NO_STATES : plan.newStates();
+  }
+
+  /**
+   * Creates a partial profile holding new states of the applicable profiles for every
+   * field of the input schema, in the order of the input schema, the record, array and map
+   * fields having the states of each of their leaves.
+   *
+   * @param project true if the values of every field should be buffered in a column block
+   *                instead of being profiled right away.
+   * @return partial profile with an empty state.
+   */
+  public PartialProfile newPartialProfile(boolean project) {
+    return newPartialProfile(project, null);
+  }
+
+  /**
+   * Creates a partial profile that only fully profiles a sample of the records. The records left out
+   * of the sample only update the exact counters of the states.
+   *
+   * @param project true if the values of every field should be buffered in a column block
+   *                instead of being profiled right away.
+   * @param sampler choosing the records that are profiled, or null to profile every record.
+   * @return partial profile with an empty state.
+   */
+  PartialProfile newPartialProfile(boolean project, @Nullable Sampler<StructuredRecord> sampler) {
+    List<Schema.Field> fields = input.getFields();
+    String[] fieldNames = new String[positions.length];
+    int[] slots = new int[positions.length];
+    Dispatcher[] fieldDispatchers = new Dispatcher[positions.length];
+    int size = 0;
+    for (int i = 0; i < positions.length; i++) {
+      fieldNames[i] = fields.get(i).getName();
+      slots[i] = size;
+      size += nestedPositions[i] == null ? 1 : nestedPositions[i].size();
+    }
+    String[] names = new String[size];
+    Profile[][] slotProfiles = new Profile[size][];
+    ProfileState[][] slotStates = new ProfileState[size][];
+    ColumnBlock[] columns = project ? new ColumnBlock[size] : null;
+    for (int i = 0; i < positions.length; i++) {
+      int slot = slots[i];
+      if (nestedPositions[i] != null) {
+        for (FieldPlan leaf : nestedPositions[i].getLeaves()) {
+          names[slot] = leaf.getName();
+          slotProfiles[slot] = leaf.getProfiles().toArray(new Profile[0]);
+          slotStates[slot] = leaf.newStates();
+          slot++;
+        }
+        continue;
+      }
+      FieldPlan plan = positions[i];
+      names[slot] = fieldNames[i];
+      if (plan == null) {
+        slotProfiles[slot] = new Profile[0];
+        slotStates[slot] = NO_STATES;
+        continue;
+      }
+      slotProfiles[slot] = plan.getProfiles().toArray(new Profile[0]);
+      slotStates[slot] = plan.newStates();
+      fieldDispatchers[i] = plan.getDispatcher();
+      if (project) {
+        columns[slot] = ColumnBlock.of(plan.getType());
+      }
+    }
+    PartialProfile partial = new PartialProfile(fieldNames, slots, fieldDispatchers, nestedPositions.clone(),
+                                                names, slotProfiles, slotStates, columns, sampler);
+    if (budget != null) {
+      partial.setMemoryBudget(budget.getBytes());
+    }
+    return partial;
+  }
+
+  /**
+   * Builds the description of the sample the results of a field were computed from.
+   *
+   * @param name of the field.
+   * @param sampler that chose the values of the field that were profiled.
+   * @return record with the sampling rate, the number of sampled rows and the profiles computed from them.
+   */
+  protected StructuredRecord sample(String name, Sampler<?> sampler) {
+    FieldPlan plan = plans.get(name);
+    StructuredRecord.Builder builder = StructuredRecord.builder(SAMPLE_SCHEMA);
+    builder.set("rate", sampler.getRate());
+    builder.set("rows", sampler.getSampled());
+    builder.set("profiles", plan == null ? new ArrayList<String>() : plan.getSampledProfiles());
+    return builder.build();
+  }
+
+  /**
+   * Builds the partial profile of a field, holding its states in their binary form instead of their results,
+   * so that the shards of the field profiled by different tasks can be merged, see <code>DataProfileMerger</code>.
+   *
+   * @param name of the field, or path of the leaf.
+   * @param states of the profiles of the field, in the order of the profiles.
+   * @param sampler that chose the values that were profiled, or null if every value was profiled.
+   * @return record of the partial profile schema.
+   */
+  StructuredRecord partial(String name, ProfileState[] states, @Nullable Sampler<?> sampler) {
+    StateOutput out = new StateOutput();
+    out.writeVarInt(states.length);
+    for (ProfileState state : states) {
+      out.writeBytes(state.serialize());
+    }
+    StructuredRecord.Builder builder = StructuredRecord.builder(PARTIAL_SCHEMA);
+    builder.set("name", name);
+    builder.set("field", Schema.recordOf("field", sources.get(name)).toString());
+    builder.set("states", out.toByteBuffer());
+    if (sampler != null) {
+      builder.set("seen", sampler.getSeen());
+      builder.set("sampled", sampler.getSampled());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Merges the states of a partial profile built by <code>partial</code> into the states of the same field.
+   *
+   * @param partial profile of a shard of the field.
+   * @param states of the profiles of the field, in the order of the profiles.
+   */
+  static void mergePartial(StructuredRecord partial, ProfileState[] states) {
+    Object bytes = partial.get("states");
+    StateInput in = new StateInput(bytes instanceof ByteBuffer ? ((ByteBuffer) bytes).duplicate()
+                                     : ByteBuffer.wrap((byte[]) bytes));
+    int size = in.readVarInt();
+    if (size != states.length) {
+      throw new IllegalArgumentException("Partial profile of '" + partial.get("name") + "' has " + size
+                                           + " states instead of " + states.length + ".");
+    }
+    for (ProfileState state : states) {
+      state.merge(in.readBytes());
+    }
+  }
+
   public abstract void update(String name, Object value);
   public abstract StructuredRecord result(String name);
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.annotation.Description;
+import io.cdap.cdap.api.annotation.Name;
+import io.cdap.cdap.api.annotation.Plugin;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.api.Emitter;
+import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.StageConfigurer;
+import io.cdap.cdap.etl.api.StageMetrics;
+import io.cdap.cdap.etl.api.batch.BatchAggregatorContext;
+import io.cdap.cdap.etl.api.batch.BatchReducibleAggregator;
+import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
+
+import javax.ws.rs.Path;
+
+/**
+ * Aggregator that calculates statistics for each record field, profiling the records
+ * before the shuffle. Only the partial profiles of every field are shuffled and merged,
+ * instead of every value of every field.
+ */
+@Plugin(type = BatchReducibleAggregator.PLUGIN_TYPE)
+@Name(ReducibleDataProfiler.NAME)
+@Description("Calculates statistics for each input record field, like the Data Profiler. The records are " +
+  "profiled before the shuffle and only the partial profiles are shuffled and merged, which makes it " +
+  "cheaper for large inputs.")
+public class ReducibleDataProfiler
+  extends BatchReducibleAggregator<String, StructuredRecord, PartialProfile, StructuredRecord> {
+  public static final String NAME = "ReducibleDataProfiler";
+  // Partial profiles hold the state of every field, so all of them are merged under a single key, or under
+  // one key per shard when the records are sharded.
+  private static final String KEY = "profile";
+  // Number of records of a task dealt to a shard before moving on to the next one, so that small tasks
+  // only build a few partial profiles.
+  private static final int SHARD_SIZE = 4096;
+  private final DataProfiler.Conf conf;
+  private DefaultProfiler executor;
+  private StateStore store;
+  private StageMetrics metrics;
+  // Number of shards, and records dealt by the task, when the records are sharded.
+  private int shards;
+  private long records;
+  private long seed;
+
+  public ReducibleDataProfiler(DataProfiler.Conf conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void configurePipeline(PipelineConfigurer configurer) {
+    StageConfigurer stageConfigurer = configurer.getStageConfigurer();
+    conf.validate(stageConfigurer.getFailureCollector());
+    executor = DataProfiler.createProfiler(conf, stageConfigurer.getInputSchema());
+    stageConfigurer.setOutputSchema(conf.isSharded() ? Profiler.PARTIAL_SCHEMA : executor.getOutputSchema());
+  }
+
+  @Override
+  public void prepareRun(BatchAggregatorContext context) throws Exception {
+    Integer numPartitions = conf.getNumPartitions();
+    context.setNumPartitions(numPartitions == null ? conf.getShards(1) : numPartitions);
+  }
+
+  @Override
+  public void initialize(BatchRuntimeContext context) throws Exception {
+    executor = DataProfiler.createProfiler(conf, context.getInputSchema());
+    store = conf.newStateStore(context.getLogicalStartTime());
+    metrics = context.getMetrics();
+    seed = conf.getSeed(context.getLogicalStartTime());
+  }
+
+  @Override
+  public void onRunFinish(boolean succeeded, BatchAggregatorContext context) {
+    super.onRunFinish(succeeded, context);
+    DataProfiler.finishRun(conf, succeeded, context.getLogicalStartTime());
+  }
+
+  @Override
+  public void groupBy(StructuredRecord input, Emitter<String> groupKeyEmitter) throws Exception {
+    // Every task draws its first shard with its first record, so that a run deals the same records to the
+    // same shards as long as its input does not change, without starting from the same shard in every task.
+    if (shards == 0) {
+      shards = conf.getShards(1);
+      records = (Sampler.seed(seed, input.hashCode()) >>> 1) % shards * SHARD_SIZE;
+    }
+    if (shards > 1) {
+      groupKeyEmitter.emit(KEY + DataProfiler.SHARD_SEPARATOR + (records++ / SHARD_SIZE) % shards);
+    } else {
+      groupKeyEmitter.emit(KEY);
+    }
+  }
+
+  @Override
+  public PartialProfile initializeAggregateValue(StructuredRecord input) throws Exception {
+    PartialProfile partial = executor.newPartialProfile(
+      false, conf.<StructuredRecord>newSampler(Sampler.seed(seed, input.hashCode())));
+    partial.update(input);
+    return partial;
+  }
+
+  @Override
+  public PartialProfile mergeValues(PartialProfile partial, StructuredRecord input) throws Exception {
+    partial.update(input);
+    return partial;
+  }
+
+  @Override
+  public PartialProfile mergePartitions(PartialProfile partial, PartialProfile other) throws Exception {
+    partial.merge(other);
+    other.release();
+    return partial;
+  }
+
+  @Override
+  public void finalize(String key, PartialProfile partial, Emitter<StructuredRecord> emitter) throws Exception {
+    for (int i = 0; i < partial.size(); i++) {
+      ProfileState[] states = partial.getStates(i);
+      if (store != null && states.length > 0) {
+        store.merge(partial.getName(i), states);
+      }
+      long start = System.nanoTime();
+      StructuredRecord result = conf.isSharded() ? executor.partial(partial.getName(i), states, partial.getSampler())
+        : executor.result(partial.getName(i), states, partial.getSampler());
+      ProfileMetrics.emitResult(metrics, partial.getName(i), states, System.nanoTime() - start);
+      emitter.emit(result);
+    }
+    partial.release();
+  }
+
+  class Request {}
+
+  /**
+   * This method retrieves the schema of the profiler output schema.
+   *
+   * @param request empty object.
+   * @return Translated schema.
+   * @throws Exception
+   */
+  @Path("getSchema")
+  public Schema getSchema(Request request) throws Exception {
+    return conf.isSharded() ? Profiler.PARTIAL_SCHEMA : DataProfiler.createProfiler(conf, null).getOutputSchema();
+  }
+}
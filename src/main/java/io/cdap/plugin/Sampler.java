@@ -0,0 +1,293 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class <code>Sampler</code> chooses the items that are fully profiled when sampling is enabled.
+ * Every item offered to the sampler is handed to a <code>Sink</code>, either as part of the sample or as
+ * skipped, so the exact counters of the profiles still see every item.
+ *
+ * Two samplers are available. The Bernoulli sampler keeps every item with a fixed probability and hands it
+ * over right away; it draws the gaps between sampled items from a geometric distribution, so skipped items
+ * only cost a decrement. The reservoir sampler keeps a uniform sample of a fixed size (Vitter's algorithm R),
+ * and only hands the sampled items over once the sampler is flushed, since any of them can still be replaced.
+ * Samplers of different partitions can be merged, and the merged sample is still uniform.
+ *
+ * @param <T> type of the items sampled.
+ */
+abstract class Sampler<T> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private long random;
+  protected long seen;
+  protected long sampled;
+
+  /**
+   * Receives the items offered to a sampler.
+   *
+   * @param <T> type of the items sampled.
+   */
+  interface Sink<T> {
+    /**
+     * Receives an item that is part of the sample.
+     */
+    void sample(T item);
+
+    /**
+     * Receives an item that is left out of the sample.
+     */
+    void skip(T item);
+  }
+
+  private Sampler(long seed) {
+    // Xorshift needs a non-zero state.
+    this.random = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+  }
+
+  /**
+   * Derives the seed of a sampler from the seed of a run, so that the samplers of different tasks draw
+   * unrelated random numbers.
+   *
+   * @param seed of the run.
+   * @param salt telling the task apart, like the hash of its first item.
+   * @return seed of the sampler of the task.
+   */
+  static long seed(long seed, long salt) {
+    // Finalizer of SplitMix64.
+    long z = seed + salt * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Creates a sampler keeping every item with the same probability.
+   *
+   * @param rate probability of an item to be sampled, between 0 and 1.
+   * @param seed of the random numbers.
+   */
+  static <T> Sampler<T> bernoulli(double rate, long seed) {
+    return new Bernoulli<>(rate, seed);
+  }
+
+  /**
+   * Creates a sampler keeping a uniform sample of a fixed size.
+   *
+   * @param size of the sample.
+   * @param seed of the random numbers.
+   */
+  static <T> Sampler<T> reservoir(int size, long seed) {
+    return new Reservoir<>(size, seed);
+  }
+
+  /**
+   * Offers an item to the sampler.
+   *
+   * @param item to be sampled.
+   * @param sink receiving the item, or the item it replaces in the sample.
+   */
+  abstract void offer(T item, Sink<T> sink);
+
+  /**
+   * Merges the items offered to another sampler of the same kind into this one.
+   *
+   * @param other sampler to be merged.
+   * @param sink receiving the items that are left out of the merged sample.
+   */
+  abstract void merge(Sampler<T> other, Sink<T> sink);
+
+  /**
+   * Hands over the items held in the sample, if any. No items can be offered or merged afterwards.
+   *
+   * @param sink receiving the items of the sample.
+   */
+  void flush(Sink<T> sink) {
+  }
+
+  /**
+   * Counts the items offered to a sampler of another stage, whose sample was profiled there.
+   *
+   * @param seen number of items offered to the other sampler.
+   * @param sampled number of items in its sample.
+   */
+  void count(long seen, long sampled) {
+    this.seen += seen;
+    this.sampled += sampled;
+  }
+
+  /**
+   * @return number of items offered to the sampler.
+   */
+  long getSeen() {
+    return seen;
+  }
+
+  /**
+   * @return number of items in the sample.
+   */
+  long getSampled() {
+    return sampled;
+  }
+
+  /**
+   * @return fraction of the items offered that are in the sample.
+   */
+  double getRate() {
+    return seen == 0 ? 1d : (double) sampled / seen;
+  }
+
+  protected long nextLong() {
+    random ^= random << 13;
+    random ^= random >>> 7;
+    random ^= random << 17;
+    return random;
+  }
+
+  protected double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  // Uniform between 0 (inclusive) and bound (exclusive).
+  protected long nextLong(long bound) {
+    return (nextLong() >>> 1) % bound;
+  }
+
+  private static final class Bernoulli<T> extends Sampler<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final double rate;
+    // Number of items to skip before the next sampled item.
+    private long gap;
+
+    Bernoulli(double rate, long seed) {
+      super(seed);
+      this.rate = rate;
+      this.gap = nextGap();
+    }
+
+    @Override
+    void offer(T item, Sink<T> sink) {
+      seen++;
+      if (gap > 0) {
+        gap--;
+        sink.skip(item);
+        return;
+      }
+      sampled++;
+      gap = nextGap();
+      sink.sample(item);
+    }
+
+    @Override
+    void merge(Sampler<T> other, Sink<T> sink) {
+      seen += other.seen;
+      sampled += other.sampled;
+    }
+
+    // Number of failures before the next success, which follows a geometric distribution.
+    private long nextGap() {
+      if (rate >= 1) {
+        return 0;
+      }
+      double u = 1d - nextDouble();
+      return (long) Math.floor(Math.log(u) / Math.log1p(-rate));
+    }
+  }
+
+  private static final class Reservoir<T> extends Sampler<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final int size;
+    private List<T> items;
+
+    Reservoir(int size, long seed) {
+      super(seed);
+      this.size = size;
+      this.items = new ArrayList<>();
+    }
+
+    @Override
+    void offer(T item, Sink<T> sink) {
+      seen++;
+      if (items.size() < size) {
+        items.add(item);
+        return;
+      }
+      long index = nextLong(seen);
+      if (index < size) {
+        sink.skip(items.set((int) index, item));
+      } else {
+        sink.skip(item);
+      }
+    }
+
+    @Override
+    void merge(Sampler<T> other, Sink<T> sink) {
+      Reservoir<T> reservoir = (Reservoir<T>) other;
+      List<T> first = items;
+      List<T> second = reservoir.items;
+      // Every item of a sample stands for the same number of items of its partition, so every item of the
+      // merged sample is drawn from either sample in proportion to the items that sample still stands for.
+      long remainingFirst = seen;
+      long remainingSecond = reservoir.seen;
+      int sizeFirst = first.size();
+      int sizeSecond = second.size();
+      List<T> merged = new ArrayList<>();
+      int target = Math.min(size, sizeFirst + sizeSecond);
+      while (merged.size() < target) {
+        boolean fromFirst = sizeSecond == 0
+          || (sizeFirst > 0 && nextLong(remainingFirst + remainingSecond) < remainingFirst);
+        if (fromFirst) {
+          merged.add(draw(first, sizeFirst--));
+          remainingFirst--;
+        } else {
+          merged.add(draw(second, sizeSecond--));
+          remainingSecond--;
+        }
+      }
+      for (int i = 0; i < sizeFirst; i++) {
+        sink.skip(first.get(i));
+      }
+      for (int i = 0; i < sizeSecond; i++) {
+        sink.skip(second.get(i));
+      }
+      items = merged;
+      seen += reservoir.seen;
+    }
+
+    @Override
+    void flush(Sink<T> sink) {
+      sampled += items.size();
+      for (T item : items) {
+        sink.sample(item);
+      }
+      items = new ArrayList<>();
+    }
+
+    // Removes a random item among the first items of a list, by moving the last of them in its place.
+    private T draw(List<T> list, int count) {
+      int index = (int) nextLong(count);
+      T item = list.get(index);
+      list.set(index, list.get(count - 1));
+      return item;
+    }
+  }
+}
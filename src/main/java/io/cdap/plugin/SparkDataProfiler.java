@@ -0,0 +1,394 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.annotation.Description;
+import io.cdap.cdap.api.annotation.Name;
+import io.cdap.cdap.api.annotation.Plugin;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.StageConfigurer;
+import io.cdap.cdap.etl.api.batch.SparkCompute;
+import io.cdap.cdap.etl.api.batch.SparkExecutionPluginContext;
+import io.cdap.cdap.etl.api.batch.SparkPluginContext;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+import scala.Tuple2;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Spark compute that calculates statistics for each record field without a keyed shuffle.
+ * Every partition profiles its records into one bundle of states, and the bundles are merged
+ * in a tree up to the driver, which emits one output record per field.
+ *
+ * When values are shuffled, every partition packs the values of every field in blocks instead, which
+ * are shuffled under the position of their field, one partition per field, see <code>FieldValues</code>.
+ * Every field is then profiled by its own task, and only the values of that field are shuffled.
+ */
+@Plugin(type = SparkCompute.PLUGIN_TYPE)
+@Name(SparkDataProfiler.NAME)
+@Description("Calculates statistics for each input record field, like the Data Profiler. Every partition is " +
+  "profiled on its own and the partial profiles are merged in a tree, without shuffling the records.")
+public class SparkDataProfiler extends SparkCompute<StructuredRecord, StructuredRecord> {
+  private static final long serialVersionUID = 1L;
+
+  public static final String NAME = "SparkDataProfiler";
+  // Number of records whose values are packed in blocks before the blocks are shuffled.
+  private static final int CHUNK_SIZE = 4096;
+  private final BatchConf conf;
+
+  public SparkDataProfiler(BatchConf conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void configurePipeline(PipelineConfigurer configurer) {
+    StageConfigurer stageConfigurer = configurer.getStageConfigurer();
+    conf.validate(stageConfigurer.getFailureCollector());
+    stageConfigurer.setOutputSchema(DataProfiler.createProfiler(conf, stageConfigurer.getInputSchema())
+                                      .getOutputSchema());
+  }
+
+  @Override
+  public void onRunFinish(boolean succeeded, SparkPluginContext context) {
+    super.onRunFinish(succeeded, context);
+    DataProfiler.finishRun(conf, succeeded, context.getLogicalStartTime());
+  }
+
+  @Override
+  public JavaRDD<StructuredRecord> transform(SparkExecutionPluginContext context,
+                                             JavaRDD<StructuredRecord> input) throws Exception {
+    Schema schema = context.getInputSchema();
+    if (conf.isProjected() && schema != null) {
+      return profileFields(context, input, schema);
+    }
+    int depth = conf.getMergeDepth(input.getNumPartitions());
+    // A null zero value lets every partition create its own bundle, with a sampler of its own.
+    long seed = conf.getSeed(context.getLogicalStartTime());
+    PartialProfile partial = input.treeAggregate(null, new ProfilePartition(conf, schema, seed),
+                                                      new MergePartitions(), depth);
+    List<StructuredRecord> results = new ArrayList<>();
+    if (partial != null) {
+      DefaultProfiler executor = DataProfiler.createProfiler(conf, schema);
+      StateStore store = conf.newStateStore(context.getLogicalStartTime());
+      for (int i = 0; i < partial.size(); i++) {
+        ProfileState[] states = partial.getStates(i);
+        if (store != null && states.length > 0) {
+          store.merge(partial.getName(i), states);
+        }
+        results.add(executor.result(partial.getName(i), states, partial.getSampler()));
+      }
+      partial.release();
+    }
+    return context.getSparkContext().parallelize(results, 1);
+  }
+
+  // Shuffles the values of every field under the position of the field, and profiles every field in its own task.
+  private JavaRDD<StructuredRecord> profileFields(SparkExecutionPluginContext context, JavaRDD<StructuredRecord> input,
+                                                  Schema schema) {
+    Integer numPartitions = conf.getNumPartitions();
+    int partitions = numPartitions == null
+      ? DataProfiler.createProfiler(conf, schema).newPartialProfile(false).size() : numPartitions;
+    JavaPairRDD<Integer, FieldValues> values =
+      JavaPairRDD.fromJavaRDD(input.mapPartitionsWithIndex(new ProjectPartition(conf, schema), false));
+    // Values are only merged after the shuffle, so every field is profiled from its values by a single task.
+    MergeValues merge = new MergeValues();
+    JavaPairRDD<Integer, FieldValues> fields =
+      values.combineByKey(new KeepValues(), merge, merge, new HashPartitioner(partitions), false, null);
+    return fields.map(new FieldResult(conf, schema, context.getLogicalStartTime()));
+  }
+
+  class Request {}
+
+  /**
+   * This method retrieves the schema of the profiler output schema.
+   *
+   * @param request empty object.
+   * @return Translated schema.
+   * @throws Exception
+   */
+  @Path("getSchema")
+  public Schema getSchema(Request request) throws Exception {
+    return DataProfiler.createProfiler(conf, null).getOutputSchema();
+  }
+
+  /**
+   * Adds the records of a partition to its bundle of states, created with the first record.
+   */
+  static final class ProfilePartition implements Function2<PartialProfile, StructuredRecord, PartialProfile> {
+    private static final long serialVersionUID = 1L;
+
+    private final Conf conf;
+    private final Schema schema;
+    private final long seed;
+    private transient DefaultProfiler executor;
+
+    /**
+     * @param conf configuration of the profiler.
+     * @param schema of the records, or null to take the schema of the first record.
+     * @param seed of the run, salted with the first record of every partition to seed its sampler.
+     */
+    ProfilePartition(Conf conf, @Nullable Schema schema, long seed) {
+      this.conf = conf;
+      this.schema = schema;
+      this.seed = seed;
+    }
+
+    @Override
+    public PartialProfile call(PartialProfile partial, StructuredRecord record) {
+      if (partial == null) {
+        if (executor == null) {
+          executor = DataProfiler.createProfiler(conf, schema == null ? record.getSchema() : schema);
+        }
+        partial = executor.newPartialProfile(
+          false, conf.<StructuredRecord>newSampler(Sampler.seed(seed, record.hashCode())));
+      }
+      partial.update(record);
+      return partial;
+    }
+  }
+
+  /**
+   * Merges the bundles of states of two partitions, either of them being null if it had no records. The
+   * bundle merged into the other one is released.
+   */
+  static final class MergePartitions implements Function2<PartialProfile, PartialProfile, PartialProfile> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public PartialProfile call(PartialProfile partial, PartialProfile other) {
+      if (partial == null) {
+        return other;
+      }
+      if (other != null) {
+        partial.merge(other);
+        other.release();
+      }
+      return partial;
+    }
+  }
+
+  /**
+   * Packs the values of the records of a partition in blocks, and takes them out with the states of their
+   * field every few records. Fields whose values can't be packed are profiled, and their states are taken out
+   * once the partition is over.
+   */
+  static final class ProjectPartition
+    implements Function2<Integer, Iterator<StructuredRecord>, Iterator<Tuple2<Integer, FieldValues>>> {
+    private static final long serialVersionUID = 1L;
+
+    private final DataProfiler.Conf conf;
+    private final Schema schema;
+    private transient DefaultProfiler executor;
+
+    ProjectPartition(DataProfiler.Conf conf, Schema schema) {
+      this.conf = conf;
+      this.schema = schema;
+    }
+
+    @Override
+    public Iterator<Tuple2<Integer, FieldValues>> call(Integer partition, final Iterator<StructuredRecord> records) {
+      if (executor == null) {
+        executor = DataProfiler.createProfiler(conf, schema);
+      }
+      final PartialProfile partial = executor.newPartialProfile(true);
+      return new Iterator<Tuple2<Integer, FieldValues>>() {
+        // Next slot to be taken out of the partial profile, and whether the last chunk was profiled.
+        private int slot = partial.size();
+        private boolean last;
+
+        @Override
+        public boolean hasNext() {
+          while (slot < partial.size() && !last && !partial.isProjected(slot)) {
+            slot++;
+          }
+          if (slot < partial.size()) {
+            return true;
+          }
+          if (last || !records.hasNext()) {
+            return false;
+          }
+          for (int i = 0; i < CHUNK_SIZE && records.hasNext(); i++) {
+            partial.update(records.next());
+          }
+          last = !records.hasNext();
+          slot = 0;
+          return hasNext();
+        }
+
+        @Override
+        public Tuple2<Integer, FieldValues> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          int position = slot++;
+          return new Tuple2<>(position, partial.take(position));
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /**
+   * Keeps the first values of a field as they are, to be profiled with the next ones.
+   */
+  static final class KeepValues implements Function<FieldValues, FieldValues> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public FieldValues call(FieldValues values) {
+      return values;
+    }
+  }
+
+  /**
+   * Profiles the values of a field into the states of the values merged so far.
+   */
+  static final class MergeValues implements Function2<FieldValues, FieldValues, FieldValues> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public FieldValues call(FieldValues values, FieldValues other) {
+      return values.merge(other);
+    }
+  }
+
+  /**
+   * Builds the output record of a field once all its values are profiled, and persists its states.
+   */
+  static final class FieldResult implements Function<Tuple2<Integer, FieldValues>, StructuredRecord> {
+    private static final long serialVersionUID = 1L;
+
+    private final DataProfiler.Conf conf;
+    private final Schema schema;
+    private final long runTime;
+    private transient DefaultProfiler executor;
+
+    FieldResult(DataProfiler.Conf conf, Schema schema, long runTime) {
+      this.conf = conf;
+      this.schema = schema;
+      this.runTime = runTime;
+    }
+
+    @Override
+    public StructuredRecord call(Tuple2<Integer, FieldValues> field) throws IOException {
+      if (executor == null) {
+        executor = DataProfiler.createProfiler(conf, schema);
+      }
+      FieldValues values = field._2();
+      ProfileState[] states = values.getStates();
+      StateStore store = conf.newStateStore(runTime);
+      if (store != null && states.length > 0) {
+        store.merge(values.getName(), states);
+      }
+      StructuredRecord result = executor.result(values.getName(), states);
+      values.release();
+      return result;
+    }
+  }
+
+  /**
+   * Configuration of the Spark profiler, which adds the depth of the merge tree to the
+   * configuration of the profiler.
+   */
+  public static class Conf extends DataProfiler.Conf {
+    private static final long serialVersionUID = 1L;
+
+    private static final String MERGE_DEPTH = "mergeDepth";
+    // Fan-in of every level of the merge tree when its depth is not set.
+    private static final int MERGE_FAN_IN = 16;
+
+    @Nullable
+    @Description("The depth of the tree in which the partial profiles of the partitions are merged. " +
+      "Defaults to the smallest depth merging at most 16 partial profiles at once, and at least 2.")
+    @Name(MERGE_DEPTH)
+    private Integer mergeDepth;
+
+    int getMergeDepth(int partitions) {
+      if (mergeDepth != null) {
+        return mergeDepth;
+      }
+      int depth = 2;
+      for (long fanIn = (long) MERGE_FAN_IN * MERGE_FAN_IN; fanIn < partitions; fanIn *= MERGE_FAN_IN) {
+        depth++;
+      }
+      return depth;
+    }
+
+    @Override
+    void validate(FailureCollector collector) {
+      super.validate(collector);
+      if (mergeDepth != null && mergeDepth < 1) {
+        collector.addFailure("Invalid merge depth: " + mergeDepth + ".", "Must be at least 1.")
+          .withConfigProperty(MERGE_DEPTH);
+      }
+    }
+  }
+
+  /**
+   * Configuration of the batch Spark profiler, which adds what is shuffled to the configuration
+   * of the Spark profiler.
+   */
+  public static class BatchConf extends Conf {
+    private static final long serialVersionUID = 1L;
+
+    private static final String SHUFFLE = "shuffle";
+    private static final String STATES = "states";
+    private static final String VALUES = "values";
+
+    @Nullable
+    @Description("What is shuffled. 'states' merges the partial profiles of the partitions in a tree without " +
+      "a keyed shuffle, 'values' shuffles the values of every field packed in blocks, one partition per field, " +
+      "and profiles every field in its own task, like the Data Profiler. Defaults to 'states'.")
+    @Name(SHUFFLE)
+    private String shuffle;
+
+    boolean isProjected() {
+      return VALUES.equalsIgnoreCase(shuffle);
+    }
+
+    @Override
+    void validate(FailureCollector collector) {
+      super.validate(collector);
+      if (shuffle != null && !STATES.equalsIgnoreCase(shuffle) && !isProjected()) {
+        collector.addFailure("Invalid shuffle: '" + shuffle + "'.", "Must be 'states' or 'values'.")
+          .withConfigProperty(SHUFFLE);
+      }
+      if (isProjected() && isSampled()) {
+        collector.addFailure("Sampling is not supported when values are shuffled.",
+                             "Set the shuffle to 'states' or the sampling to 'none'.")
+          .withConfigProperty(SHUFFLE).withConfigProperty(SAMPLING);
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class <code>StateInput</code> reads the binary form of profile states written by a
+ * <code>StateOutput</code>. Values are read in place from a <code>ByteBuffer</code>, so states can be
+ * merged straight from the shuffled or persisted bytes without copying them first.
+ */
+public final class StateInput {
+  private final ByteBuffer buffer;
+
+  /**
+   * @param buffer holding the bytes, read from its position to its limit. The buffer itself is not modified.
+   */
+  public StateInput(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public int readByte() {
+    return buffer.get();
+  }
+
+  public long readVarLong() {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed variable length integer.");
+  }
+
+  public int readVarInt() {
+    long value = readVarLong();
+    if (value > Integer.MAX_VALUE || value < 0) {
+      throw new IllegalArgumentException("Variable length integer out of range: " + value + ".");
+    }
+    return (int) value;
+  }
+
+  public long readSignedVarLong() {
+    long value = readVarLong();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  public double readDouble() {
+    return buffer.getDouble();
+  }
+
+  /**
+   * Reads bytes written by <code>StateOutput.writeBytes</code>, without copying them.
+   *
+   * @return read only view of the bytes.
+   */
+  public ByteBuffer readBytes() {
+    int length = readVarInt();
+    ByteBuffer slice = buffer.slice();
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice.asReadOnlyBuffer();
+  }
+
+  public String readString() {
+    int length = readVarInt();
+    if (buffer.hasArray()) {
+      String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                                StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+      return value;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return number of bytes left to be read.
+   */
+  public int remaining() {
+    return buffer.remaining();
+  }
+}
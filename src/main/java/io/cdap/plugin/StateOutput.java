@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class <code>StateOutput</code> writes the binary form of profile states, see <code>StateInput</code>
+ * for reading it back.
+ *
+ * Counts and sizes are written as variable length integers (LEB128), so small values take a single byte,
+ * signed values are zigzag encoded first, and floating point values are written as 8 little endian bytes.
+ * Arrays are written as their length followed by their packed elements.
+ */
+public final class StateOutput {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private byte[] bytes;
+  private int size;
+
+  public StateOutput() {
+    bytes = new byte[INITIAL_CAPACITY];
+  }
+
+  public void writeByte(int value) {
+    ensureCapacity(1);
+    bytes[size++] = (byte) value;
+  }
+
+  /**
+   * Writes a non negative value in 1 to 10 bytes, 7 bits at a time.
+   *
+   * @param value to be written, negative values take 10 bytes.
+   */
+  public void writeVarLong(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[size++] = (byte) value;
+  }
+
+  public void writeVarInt(int value) {
+    writeVarLong(value & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Writes a signed value, zigzag encoded so that small negative values take few bytes.
+   *
+   * @param value to be written.
+   */
+  public void writeSignedVarLong(long value) {
+    writeVarLong((value << 1) ^ (value >> 63));
+  }
+
+  public void writeDouble(double value) {
+    ensureCapacity(8);
+    long bits = Double.doubleToRawLongBits(value);
+    for (int i = 0; i < 8; i++) {
+      bytes[size++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  /**
+   * Writes the first values of an array, preceded by their number.
+   *
+   * @param values to be written.
+   * @param length number of values to be written.
+   */
+  public void writeDoubles(double[] values, int length) {
+    writeVarInt(length);
+    ensureCapacity(8 * length);
+    for (int i = 0; i < length; i++) {
+      writeDouble(values[i]);
+    }
+  }
+
+  /**
+   * Writes bytes, preceded by their number.
+   *
+   * @param values to be written.
+   */
+  public void writeBytes(byte[] values) {
+    writeVarInt(values.length);
+    ensureCapacity(values.length);
+    System.arraycopy(values, 0, bytes, size, values.length);
+    size += values.length;
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer, preceded by their number. The buffer itself is not modified.
+   *
+   * @param values to be written.
+   */
+  public void writeBytes(ByteBuffer values) {
+    int length = values.remaining();
+    writeVarInt(length);
+    ensureCapacity(length);
+    values.duplicate().get(bytes, size, length);
+    size += length;
+  }
+
+  /**
+   * Writes a string as UTF-8 bytes, preceded by their number.
+   *
+   * @param value to be written.
+   */
+  public void writeString(String value) {
+    writeBytes(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return number of bytes written.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return bytes written, wrapped without copy.
+   */
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(bytes, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * @return copy of the bytes written.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, size);
+  }
+
+  private void ensureCapacity(int length) {
+    if (size + length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+    }
+  }
+}
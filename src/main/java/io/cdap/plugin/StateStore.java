@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+
+/**
+ * This class <code>StateStore</code> persists the profile states of every field between pipeline runs,
+ * so a run only profiles the records added since the previous run and merges them with the states
+ * of the previous runs.
+ *
+ * The states of every field are kept in a file named after the URL encoded name of the field, so the
+ * paths of the leaves of record, array and map fields are valid file names, in the <code>current</code>
+ * directory under the state path. A run loads the states of a field from there and writes the merged
+ * states to a staging directory of its own. When the run succeeds, the staged states replace the
+ * current states of their fields; when it fails, they are dropped and the current states are left
+ * untouched. Fields without new records keep their current states.
+ */
+final class StateStore implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final String CURRENT = "current";
+  private static final String STAGING = "staging-";
+
+  private final String path;
+  private final long runTime;
+
+  /**
+   * @param path of the directory holding the states, on any file system supported by Hadoop.
+   * @param runTime logical start time of the run, which names its staging directory.
+   */
+  StateStore(String path, long runTime) {
+    this.path = path;
+    this.runTime = runTime;
+  }
+
+  /**
+   * Merges the states of a field persisted by the previous runs into the given states.
+   *
+   * @param name of the field.
+   * @param states of the field, merged in place.
+   * @return true if a previous run persisted states of the field.
+   */
+  boolean load(String name, ProfileState[] states) throws IOException {
+    Path file = getFile(new Path(path, CURRENT), name);
+    FileSystem fs = file.getFileSystem(new Configuration());
+    if (!fs.exists(file)) {
+      return false;
+    }
+    byte[] bytes = new byte[(int) fs.getFileStatus(file).getLen()];
+    try (FSDataInputStream in = fs.open(file)) {
+      in.readFully(bytes);
+    }
+    StateInput in = new StateInput(ByteBuffer.wrap(bytes));
+    int version = in.readVarInt();
+    if (version != ProfileState.FORMAT_VERSION) {
+      throw new IOException("Unsupported version " + version + " of the state of field '" + name + "' in '" +
+                              path + "'.");
+    }
+    int length = in.readVarInt();
+    String[] types = new String[length];
+    for (int i = 0; i < length; i++) {
+      types[i] = in.readString();
+    }
+    if (!isCompatible(types, states)) {
+      throw new IllegalStateException(
+        "The state of field '" + name + "' in '" + path + "' was written with different profiles. " +
+          "Remove the state to profile the field from scratch.");
+    }
+    for (ProfileState state : states) {
+      state.merge(in.readBytes());
+    }
+    return true;
+  }
+
+  /**
+   * Merges the states persisted by the previous runs into the states of a field, and stages the result.
+   *
+   * @param name of the field.
+   * @param states of the field for the records of this run, merged in place.
+   */
+  void merge(String name, ProfileState[] states) throws IOException {
+    load(name, states);
+    stage(name, states);
+  }
+
+  /**
+   * Writes the states of a field to the staging directory of this run. The file holds the version of
+   * the binary form, the types of the states and the binary form of every state. The type of a state
+   * created on demand is the name of its profile, since every such state has the same class.
+   *
+   * @param name of the field.
+   * @param states of the field.
+   */
+  void stage(String name, ProfileState[] states) throws IOException {
+    StateOutput out = new StateOutput();
+    out.writeVarInt(ProfileState.FORMAT_VERSION);
+    out.writeVarInt(states.length);
+    for (ProfileState state : states) {
+      out.writeString(getType(state));
+    }
+    for (ProfileState state : states) {
+      out.writeBytes(state.serialize());
+    }
+    Path file = getFile(getStaging(), name);
+    FileSystem fs = file.getFileSystem(new Configuration());
+    try (FSDataOutputStream stream = fs.create(file, true)) {
+      stream.write(out.toByteArray());
+    }
+  }
+
+  /**
+   * Replaces the current states of the fields staged by this run.
+   */
+  void commit() throws IOException {
+    Path staging = getStaging();
+    Path current = new Path(path, CURRENT);
+    FileSystem fs = staging.getFileSystem(new Configuration());
+    if (!fs.exists(staging)) {
+      return;
+    }
+    fs.mkdirs(current);
+    for (FileStatus status : fs.listStatus(staging)) {
+      Path target = new Path(current, status.getPath().getName());
+      if (fs.exists(target)) {
+        fs.delete(target, false);
+      }
+      if (!fs.rename(status.getPath(), target)) {
+        throw new IOException("Unable to move the state '" + status.getPath() + "' to '" + target + "'.");
+      }
+    }
+    fs.delete(staging, true);
+  }
+
+  /**
+   * Drops the states staged by this run.
+   */
+  void abort() throws IOException {
+    Path staging = getStaging();
+    staging.getFileSystem(new Configuration()).delete(staging, true);
+  }
+
+  private static boolean isCompatible(String[] types, ProfileState[] states) {
+    if (types.length != states.length) {
+      return false;
+    }
+    for (int i = 0; i < states.length; i++) {
+      if (!types[i].equals(getType(states[i]))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getType(ProfileState state) {
+    if (state instanceof LazyState) {
+      return ((LazyState) state).getProfile().name();
+    }
+    return state.getClass().getName();
+  }
+
+  // File of the states of a field, whose path can hold characters that are not allowed in a file name.
+  private static Path getFile(Path directory, String name) throws IOException {
+    return new Path(directory, encode(name));
+  }
+
+  /**
+   * Encodes a name, like the path of a field or the name of a stage, into a valid file name.
+   *
+   * @param name to be encoded.
+   * @return URL encoded name.
+   */
+  static String encode(String name) throws IOException {
+    try {
+      return URLEncoder.encode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private Path getStaging() {
+    return new Path(path, STAGING + runTime);
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.annotation.Description;
+import io.cdap.cdap.api.annotation.Name;
+import io.cdap.cdap.api.annotation.Plugin;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.StageConfigurer;
+import io.cdap.cdap.etl.api.batch.SparkCompute;
+import io.cdap.cdap.etl.api.batch.SparkExecutionPluginContext;
+import org.apache.spark.api.java.JavaRDD;
+import scala.Option;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spark compute that calculates statistics for each record field of a stream over tumbling or
+ * sliding windows. Every micro-batch is profiled once, like the Spark Data Profiler does, and its
+ * partial profile is kept on the driver in the panes of the windows it belongs to. Every closed
+ * window emits one output record per field. The panes are saved after every micro-batch, to the
+ * state path or to the checkpoint directory of the stream, and loaded back when the driver restarts.
+ */
+@Plugin(type = SparkCompute.PLUGIN_TYPE)
+@Name(StreamingDataProfiler.NAME)
+@Description("Calculates statistics for each input record field over tumbling or sliding windows of a stream. " +
+  "Every micro-batch is profiled once and the profile of every window is emitted when the window closes.")
+public class StreamingDataProfiler extends SparkCompute<StructuredRecord, StructuredRecord> {
+  private static final long serialVersionUID = 1L;
+
+  public static final String NAME = "StreamingDataProfiler";
+  // Name of the file holding the panes of the windows, under the state path or the checkpoint directory.
+  private static final String PANES = "panes";
+  static final String WINDOW_START = "window_start";
+  static final String WINDOW_END = "window_end";
+  private final Conf conf;
+  // Kept on the driver between micro-batches.
+  private transient DefaultProfiler executor;
+  private transient Schema outputSchema;
+  private transient WindowedProfile windows;
+  // File the panes are saved to, or null if they are only kept in memory.
+  private transient String panes;
+
+  public StreamingDataProfiler(Conf conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void configurePipeline(PipelineConfigurer configurer) {
+    StageConfigurer stageConfigurer = configurer.getStageConfigurer();
+    conf.validate(stageConfigurer.getFailureCollector());
+    stageConfigurer.setOutputSchema(createOutputSchema(
+      DataProfiler.createProfiler(conf, stageConfigurer.getInputSchema()).getOutputSchema()));
+  }
+
+  @Override
+  public JavaRDD<StructuredRecord> transform(SparkExecutionPluginContext context,
+                                             JavaRDD<StructuredRecord> input) throws Exception {
+    Schema schema = context.getInputSchema();
+    if (windows == null) {
+      executor = DataProfiler.createProfiler(conf, schema);
+      outputSchema = createOutputSchema(executor.getOutputSchema());
+      windows = new WindowedProfile(executor, conf.getWindowWidth(), conf.getSlideInterval());
+      panes = getPanes(context);
+      if (panes != null) {
+        windows.load(panes);
+      }
+    }
+    PartialProfile batch = input.treeAggregate(null, new SparkDataProfiler.ProfilePartition(
+                                                 conf, schema, conf.getSeed(context.getLogicalStartTime())),
+                                               new SparkDataProfiler.MergePartitions(),
+                                               conf.getMergeDepth(input.getNumPartitions()));
+    // Micro-batches without records still close the windows ending before their time.
+    List<WindowedProfile.Window> closed = windows.add(context.getLogicalStartTime(), batch);
+    if (panes != null && (batch != null || !closed.isEmpty())) {
+      windows.save(panes);
+    }
+    List<StructuredRecord> results = new ArrayList<>();
+    for (WindowedProfile.Window window : closed) {
+      PartialProfile partial = window.getProfile();
+      for (int i = 0; i < partial.size(); i++) {
+        results.add(withWindow(executor.result(partial.getName(i), partial.getStates(i)), window));
+      }
+      partial.release();
+    }
+    return context.getSparkContext().parallelize(results, 1);
+  }
+
+  // File the panes are saved to, under the state path or the checkpoint directory of the stream, if any.
+  @Nullable
+  private String getPanes(SparkExecutionPluginContext context) throws IOException {
+    if (conf.isPersisted()) {
+      return conf.getStatePath() + "/" + PANES;
+    }
+    Option<String> checkpoint = context.getSparkContext().sc().getCheckpointDir();
+    if (checkpoint.isEmpty()) {
+      return null;
+    }
+    return checkpoint.get() + "/" + NAME + "/" + StateStore.encode(context.getStageName()) + "-" + PANES;
+  }
+
+  private StructuredRecord withWindow(StructuredRecord result, WindowedProfile.Window window) {
+    StructuredRecord.Builder builder = StructuredRecord.builder(outputSchema);
+    for (Schema.Field field : result.getSchema().getFields()) {
+      builder.set(field.getName(), result.get(field.getName()));
+    }
+    return builder
+      .set(WINDOW_START, TimeUnit.MILLISECONDS.toMicros(window.getStart()))
+      .set(WINDOW_END, TimeUnit.MILLISECONDS.toMicros(window.getEnd()))
+      .build();
+  }
+
+  /**
+   * Adds the bounds of the window to the output schema of the profiler.
+   *
+   * @param schema output schema of the profiler.
+   * @return output schema of the stage.
+   */
+  static Schema createOutputSchema(Schema schema) {
+    List<Schema.Field> fields = new ArrayList<>(schema.getFields());
+    fields.add(Schema.Field.of(WINDOW_START, Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)));
+    fields.add(Schema.Field.of(WINDOW_END, Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)));
+    return Schema.recordOf(schema.getRecordName(), fields);
+  }
+
+  class Request {}
+
+  /**
+   * This method retrieves the schema of the profiler output schema.
+   *
+   * @param request empty object.
+   * @return Translated schema.
+   * @throws Exception
+   */
+  @Path("getSchema")
+  public Schema getSchema(Request request) throws Exception {
+    return createOutputSchema(DataProfiler.createProfiler(conf, null).getOutputSchema());
+  }
+
+  /**
+   * Configuration of the streaming profiler, which adds the width and the slide of the windows to
+   * the configuration of the Spark profiler.
+   */
+  public static class Conf extends SparkDataProfiler.Conf {
+    private static final long serialVersionUID = 1L;
+
+    private static final String WINDOW_WIDTH = "windowWidth";
+    private static final String SLIDE_INTERVAL = "slideInterval";
+    private static final long DEFAULT_WINDOW_WIDTH = 60;
+
+    @Nullable
+    @Description("The width of the windows, in seconds. Defaults to 60.")
+    @Name(WINDOW_WIDTH)
+    private Long windowWidth;
+
+    @Nullable
+    @Description("The time between the starts of two windows, in seconds, which must divide the width of the " +
+      "windows. Defaults to the width of the windows, for tumbling windows.")
+    @Name(SLIDE_INTERVAL)
+    private Long slideInterval;
+
+    long getWindowWidth() {
+      return TimeUnit.SECONDS.toMillis(windowWidth == null ? DEFAULT_WINDOW_WIDTH : windowWidth);
+    }
+
+    long getSlideInterval() {
+      return slideInterval == null ? getWindowWidth() : TimeUnit.SECONDS.toMillis(slideInterval);
+    }
+
+    @Override
+    void validate(FailureCollector collector) {
+      super.validate(collector);
+      if (windowWidth != null && windowWidth < 1) {
+        collector.addFailure("Invalid window width: " + windowWidth + ".", "Must be at least 1 second.")
+          .withConfigProperty(WINDOW_WIDTH);
+      } else if (slideInterval != null && slideInterval < 1) {
+        collector.addFailure("Invalid slide interval: " + slideInterval + ".", "Must be at least 1 second.")
+          .withConfigProperty(SLIDE_INTERVAL);
+      } else if (getWindowWidth() % getSlideInterval() != 0) {
+        collector.addFailure("Invalid slide interval: " + slideInterval + ".",
+                             "Must divide the window width.")
+          .withConfigProperty(SLIDE_INTERVAL);
+      }
+      if (isSampled()) {
+        collector.addFailure("Sampling is not supported by the streaming profiler.",
+                             "Set sampling to 'none'. Every window only profiles its own records.")
+          .withConfigProperty(SAMPLING);
+      }
+    }
+  }
+}
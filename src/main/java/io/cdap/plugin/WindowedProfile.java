@@ -0,0 +1,283 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class <code>WindowedProfile</code> keeps the partial profiles of the records of a stream
+ * over tumbling or sliding windows.
+ *
+ * Time is cut in panes as long as the slide of the windows, and every window spans a fixed number
+ * of consecutive panes. The partial profiles of the micro-batches are merged into the pane of their
+ * time, held in a ring with one slot per pane of a window. When the stream moves to a later pane, the
+ * windows ending before it are closed by merging the panes they span, and the oldest pane is released.
+ * The partial profiles of the closed windows are released by the caller once their results are built.
+ * Every micro-batch is profiled once, and the memory used only depends on the number of panes of a window.
+ *
+ * Windows are closed on the time of the micro-batches, so micro-batches without records still close the
+ * windows ending before them. The panes can be saved to a file after every micro-batch, in the versioned
+ * binary form of their states, and loaded back when the driver restarts. States that were not created yet
+ * are saved as their counters, the way partial profiles are shipped between tasks.
+ */
+final class WindowedProfile {
+  private final Profiler profiler;
+  private final long slide;
+  private final PartialProfile[] panes;
+  // Index of the latest pane, from the start of the epoch, or -1 before the first micro-batch.
+  private long last = -1;
+
+  /**
+   * @param profiler creating the partial profiles of the windows.
+   * @param width of the windows, in milliseconds, a multiple of the slide.
+   * @param slide time between the starts of two windows, in milliseconds.
+   */
+  WindowedProfile(Profiler profiler, long width, long slide) {
+    this.profiler = profiler;
+    this.slide = slide;
+    this.panes = new PartialProfile[(int) (width / slide)];
+  }
+
+  /**
+   * Adds the partial profile of a micro-batch to the pane of its time, and closes the windows ending
+   * before this pane. Micro-batches older than the latest pane are added to the latest pane.
+   *
+   * @param time of the micro-batch, in milliseconds since the epoch.
+   * @param batch partial profile of the micro-batch, or null if it had no records.
+   * @return windows closed by the micro-batch, from the oldest to the latest, without the windows
+   *         that have no records.
+   */
+  List<Window> add(long time, @Nullable PartialProfile batch) {
+    long pane = Math.max(time / slide, last);
+    List<Window> closed = new ArrayList<>();
+    if (last >= 0) {
+      // Past a whole window, the windows ending later only span empty panes.
+      long end = Math.min(pane, last + panes.length);
+      for (long boundary = last + 1; boundary <= end; boundary++) {
+        Window window = close(boundary);
+        if (window != null) {
+          closed.add(window);
+        }
+        int slot = slot(boundary);
+        if (panes[slot] != null) {
+          panes[slot].release();
+          panes[slot] = null;
+        }
+      }
+    }
+    last = pane;
+    if (batch != null) {
+      int slot = slot(pane);
+      if (panes[slot] == null) {
+        panes[slot] = batch;
+      } else {
+        panes[slot].merge(batch);
+        batch.release();
+      }
+    }
+    return closed;
+  }
+
+  // Merges the panes of the window ending at the start of the given pane.
+  @Nullable
+  private Window close(long boundary) {
+    PartialProfile merged = null;
+    for (long pane = boundary - panes.length; pane < boundary; pane++) {
+      PartialProfile partial = pane < 0 ? null : panes[slot(pane)];
+      if (partial != null) {
+        if (merged == null) {
+          merged = profiler.newPartialProfile(false);
+        }
+        merged.merge(partial);
+      }
+    }
+    return merged == null ? null : new Window((boundary - panes.length) * slide, boundary * slide, merged);
+  }
+
+  private int slot(long pane) {
+    return (int) (pane % panes.length);
+  }
+
+  /**
+   * Writes the latest pane and the partial profiles of the panes, as the names of their fields followed
+   * by the names of their profiles and the binary form of their states within a partial profile.
+   *
+   * @param out to write the panes to.
+   */
+  void write(StateOutput out) {
+    out.writeVarInt(ProfileState.FORMAT_VERSION);
+    out.writeSignedVarLong(last);
+    out.writeVarInt(panes.length);
+    for (PartialProfile pane : panes) {
+      if (pane == null) {
+        out.writeByte(0);
+        continue;
+      }
+      out.writeByte(1);
+      out.writeVarInt(pane.size());
+      for (int i = 0; i < pane.size(); i++) {
+        ProfileState[] states = pane.getStates(i);
+        out.writeString(pane.getName(i));
+        out.writeVarInt(states.length);
+        for (ProfileState state : states) {
+          out.writeString(((LazyState) state).getProfile().name());
+          ((LazyState) state).writePartial(out);
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the panes with the panes written by <code>write</code>.
+   *
+   * @param in to read the panes from.
+   */
+  void read(StateInput in) {
+    int version = in.readVarInt();
+    if (version != ProfileState.FORMAT_VERSION) {
+      throw new IllegalStateException("Unsupported version " + version + " of the panes of the windows.");
+    }
+    long latest = in.readSignedVarLong();
+    if (in.readVarInt() != panes.length) {
+      throw new IllegalStateException("The panes of the windows were saved with a different width or slide. " +
+                                        "Remove them to profile the windows from scratch.");
+    }
+    PartialProfile[] loaded = new PartialProfile[panes.length];
+    for (int slot = 0; slot < loaded.length; slot++) {
+      if (in.readByte() == 0) {
+        continue;
+      }
+      PartialProfile pane = profiler.newPartialProfile(false);
+      if (in.readVarInt() != pane.size()) {
+        throw new IllegalStateException("The panes of the windows were saved with a different schema. " +
+                                          "Remove them to profile the windows from scratch.");
+      }
+      for (int i = 0; i < pane.size(); i++) {
+        ProfileState[] states = pane.getStates(i);
+        if (!pane.getName(i).equals(in.readString()) || in.readVarInt() != states.length) {
+          throw new IllegalStateException("The panes of the windows were saved with different fields or " +
+                                            "profiles. Remove them to profile the windows from scratch.");
+        }
+        for (ProfileState state : states) {
+          if (!((LazyState) state).getProfile().name().equals(in.readString())) {
+            throw new IllegalStateException("The panes of the windows were saved with different profiles. " +
+                                              "Remove them to profile the windows from scratch.");
+          }
+          ((LazyState) state).mergePartial(in);
+        }
+      }
+      loaded[slot] = pane;
+    }
+    for (int slot = 0; slot < panes.length; slot++) {
+      if (panes[slot] != null) {
+        panes[slot].release();
+      }
+      panes[slot] = loaded[slot];
+    }
+    last = latest;
+  }
+
+  /**
+   * Saves the panes to a file, replacing the panes saved before. The panes are written next to the file
+   * and moved over it, so that the file always holds complete panes.
+   *
+   * @param path of the file holding the panes, on any file system supported by Hadoop.
+   */
+  void save(String path) throws IOException {
+    Path file = new Path(path);
+    StateOutput out = new StateOutput();
+    write(out);
+    Path temp = getTemp(file);
+    FileSystem fs = file.getFileSystem(new Configuration());
+    try (FSDataOutputStream stream = fs.create(temp, true)) {
+      stream.write(out.toByteArray());
+    }
+    fs.delete(file, false);
+    if (!fs.rename(temp, file)) {
+      throw new IOException("Unable to move the panes of the windows '" + temp + "' to '" + file + "'.");
+    }
+  }
+
+  /**
+   * Loads the panes saved to a file, if any. Panes written next to the file are loaded when the file
+   * itself is missing, since they are only moved over it once they are complete.
+   *
+   * @param path of the file holding the panes, on any file system supported by Hadoop.
+   * @return true if panes were loaded.
+   */
+  boolean load(String path) throws IOException {
+    Path file = new Path(path);
+    FileSystem fs = file.getFileSystem(new Configuration());
+    Path source = fs.exists(file) ? file : getTemp(file);
+    if (!fs.exists(source)) {
+      return false;
+    }
+    byte[] bytes = new byte[(int) fs.getFileStatus(source).getLen()];
+    try (FSDataInputStream in = fs.open(source)) {
+      in.readFully(bytes);
+    }
+    read(new StateInput(ByteBuffer.wrap(bytes)));
+    return true;
+  }
+
+  private static Path getTemp(Path file) {
+    return new Path(file.getParent(), file.getName() + ".tmp");
+  }
+
+  /**
+   * A closed window, with the partial profile of all its records.
+   */
+  static final class Window {
+    private final long start;
+    private final long end;
+    private final PartialProfile profile;
+
+    Window(long start, long end, PartialProfile profile) {
+      this.start = start;
+      this.end = end;
+      this.profile = profile;
+    }
+
+    /**
+     * @return start of the window, in milliseconds since the epoch.
+     */
+    long getStart() {
+      return start;
+    }
+
+    /**
+     * @return end of the window, excluded, in milliseconds since the epoch.
+     */
+    long getEnd() {
+      return end;
+    }
+
+    PartialProfile getProfile() {
+      return profile;
+    }
+  }
+}
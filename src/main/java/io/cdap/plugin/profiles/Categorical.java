@@ -19,7 +19,9 @@ package io.cdap.plugin.profiles;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.Profile;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
 
 import java.util.Arrays;
 import java.util.List;
@@ -31,16 +33,26 @@ import java.util.List;
  * The class generates min, max, empty (values that are not null), mean, standard deviation,
  * median, skewness, kurtosis, population variance, nulls, non null, geometric mean, and
  * quadratic mean.
+ *
+ * The median is estimated with a <code>QuantileSketch</code> and the other statistics are
+ * accumulated in <code>Moments</code>, so the memory is bounded no matter how many values
+ * are profiled.
  */
 public final class Categorical extends Profile {
-  private DescriptiveStatistics statistics;
-  private long count; // number of values.
-  private long nulls; // values that are null (not empty)
-  private long empty; // values that are not null, but empty.
+  private static final long serialVersionUID = 1L;
+
+  private final int accuracy;
 
   public Categorical() {
+    this(QuantileSketch.DEFAULT_K);
+  }
+
+  /**
+   * @param accuracy of the quantile sketch, see <code>QuantileSketch</code>.
+   */
+  public Categorical(int accuracy) {
     super("categorical");
-    statistics = new DescriptiveStatistics();
+    this.accuracy = accuracy;
   }
 
   /**
@@ -78,57 +90,179 @@ public final class Categorical extends Profile {
     );
   }
 
-  /**
-   * Resets the internal state of the profiler.
-   */
   @Override
-  public void reset() {
-    statistics.clear();
-    count = 0;
-    nulls = 0;
-    empty = 0;
+  public ProfileState newState() {
+    return new State(accuracy);
   }
 
   /**
-   * Updates the internal states of categorical statistics.
-   *
-   * @param value to be used to update the internal states.
+   * State of the categorical profile of a field.
    */
-  @Override
-  public void update(Object value) {
-    count = count + 1;
-    if (value == null) {
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final Moments statistics;
+    private final QuantileSketch quantiles;
+    private long count; // number of values.
+    private long nulls; // values that are null (not empty)
+    private long empty; // values that are not null, but empty.
+
+    State(int accuracy) {
+      statistics = new Moments();
+      quantiles = new QuantileSketch(accuracy);
+    }
+
+    /**
+     * Updates the internal states of categorical statistics.
+     *
+     * @param value to be used to update the internal states.
+     */
+    @Override
+    public void update(Object value) {
+      if (value == null) {
+        updateNull();
+      } else if (value instanceof String) {
+        update((CharSequence) value);
+      } else {
+        count = count + 1;
+      }
+    }
+
+    @Override
+    public void updateNull() {
+      count = count + 1;
       nulls = nulls + 1;
-    } else if (value instanceof String) {
-      String val = (String) value;
-      if (val.isEmpty()) {
+    }
+
+    @Override
+    public void updateNull(long times) {
+      count = count + times;
+      nulls = nulls + times;
+    }
+
+    @Override
+    public void update(CharSequence value) {
+      count = count + 1;
+      int length = value.length();
+      if (length == 0) {
         empty = empty + 1;
       } else {
-        statistics.addValue(val.length());
+        statistics.update(length);
+        quantiles.update(length);
+      }
+    }
+
+    @Override
+    public void update(CharSequence value, long times) {
+      count = count + times;
+      int length = value.length();
+      if (length == 0) {
+        empty = empty + times;
+      } else {
+        statistics.update(length, times);
+        quantiles.update(length, times);
       }
     }
-  }
 
+    /**
+     * Counts a value left out of the sample, which is not part of the length statistics.
+     *
+     * @param value left out of the sample.
+     */
+    @Override
+    public void skip(Object value) {
+      count = count + 1;
+      if (value == null) {
+        nulls = nulls + 1;
+      } else if (value instanceof CharSequence && ((CharSequence) value).length() == 0) {
+        empty = empty + 1;
+      }
+    }
 
-  /**
-   * Method for retrieving the results of aggregation.
-   *
-   * @param builder allows to set the internal results of aggregation into <code>StructuredRecord</code>.
-   */
-  @Override
-  public void results(StructuredRecord.Builder builder) {
-    builder.set("nulls", nulls);
-    builder.set("non_nulls", count - nulls);
-    builder.set("empty", empty);
-    builder.set("maximum", V(statistics.getMax()));
-    builder.set("minimum", V(statistics.getMin()));
-    builder.set("mean", V(statistics.getMean()));
-    builder.set("stdev", V(statistics.getStandardDeviation()));
-    builder.set("median", V(statistics.getPercentile(50)));
-    builder.set("geometric_mean", V(statistics.getGeometricMean()));
-    builder.set("skewness", V(statistics.getSkewness()));
-    builder.set("kurtosis", V(statistics.getKurtosis()));
-    builder.set("population_variance", V(statistics.getPopulationVariance()));
-    builder.set("quadratic_mean", V(statistics.getQuadraticMean()));
+    @Override
+    public void skip(Object value, long times) {
+      count = count + times;
+      if (value == null) {
+        nulls = nulls + times;
+      } else if (value instanceof CharSequence && ((CharSequence) value).length() == 0) {
+        empty = empty + times;
+      }
+    }
+
+    @Override
+    public long estimateSize() {
+      // The three counters, the moments and the sketch of the lengths.
+      return 3 * 8 + Moments.SIZE + quantiles.estimateSize();
+    }
+
+    @Override
+    public boolean shrink() {
+      return quantiles.shrink();
+    }
+
+    /**
+     * Merges the internal states of another categorical state into this one.
+     *
+     * @param other categorical state to be merged.
+     */
+    @Override
+    public void merge(ProfileState other) {
+      State state = (State) other;
+      count = count + state.count;
+      nulls = nulls + state.nulls;
+      empty = empty + state.empty;
+      statistics.merge(state.statistics);
+      quantiles.merge(state.quantiles);
+    }
+
+    /**
+     * Writes the binary form of the categorical state.
+     *
+     * @param out to write the state to.
+     */
+    @Override
+    public void write(StateOutput out) {
+      out.writeVarLong(count);
+      out.writeVarLong(nulls);
+      out.writeVarLong(empty);
+      statistics.write(out);
+      quantiles.write(out);
+    }
+
+    /**
+     * Merges the binary form of another categorical state into this one.
+     *
+     * @param in to read the state from.
+     */
+    @Override
+    public void merge(StateInput in) {
+      count = count + in.readVarLong();
+      nulls = nulls + in.readVarLong();
+      empty = empty + in.readVarLong();
+      statistics.merge(in);
+      quantiles.merge(in);
+    }
+
+    /**
+     * Method for retrieving the results of aggregation.
+     *
+     * @param builder allows to set the internal results of aggregation into <code>StructuredRecord</code>.
+     */
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      builder.set("nulls", nulls);
+      builder.set("non_nulls", count - nulls);
+      builder.set("empty", empty);
+      builder.set("maximum", V(statistics.getMax()));
+      builder.set("minimum", V(statistics.getMin()));
+      builder.set("mean", V(statistics.getMean()));
+      builder.set("stdev", V(statistics.getStandardDeviation()));
+      builder.set("median", V(quantiles.getPercentile(50)));
+      builder.set("geometric_mean", V(statistics.getGeometricMean()));
+      builder.set("skewness", V(statistics.getSkewness()));
+      builder.set("kurtosis", V(statistics.getKurtosis()));
+      builder.set("population_variance", V(statistics.getPopulationVariance()));
+      builder.set("quadratic_mean", V(statistics.getQuadraticMean()));
+    }
   }
 }
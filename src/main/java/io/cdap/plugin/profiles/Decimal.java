@@ -0,0 +1,364 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class <code>Decimal</code> profiler reports the range of the values of decimal fields and the
+ * distributions of the precision and the scale they need, the number of significant digits and of
+ * decimals once the trailing zeros of the decimals are removed.
+ *
+ * Values are read from the bytes of their unscaled value. Values of up to 8 bytes, which is up to 18 digits,
+ * are decoded into a long and profiled with long arithmetic, so no <code>BigDecimal</code> is created per
+ * value; wider values are decoded into a <code>BigInteger</code>.
+ */
+public final class Decimal extends Profile {
+  private static final long serialVersionUID = 1L;
+
+  private static final String VALUE = "value";
+  private static final String COUNT = "count";
+  // Schema of the number of values of every precision or scale.
+  private static final Schema SCHEMA = Schema.recordOf(
+    "decimalcount",
+    Schema.Field.of(VALUE, Schema.of(Schema.Type.INT)),
+    Schema.Field.of(COUNT, Schema.of(Schema.Type.LONG))
+  );
+  private static final long[] POWERS_OF_TEN = new long[19];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final int scale;
+
+  public Decimal() {
+    this(0);
+  }
+
+  private Decimal(int scale) {
+    super("decimal");
+    this.scale = scale;
+  }
+
+  @Override
+  public List<Schema.Type> types() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public List<Schema.LogicalType> logicalTypes() {
+    return Arrays.asList(Schema.LogicalType.DECIMAL);
+  }
+
+  @Override
+  public List<Schema.Field> fields() {
+    return Arrays.asList(
+      Schema.Field.of("minimum", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("maximum", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("range", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("precisions", Schema.nullableOf(Schema.arrayOf(SCHEMA))),
+      Schema.Field.of("scales", Schema.nullableOf(Schema.arrayOf(SCHEMA)))
+    );
+  }
+
+  /**
+   * Binds the profile to the scale of a decimal field.
+   *
+   * @param schema of the field.
+   * @return profile of the field.
+   */
+  @Override
+  public Profile forSchema(Schema schema) {
+    return schema.getLogicalType() == Schema.LogicalType.DECIMAL ? new Decimal(schema.getScale()) : this;
+  }
+
+  @Override
+  public ProfileState newState() {
+    return new State(scale);
+  }
+
+  /**
+   * State of the decimal profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final int scale;
+    private long count;
+    // Minimum and maximum of the unscaled values that fit in a long, and of the wider ones.
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    @Nullable
+    private BigInteger wideMin;
+    @Nullable
+    private BigInteger wideMax;
+    // Number of values of every precision and of every scale.
+    private long[] precisions;
+    private long[] scales;
+
+    State(int scale) {
+      this.scale = scale;
+      this.precisions = new long[POWERS_OF_TEN.length + 1];
+      this.scales = new long[scale + 1];
+    }
+
+    @Override
+    public void update(Object value) {
+      update(value, 1);
+    }
+
+    @Override
+    public void update(Object value, long times) {
+      if (value instanceof ByteBuffer) {
+        update((ByteBuffer) value, times);
+      } else if (value instanceof byte[]) {
+        update((byte[]) value, times);
+      }
+    }
+
+    @Override
+    public void updateNull() {
+      // Nulls have no digits.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls have no digits.
+    }
+
+    private void update(byte[] bytes, long times) {
+      if (bytes.length > 8) {
+        update(new BigInteger(bytes), times);
+        return;
+      }
+      long unscaled = bytes.length == 0 ? 0 : bytes[0];
+      for (int i = 1; i < bytes.length; i++) {
+        unscaled = unscaled << 8 | bytes[i] & 0xFFL;
+      }
+      updateUnscaled(unscaled, times);
+    }
+
+    private void update(ByteBuffer bytes, long times) {
+      int from = bytes.position();
+      int length = bytes.remaining();
+      if (length > 8) {
+        byte[] wide = new byte[length];
+        bytes.duplicate().get(wide);
+        update(new BigInteger(wide), times);
+        return;
+      }
+      long unscaled = length == 0 ? 0 : bytes.get(from);
+      for (int i = 1; i < length; i++) {
+        unscaled = unscaled << 8 | bytes.get(from + i) & 0xFFL;
+      }
+      updateUnscaled(unscaled, times);
+    }
+
+    private void updateUnscaled(long unscaled, long times) {
+      count += times;
+      if (unscaled < min) {
+        min = unscaled;
+      }
+      if (unscaled > max) {
+        max = unscaled;
+      }
+      // Trailing zeros of the decimals don't need any precision.
+      int decimals = scale;
+      while (decimals > 0 && unscaled != 0 && unscaled % 10 == 0) {
+        unscaled /= 10;
+        decimals--;
+      }
+      scales[unscaled == 0 ? 0 : decimals] += times;
+      precisions[digits(unscaled)] += times;
+    }
+
+    private void update(BigInteger unscaled, long times) {
+      count += times;
+      if (wideMin == null || unscaled.compareTo(wideMin) < 0) {
+        wideMin = unscaled;
+      }
+      if (wideMax == null || unscaled.compareTo(wideMax) > 0) {
+        wideMax = unscaled;
+      }
+      int decimals = scale;
+      while (decimals > 0 && unscaled.signum() != 0) {
+        BigInteger[] division = unscaled.divideAndRemainder(BigInteger.TEN);
+        if (division[1].signum() != 0) {
+          break;
+        }
+        unscaled = division[0];
+        decimals--;
+      }
+      scales[unscaled.signum() == 0 ? 0 : decimals] += times;
+      int digits = unscaled.abs().toString().length();
+      if (digits >= precisions.length) {
+        precisions = Arrays.copyOf(precisions, digits + 1);
+      }
+      precisions[digits] += times;
+    }
+
+    private static int digits(long value) {
+      if (value == Long.MIN_VALUE) {
+        return 19;
+      }
+      long abs = Math.abs(value);
+      int digits = 1;
+      while (digits < POWERS_OF_TEN.length && abs >= POWERS_OF_TEN[digits]) {
+        digits++;
+      }
+      return digits;
+    }
+
+    @Override
+    public long estimateSize() {
+      return 64 + 8L * (precisions.length + scales.length);
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      State state = (State) other;
+      count += state.count;
+      min = Math.min(min, state.min);
+      max = Math.max(max, state.max);
+      mergeWide(state.wideMin, state.wideMax);
+      mergeCounts(state.precisions, state.scales);
+    }
+
+    private void mergeWide(@Nullable BigInteger otherMin, @Nullable BigInteger otherMax) {
+      if (otherMin != null && (wideMin == null || otherMin.compareTo(wideMin) < 0)) {
+        wideMin = otherMin;
+      }
+      if (otherMax != null && (wideMax == null || otherMax.compareTo(wideMax) > 0)) {
+        wideMax = otherMax;
+      }
+    }
+
+    private void mergeCounts(long[] otherPrecisions, long[] otherScales) {
+      if (otherPrecisions.length > precisions.length) {
+        precisions = Arrays.copyOf(precisions, otherPrecisions.length);
+      }
+      for (int i = 0; i < otherPrecisions.length; i++) {
+        precisions[i] += otherPrecisions[i];
+      }
+      for (int i = 0; i < otherScales.length; i++) {
+        scales[i] += otherScales[i];
+      }
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      out.writeVarLong(count);
+      if (count == 0) {
+        return;
+      }
+      out.writeSignedVarLong(min);
+      out.writeSignedVarLong(max);
+      out.writeByte(wideMin == null ? 0 : 1);
+      if (wideMin != null) {
+        out.writeBytes(wideMin.toByteArray());
+        out.writeBytes(wideMax.toByteArray());
+      }
+      writeCounts(out, precisions);
+      writeCounts(out, scales);
+    }
+
+    private static void writeCounts(StateOutput out, long[] counts) {
+      out.writeVarInt(counts.length);
+      for (long n : counts) {
+        out.writeVarLong(n);
+      }
+    }
+
+    private static long[] readCounts(StateInput in) {
+      long[] counts = new long[in.readVarInt()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = in.readVarLong();
+      }
+      return counts;
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      long otherCount = in.readVarLong();
+      if (otherCount == 0) {
+        return;
+      }
+      count += otherCount;
+      min = Math.min(min, in.readSignedVarLong());
+      max = Math.max(max, in.readSignedVarLong());
+      if (in.readByte() != 0) {
+        mergeWide(new BigInteger(toArray(in.readBytes())), new BigInteger(toArray(in.readBytes())));
+      }
+      mergeCounts(readCounts(in), readCounts(in));
+    }
+
+    private static byte[] toArray(ByteBuffer bytes) {
+      byte[] array = new byte[bytes.remaining()];
+      bytes.duplicate().get(array);
+      return array;
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      if (count == 0) {
+        return;
+      }
+      BigInteger minimum = wideMin;
+      BigInteger maximum = wideMax;
+      if (min <= max) {
+        BigInteger narrowMin = BigInteger.valueOf(min);
+        BigInteger narrowMax = BigInteger.valueOf(max);
+        minimum = minimum == null || narrowMin.compareTo(minimum) < 0 ? narrowMin : minimum;
+        maximum = maximum == null || narrowMax.compareTo(maximum) > 0 ? narrowMax : maximum;
+      }
+      builder.set("minimum", new BigDecimal(minimum, scale).toPlainString());
+      builder.set("maximum", new BigDecimal(maximum, scale).toPlainString());
+      builder.set("range", new BigDecimal(maximum.subtract(minimum), scale).toPlainString());
+      builder.set("precisions", counts(precisions));
+      builder.set("scales", counts(scales));
+    }
+
+    private static List<StructuredRecord> counts(long[] counts) {
+      List<StructuredRecord> records = new ArrayList<>();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          records.add(StructuredRecord.builder(SCHEMA).set(VALUE, i).set(COUNT, counts[i]).build());
+        }
+      }
+      return records;
+    }
+  }
+}
@@ -16,25 +16,53 @@
 
 package io.cdap.plugin.profiles;
 
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Arrays;
+
 /**
- * Class description here.
+ * This class <code>DynamicHistogram</code> maintains an equi-depth histogram of a stream of values.
+ * The histogram is seeded with the first points, then the count of a bucket decays when it isn't
+ * updated and the buckets are repartitioned when their counts become too skewed.
+ *
+ * The buckets are kept as parallel arrays of upper bounds, counts and update positions, so a point
+ * is added with a binary search and without any allocation. Repartitioning reuses scratch buffers
+ * and the skew is tested against a chi-square critical value computed once per histogram.
+ *
+ * A histogram is not thread safe. It is owned by the state of a single field, which is only ever
+ * updated by a single writer, so the update path doesn't take any lock.
  */
-import org.apache.commons.math3.stat.inference.ChiSquareTest;
+public class DynamicHistogram implements Serializable {
+  private static final long serialVersionUID = 1L;
 
-import java.util.Arrays;
+  // Confidence with which the counts of the buckets are considered too skewed.
+  private static final double CONFIDENCE = 0.95;
 
-public class DynamicHistogram {
   private final int numInitialDataPoints;
   private final int numInitialDataPointsPerBucket;
   private final int numBuckets;
   private final int halfLife;
+  private final double meanLifetime;
+  private final double criticalValue;
   private long numDataPoints;
   private double initialDataPoints[];
-  private final double meanLifetime;
 
   private double min;
   private double max;
-  private Bucket buckets[];
+  // Upper bound (exclusive) of every bucket, the last one is always positive infinity.
+  private double[] highs;
+  private double[] counts;
+  private long[] lastUpdates;
+
+  // Buffers reused when repartitioning.
+  private transient double[] scratchHighs;
+  private transient double[] scratchCounts;
+  private transient long[] scratchUpdates;
+  private transient double[] density;
 
   /**
    * @param numBuckets                    number of buckets. If there are 10 buckets then the output histogram
@@ -46,12 +74,11 @@ public class DynamicHistogram {
    */
   public DynamicHistogram(int numBuckets, int numInitialDataPointsPerBucket, int halfLife) {
     this.halfLife = halfLife;
-    this.numBuckets = numBuckets;
     if (numBuckets < 3) {
       numBuckets = 3;
     }
-    buckets = new Bucket[numBuckets];
-    if (numInitialDataPointsPerBucket < 0) {
+    this.numBuckets = numBuckets;
+    if (numInitialDataPointsPerBucket < 1) {
       numInitialDataPointsPerBucket = 1;
     }
     this.numInitialDataPointsPerBucket = numInitialDataPointsPerBucket;
@@ -60,60 +87,68 @@ public class DynamicHistogram {
     this.initialDataPoints = new double[numInitialDataPoints];
     // http://en.wikipedia.org/wiki/Exponential_decay
     this.meanLifetime = 1.44 * halfLife;
+    this.criticalValue = new ChiSquaredDistribution(numBuckets - 1).inverseCumulativeProbability(CONFIDENCE);
+    this.highs = new double[numBuckets];
+    this.counts = new double[numBuckets];
+    this.lastUpdates = new long[numBuckets];
   }
 
   private void createInitialHistogram() {
     Arrays.sort(initialDataPoints);
-    buckets = new Bucket[numBuckets];
     for (int i = 0; i < numBuckets - 1; i++) {
-      int offset;
-      buckets[i] = new Bucket();
-      offset = (i + 1) * numInitialDataPointsPerBucket;
-      buckets[i].high = (initialDataPoints[offset - 1] + initialDataPoints[offset]) / 2;
-      buckets[i].count = numInitialDataPointsPerBucket;
-    }
-    buckets[numBuckets - 1] = new Bucket();
-    buckets[numBuckets - 1].high = Double.POSITIVE_INFINITY;
-    buckets[numBuckets - 1].count = numInitialDataPointsPerBucket;
+      int offset = (i + 1) * numInitialDataPointsPerBucket;
+      highs[i] = (initialDataPoints[offset - 1] + initialDataPoints[offset]) / 2;
+      counts[i] = numInitialDataPointsPerBucket;
+    }
+    highs[numBuckets - 1] = Double.POSITIVE_INFINITY;
+    counts[numBuckets - 1] = numInitialDataPointsPerBucket;
     min = initialDataPoints[0];
     max = initialDataPoints[numInitialDataPoints - 1];
-    return;
   }
 
   private void addInitialDataPoint(double d) {
-    assert (numDataPoints < numInitialDataPoints);
     initialDataPoints[(int) numDataPoints] = d;
     numDataPoints++;
     if (numDataPoints == numInitialDataPoints) {
       createInitialHistogram();
       initialDataPoints = null;
     }
-    return;
   }
 
+  /**
+   * Finds the bucket of a point, which is the first bucket whose upper bound is greater than the point.
+   *
+   * @param d point to be located.
+   * @return index of the bucket, or -1 if the histogram is still being seeded.
+   */
   public int findBucketIndex(double d) {
     if (this.numDataPoints < this.numInitialDataPoints) {
       return -1;
     }
-    for (int i = 0; ; i++) {
-      if (d < buckets[i].high) {
-        return i;
+    int low = 0;
+    int high = numBuckets - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (d < highs[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
       }
     }
+    return low;
   }
 
-  public synchronized void addDataPoint(double d) {
+  public void addDataPoint(double d) {
     if (numDataPoints < numInitialDataPoints) {
       addInitialDataPoint(d);
       return;
     }
     int index = findBucketIndex(d);
-    long noUpdateDuration = numDataPoints - buckets[index].lastUpdateAt;
+    long noUpdateDuration = numDataPoints - lastUpdates[index];
     numDataPoints++;
-    buckets[index].lastUpdateAt = numDataPoints;
-    double oldCount = buckets[findBucketIndex(d)].count;
+    lastUpdates[index] = numDataPoints;
     /* Keep track of mean and standard deviation in the edge buckets FIXME */
-    buckets[index].count = 1.0 + oldCount * Math.exp(-noUpdateDuration / meanLifetime);
+    counts[index] = 1.0 + counts[index] * Math.exp(-noUpdateDuration / meanLifetime);
     if (min > d) {
       min = d;
     }
@@ -122,8 +157,36 @@ public class DynamicHistogram {
     }
 
     repartitionIfNeeded();
+  }
 
-    return;
+  /**
+   * Adds the same point a number of times. Past the seeding of the histogram, the repetitions are added in
+   * runs that end where the histogram may be repartitioned, each run updating the count of the bucket of
+   * the point at once: only the first point of a run decays the count, the others follow an update.
+   *
+   * @param d point to be added.
+   * @param times number of repetitions of the point.
+   */
+  public void addDataPoint(double d, long times) {
+    for (; times > 0 && numDataPoints < numInitialDataPoints; times--) {
+      addInitialDataPoint(d);
+    }
+    while (times > 0) {
+      long run = Math.min(times, halfLife - numDataPoints % halfLife);
+      int index = findBucketIndex(d);
+      long noUpdateDuration = numDataPoints - lastUpdates[index];
+      numDataPoints += run;
+      lastUpdates[index] = numDataPoints;
+      counts[index] = run + counts[index] * Math.exp(-noUpdateDuration / meanLifetime);
+      if (min > d) {
+        min = d;
+      }
+      if (max < d) {
+        max = d;
+      }
+      repartitionIfNeeded();
+      times -= run;
+    }
   }
 
   private void repartitionIfNeeded() {
@@ -135,83 +198,242 @@ public class DynamicHistogram {
     }
   }
 
-  public synchronized boolean isTooSkewed() {
+  /**
+   * Tests whether the rounded counts of the buckets are too far from being equal, with a chi-square
+   * goodness of fit test at 95% confidence.
+   *
+   * @return true if the buckets should be repartitioned.
+   */
+  public boolean isTooSkewed() {
     if (this.numDataPoints < this.numInitialDataPoints) {
       return false;
     }
-    double totalCount = 0.0;
+    double totalObserved = 0.0;
     for (int i = 0; i < numBuckets; i++) {
-      totalCount += buckets[i].count;
+      totalObserved += Math.round(counts[i]);
     }
-    double averageCount = totalCount / numBuckets;
-    double expected[] = new double[numBuckets];
-    for (int i = 0; i < numBuckets; i++) {
-      expected[i] = averageCount;
+    if (totalObserved <= 0) {
+      return false;
     }
-    long observed[] = new long[numBuckets];
+    double expected = totalObserved / numBuckets;
+    double statistic = 0.0;
     for (int i = 0; i < numBuckets; i++) {
-      observed[i] = Math.round(buckets[i].count);
+      double deviation = Math.round(counts[i]) - expected;
+      statistic += deviation * deviation / expected;
     }
-    ChiSquareTest test = new ChiSquareTest();
     // true if reject hypothesis "observed same as expected" with 95% confidence
-    return (test.chiSquareTest(expected, observed, .05));
+    return statistic > criticalValue;
   }
 
-  public synchronized void repartition() {
+  public void repartition() {
+    ensureScratch();
     double totalCount = 0.0;
     for (int i = 0; i < numBuckets; i++) {
-      totalCount += buckets[i].count;
+      totalCount += counts[i];
     }
     double averageCount = totalCount / numBuckets;
-    double density[] = new double[numBuckets];
     // FIXME use data distribution to estimate density, especially for edge buckets
-    density[0] = buckets[0].count / (buckets[0].high - min);
+    density[0] = density(counts[0], highs[0] - min);
     for (int i = 1; i < numBuckets - 1; i++) {
-      density[i] = buckets[i].count / (buckets[i].high - buckets[i - 1].high);
+      density[i] = density(counts[i], highs[i] - highs[i - 1]);
     }
-    density[numBuckets - 1] = buckets[numBuckets - 1].count / (max - buckets[numBuckets - 2].high);
+    density[numBuckets - 1] = density(counts[numBuckets - 1], max - highs[numBuckets - 2]);
     int curBucket = 0;
     double marker = min;
     long lastUpdateAt = 0;
-    double availInCurBucket = buckets[curBucket].count;
-    Bucket newBuckets[] = new Bucket[numBuckets];
+    double availInCurBucket = counts[curBucket];
     for (int i = 0; i < numBuckets - 1; i++) {
       double remaining = averageCount;
       do {
-        if (lastUpdateAt < buckets[curBucket].lastUpdateAt) {
-          lastUpdateAt = buckets[curBucket].lastUpdateAt;
+        if (lastUpdateAt < lastUpdates[curBucket]) {
+          lastUpdateAt = lastUpdates[curBucket];
         }
-        if (availInCurBucket > remaining) {
-          marker = marker + remaining / density[curBucket];
-          assert (marker < buckets[curBucket].high);
+        if (availInCurBucket > remaining || curBucket == numBuckets - 1) {
+          // Rounding can push the marker past the bucket, it never moves beyond its upper bound.
+          double upper = curBucket == numBuckets - 1 ? max : highs[curBucket];
+          marker = Math.min(marker + remaining / density[curBucket], upper);
           availInCurBucket -= remaining;
           remaining = 0;
-        } else if (availInCurBucket < remaining) {
-          assert (buckets[curBucket].high > marker);
-          marker = buckets[curBucket].high;
-          remaining -= availInCurBucket;
-          curBucket++;
-          availInCurBucket = buckets[curBucket].count;
         } else {
-          assert (buckets[curBucket].high > marker);
-          marker = buckets[curBucket].high;
-          remaining = 0;
+          marker = highs[curBucket];
+          remaining -= availInCurBucket;
           curBucket++;
-          availInCurBucket = buckets[curBucket].count;
+          availInCurBucket = counts[curBucket];
         }
       } while (remaining > 0);
-      newBuckets[i] = new Bucket();
-      newBuckets[i].high = marker;
-      newBuckets[i].count = averageCount;
-      newBuckets[i].lastUpdateAt = lastUpdateAt;
-      lastUpdateAt = buckets[curBucket].lastUpdateAt;
+      scratchHighs[i] = marker;
+      scratchCounts[i] = averageCount;
+      scratchUpdates[i] = lastUpdateAt;
+      lastUpdateAt = lastUpdates[curBucket];
+    }
+    scratchHighs[numBuckets - 1] = Double.POSITIVE_INFINITY;
+    scratchCounts[numBuckets - 1] = averageCount;
+    scratchUpdates[numBuckets - 1] = Math.max(lastUpdateAt, lastUpdates[numBuckets - 1]);
+    swapScratch();
+  }
+
+  // Buckets of no width hold their whole count at their bound.
+  private static double density(double count, double width) {
+    return width > 0 ? count / width : Double.POSITIVE_INFINITY;
+  }
+
+  private void ensureScratch() {
+    if (scratchHighs == null) {
+      scratchHighs = new double[numBuckets];
+      scratchCounts = new double[numBuckets];
+      scratchUpdates = new long[numBuckets];
+      density = new double[numBuckets];
+    }
+  }
+
+  private void swapScratch() {
+    double[] swapHighs = highs;
+    highs = scratchHighs;
+    scratchHighs = swapHighs;
+    double[] swapCounts = counts;
+    counts = scratchCounts;
+    scratchCounts = swapCounts;
+    long[] swapUpdates = lastUpdates;
+    lastUpdates = scratchUpdates;
+    scratchUpdates = swapUpdates;
+  }
+
+  /**
+   * Merges another histogram into this one. Points that are still held for seeding the other
+   * histogram are replayed, otherwise the count of each of its buckets is spread over the buckets
+   * of this histogram, assuming the values are uniformly distributed within a bucket.
+   *
+   * @param other histogram to be merged into this one.
+   */
+  public void merge(DynamicHistogram other) {
+    if (other.numDataPoints < other.numInitialDataPoints) {
+      for (int i = 0; i < other.numDataPoints; i++) {
+        addDataPoint(other.initialDataPoints[i]);
+      }
+      return;
     }
-    newBuckets[numBuckets - 1] = new Bucket();
-    newBuckets[numBuckets - 1].high = Double.POSITIVE_INFINITY;
-    newBuckets[numBuckets - 1].count = averageCount;
-    newBuckets[numBuckets - 1].lastUpdateAt = Math.max(lastUpdateAt, buckets[numBuckets - 1].lastUpdateAt);
-    buckets = newBuckets;
-    return;
+    merge(other.numDataPoints, other.min, other.max, other.highs, other.counts, other.lastUpdates);
+  }
+
+  /**
+   * Writes the binary form of the histogram: the seed points while it is being seeded, its buckets afterwards.
+   *
+   * @param out to write the histogram to.
+   */
+  public void write(StateOutput out) {
+    out.writeVarInt(numBuckets);
+    out.writeVarLong(numDataPoints);
+    if (numDataPoints < numInitialDataPoints) {
+      out.writeDoubles(initialDataPoints, (int) numDataPoints);
+      return;
+    }
+    out.writeDouble(min);
+    out.writeDouble(max);
+    out.writeDoubles(highs, numBuckets);
+    out.writeDoubles(counts, numBuckets);
+    for (int i = 0; i < numBuckets; i++) {
+      out.writeVarLong(lastUpdates[i]);
+    }
+  }
+
+  /**
+   * Merges a histogram with the same number of buckets, read from its binary form, into this one.
+   *
+   * @param in to read the histogram from.
+   */
+  public void merge(StateInput in) {
+    int otherBuckets = in.readVarInt();
+    if (otherBuckets != numBuckets) {
+      throw new IllegalArgumentException(
+        String.format("Unable to merge histograms of %d and %d buckets.", numBuckets, otherBuckets));
+    }
+    long otherDataPoints = in.readVarLong();
+    if (otherDataPoints < numInitialDataPoints) {
+      int length = in.readVarInt();
+      for (int i = 0; i < length; i++) {
+        addDataPoint(in.readDouble());
+      }
+      return;
+    }
+    double otherMin = in.readDouble();
+    double otherMax = in.readDouble();
+    double[] otherHighs = readDoubles(in);
+    double[] otherCounts = readDoubles(in);
+    long[] otherUpdates = new long[numBuckets];
+    for (int i = 0; i < numBuckets; i++) {
+      otherUpdates[i] = in.readVarLong();
+    }
+    merge(otherDataPoints, otherMin, otherMax, otherHighs, otherCounts, otherUpdates);
+  }
+
+  private static double[] readDoubles(StateInput in) {
+    double[] values = new double[in.readVarInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readDouble();
+    }
+    return values;
+  }
+
+  // Merges the buckets of a histogram that is done seeding.
+  private void merge(long otherDataPoints, double otherMin, double otherMax, double[] otherHighs,
+                     double[] otherCounts, long[] otherUpdates) {
+    if (numDataPoints < numInitialDataPoints) {
+      double[] seeds = Arrays.copyOf(initialDataPoints, (int) numDataPoints);
+      highs = Arrays.copyOf(otherHighs, numBuckets);
+      counts = Arrays.copyOf(otherCounts, numBuckets);
+      lastUpdates = Arrays.copyOf(otherUpdates, numBuckets);
+      min = otherMin;
+      max = otherMax;
+      numDataPoints = otherDataPoints;
+      initialDataPoints = null;
+      for (double d : seeds) {
+        addDataPoint(d);
+      }
+      return;
+    }
+    for (int i = 0; i < otherHighs.length; i++) {
+      double low = i == 0 ? otherMin : otherHighs[i - 1];
+      double high = i == otherHighs.length - 1 ? otherMax : otherHighs[i];
+      spread(low, high, otherCounts[i]);
+    }
+    numDataPoints += otherDataPoints;
+    Arrays.fill(lastUpdates, numDataPoints);
+    if (min > otherMin) {
+      min = otherMin;
+    }
+    if (max < otherMax) {
+      max = otherMax;
+    }
+    if (isTooSkewed()) {
+      repartition();
+    }
+  }
+
+  private void spread(double low, double high, double count) {
+    if (!(high > low)) {
+      counts[findBucketIndex(low)] += count;
+      return;
+    }
+    double bucketLow = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < numBuckets; i++) {
+      double overlap = Math.min(high, highs[i]) - Math.max(low, bucketLow);
+      if (overlap > 0) {
+        counts[i] += count * overlap / (high - low);
+      }
+      bucketLow = highs[i];
+    }
+  }
+
+  /**
+   * @return estimated number of bytes used by the histogram, its seed points and its buckets.
+   */
+  public long estimateSize() {
+    return 8L * (length(initialDataPoints) + length(highs) + length(counts))
+      + 8L * (lastUpdates == null ? 0 : lastUpdates.length);
+  }
+
+  private static int length(@Nullable double[] values) {
+    return values == null ? 0 : values.length;
   }
 
   public Bucket[] getHistogram() {
@@ -219,23 +441,27 @@ public class DynamicHistogram {
       return (null);
     }
     Bucket[] b = new Bucket[numBuckets + 1];
-    b[0] = new Bucket();
-    b[0].count = 0;
-    b[0].high = min;
+    b[0] = new Bucket(min, 0, 0);
     for (int i = 1; i < numBuckets; i++) {
-      b[i] = buckets[i - 1];
+      b[i] = new Bucket(highs[i - 1], counts[i - 1], lastUpdates[i - 1]);
     }
-    b[numBuckets] = new Bucket();
-    b[numBuckets].count = buckets[numBuckets - 1].count;
-    b[numBuckets].high = max;
+    b[numBuckets] = new Bucket(max, counts[numBuckets - 1], lastUpdates[numBuckets - 1]);
     return b;
   }
 
-  public static final class Bucket {
+  public static final class Bucket implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public double high;
     public double count;
     private long lastUpdateAt;
 
+    Bucket(double high, double count, long lastUpdateAt) {
+      this.high = high;
+      this.count = count;
+      this.lastUpdateAt = lastUpdateAt;
+    }
+
     public double getHigh() {
       return high;
     }
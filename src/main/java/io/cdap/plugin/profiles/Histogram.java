@@ -19,7 +19,11 @@ package io.cdap.plugin.profiles;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -35,6 +39,8 @@ import java.util.List;
  * The resulting record contains -- low, high and count for each bucket.
  */
 public final class Histogram extends Profile {
+  private static final long serialVersionUID = 1L;
+
   private static final String LOW = "low";
   private static final String HIGH = "high";
   private static final String COUNT = "count";
@@ -43,10 +49,8 @@ public final class Histogram extends Profile {
   private static final int INITIAL_DATAPOINTS_PER_BUCKET = 5;
   private static final int HALF_LIFE = 10;
 
-  private DynamicHistogram histogram;
-
   // Schema for each bucket.
-  private Schema schema = Schema.recordOf(
+  private static final Schema SCHEMA = Schema.recordOf(
     "histrec",
     Schema.Field.of(LOW, Schema.of(Schema.Type.DOUBLE)),
     Schema.Field.of(HIGH, Schema.of(Schema.Type.DOUBLE)),
@@ -84,74 +88,178 @@ public final class Histogram extends Profile {
     return Arrays.asList(
       Schema.Field.of(
         RECORD, Schema.nullableOf(
-          Schema.arrayOf(schema)
+          Schema.arrayOf(SCHEMA)
         )
       )
     );
   }
 
+  @Override
+  public ProfileState newState() {
+    return new State();
+  }
+
   /**
-   * Resets the internal states of histogram.
+   * State of the histogram profile of a field.
    */
-  @Override
-  public void reset() {
-    histogram = new DynamicHistogram(
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final DynamicHistogram histogram = new DynamicHistogram(
       NUMBER_OF_BUCKETS,
       INITIAL_DATAPOINTS_PER_BUCKET,
       HALF_LIFE
     );
-  }
 
-  /**
-   * Updates the internal states of histogram.
-   *
-   * @param value to be used to update histogram.
-   */
-  @Override
-  public void update(Object value) {
-    if (value != null) {
-      double val = 0.0;
-      if (value instanceof Integer) {
-        val = Double.valueOf((Integer) value).doubleValue();
-      } else if (value instanceof Long) {
-        val = Double.valueOf((Long) value).doubleValue();
-      } else if (value instanceof Float) {
-        val = Double.valueOf((Float) value).doubleValue();
-      } else if (value instanceof Double) {
-        val = (Double) value;
-      } else if (value instanceof String) {
-        val = ((String) value).length();
-      } else if (value instanceof Short) {
-        val = Double.valueOf((Short) value ).doubleValue();
-      } else {
-        return;
+    /**
+     * Updates the internal states of histogram.
+     *
+     * @param value to be used to update histogram.
+     */
+    @Override
+    public void update(Object value) {
+      if (value != null) {
+        double val = 0.0;
+        if (value instanceof Integer) {
+          val = Double.valueOf((Integer) value).doubleValue();
+        } else if (value instanceof Long) {
+          val = Double.valueOf((Long) value).doubleValue();
+        } else if (value instanceof Float) {
+          val = Double.valueOf((Float) value).doubleValue();
+        } else if (value instanceof Double) {
+          val = (Double) value;
+        } else if (value instanceof String) {
+          val = ((String) value).length();
+        } else if (value instanceof Short) {
+          val = Double.valueOf((Short) value ).doubleValue();
+        } else {
+          return;
+        }
+        histogram.addDataPoint(val);
       }
-      histogram.addDataPoint(val);
     }
-  }
 
-  /**
-   * Adds all the internal states of buckets into a <code>StructuredRecord</code>.
-   *
-   * @param builder to add the internal states of the record.
-   */
-  @Override
-  public void results(StructuredRecord.Builder builder) {
-    DynamicHistogram.Bucket[] buckets = histogram.getHistogram();
-    if (buckets != null && buckets.length > 0) {
-      double high = 0;
-      List<StructuredRecord> points = new ArrayList<>();
-      for (int i = 0; i < buckets.length; ++i) {
-        DynamicHistogram.Bucket bucket = buckets[i];
-        double low = high;
-        high = bucket.getHigh();
-        StructuredRecord.Builder hist = StructuredRecord.builder(schema);
-        hist.set(LOW, low);
-        hist.set(HIGH, high);
-        hist.set(COUNT, bucket.getCount());
-        points.add(hist.build());
+    @Override
+    public void updateNull() {
+      // Nulls are not part of the histogram.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls are not part of the histogram.
+    }
+
+    @Override
+    public void update(long value) {
+      histogram.addDataPoint(value);
+    }
+
+    @Override
+    public void update(double value) {
+      histogram.addDataPoint(value);
+    }
+
+    @Override
+    public void update(long value, long times) {
+      histogram.addDataPoint(value, times);
+    }
+
+    @Override
+    public void update(double value, long times) {
+      histogram.addDataPoint(value, times);
+    }
+
+    @Override
+    public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          histogram.addDataPoint(values[i]);
+        }
+      }
+    }
+
+    @Override
+    public void updateBatch(double[] values, @Nullable long[] nulls, int n) {
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          histogram.addDataPoint(values[i]);
+        }
+      }
+    }
+
+    /**
+     * Updates the histogram with the length of a string.
+     *
+     * @param value to be used to update histogram.
+     */
+    @Override
+    public void update(CharSequence value) {
+      histogram.addDataPoint(value.length());
+    }
+
+    @Override
+    public void update(CharSequence value, long times) {
+      histogram.addDataPoint(value.length(), times);
+    }
+
+    @Override
+    public long estimateSize() {
+      return histogram.estimateSize();
+    }
+
+    /**
+     * Merges the histogram of another state into this one.
+     *
+     * @param other histogram state to be merged.
+     */
+    @Override
+    public void merge(ProfileState other) {
+      histogram.merge(((State) other).histogram);
+    }
+
+    /**
+     * Writes the binary form of the histogram.
+     *
+     * @param out to write the state to.
+     */
+    @Override
+    public void write(StateOutput out) {
+      histogram.write(out);
+    }
+
+    /**
+     * Merges the binary form of another histogram into this one.
+     *
+     * @param in to read the state from.
+     */
+    @Override
+    public void merge(StateInput in) {
+      histogram.merge(in);
+    }
+
+    /**
+     * Adds all the internal states of buckets into a <code>StructuredRecord</code>.
+     *
+     * @param builder to add the internal states of the record.
+     */
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      DynamicHistogram.Bucket[] buckets = histogram.getHistogram();
+      if (buckets != null && buckets.length > 0) {
+        double high = 0;
+        List<StructuredRecord> points = new ArrayList<>();
+        for (int i = 0; i < buckets.length; ++i) {
+          DynamicHistogram.Bucket bucket = buckets[i];
+          double low = high;
+          high = bucket.getHigh();
+          StructuredRecord.Builder hist = StructuredRecord.builder(SCHEMA);
+          hist.set(LOW, low);
+          hist.set(HIGH, high);
+          hist.set(COUNT, bucket.getCount());
+          points.add(hist.build());
+        }
+        builder.set(RECORD, points);
       }
-      builder.set(RECORD, points);
     }
   }
 }
@@ -0,0 +1,454 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class <code>HllSketch</code> is a HyperLogLog++ sketch estimating the number of distinct values
+ * (Heule, Nunkesser and Hall, "HyperLogLog in Practice").
+ *
+ * While few values were added, the sketch is sparse: it keeps the index and rank of every value at
+ * a precision of 25 bits in a small hash set and estimates the count with linear counting, which is
+ * exact for low cardinalities. Once the sparse set would be bigger than the registers, it is promoted
+ * to dense registers of the configured precision, and the count is estimated with the improved
+ * estimator of Ertl ("New cardinality estimation algorithms for HyperLogLog sketches"), which needs
+ * no empirical bias correction. The relative error is about 1.04 / sqrt(2^precision).
+ *
+ * Values are hashed to 64 bits without allocating, and sketches built on different partitions are merged
+ * register by register. The precision of dense registers can be lowered by folding the lowest bit of their
+ * index into their rank, which halves their memory, so sketches of different precisions are merged at the
+ * lowest of their precisions.
+ *
+ * The registers are kept in a heap buffer, or in a block of direct memory of a <code>Slab</code>, which
+ * keeps the registers of thousands of fields out of the heap scanned by the garbage collector.
+ */
+public final class HllSketch implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final int MIN_PRECISION = 4;
+  public static final int MAX_PRECISION = 18;
+  public static final int DEFAULT_PRECISION = 12;
+  private static final int SPARSE_PRECISION = 25;
+  private static final int RANK_BITS = 6;
+  private static final int RANK_MASK = (1 << RANK_BITS) - 1;
+  private static final int MIN_SPARSE_CAPACITY = 16;
+  private static final int SPARSE = 0;
+  private static final int DENSE = 1;
+  private static final long SEED = 0x9E3779B97F4A7C15L;
+  private static final long C1 = 0x87C37B91114253D5L;
+  private static final long C2 = 0x4CF5AD432745937FL;
+
+  private int precision;
+  // Sparse set of index << RANK_BITS | rank at the sparse precision, 0 for empty slots.
+  private int[] sparse;
+  private int sparseSize;
+  // Written by writeObject, since direct buffers are not serializable.
+  private transient ByteBuffer registers;
+  @Nullable
+  private transient Slab slab;
+
+  /**
+   * @param precision number of bits of the register index, between 4 and 18.
+   */
+  public HllSketch(int precision) {
+    this(precision, null);
+  }
+
+  /**
+   * @param precision number of bits of the register index, between 4 and 18.
+   * @param slab allocating the registers out of the heap, or null to keep them in the heap.
+   */
+  public HllSketch(int precision, @Nullable Slab slab) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+        String.format("Precision must be between %d and %d, but was %d.", MIN_PRECISION, MAX_PRECISION, precision));
+    }
+    this.precision = precision;
+    this.sparse = new int[MIN_SPARSE_CAPACITY];
+    this.slab = slab;
+  }
+
+  /**
+   * @return estimated number of bytes used by the sketch, the sparse entries or the registers.
+   */
+  public long estimateSize() {
+    return (sparse == null ? 0 : 4L * sparse.length) + (registers == null ? 0 : registers.capacity());
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public void update(long value) {
+    add(fmix(value * C1 ^ SEED));
+  }
+
+  public void update(double value) {
+    // Positive and negative zeros are the same value.
+    add(fmix(Double.doubleToLongBits(value == 0d ? 0d : value) * C1 ^ SEED));
+  }
+
+  public void update(CharSequence value) {
+    long hash = SEED ^ value.length();
+    int length = value.length();
+    int i = 0;
+    for (; i + 4 <= length; i += 4) {
+      long block = value.charAt(i) | (long) value.charAt(i + 1) << 16
+        | (long) value.charAt(i + 2) << 32 | (long) value.charAt(i + 3) << 48;
+      hash = mix(hash, block);
+    }
+    if (i < length) {
+      long block = 0;
+      for (int shift = 0; i < length; i++, shift += 16) {
+        block |= (long) value.charAt(i) << shift;
+      }
+      hash = mix(hash, block);
+    }
+    add(fmix(hash));
+  }
+
+  public void update(ByteBuffer value) {
+    long hash = SEED ^ value.remaining();
+    int i = value.position();
+    int limit = value.limit();
+    // Bytes are read one at a time, so that the hash doesn't depend on the order of the buffer.
+    while (i < limit) {
+      long block = 0;
+      for (int shift = 0; shift < 64 && i < limit; i++, shift += 8) {
+        block |= (value.get(i) & 0xFFL) << shift;
+      }
+      hash = mix(hash, block);
+    }
+    add(fmix(hash));
+  }
+
+  public void update(byte[] value) {
+    update(ByteBuffer.wrap(value));
+  }
+
+  /**
+   * Merges another sketch into this one. The registers of a sketch of a higher precision are folded to the
+   * precision of this sketch, and this sketch is folded to the precision of a sketch of a lower precision.
+   *
+   * @param other sketch to be merged.
+   */
+  public void merge(HllSketch other) {
+    if (other.registers == null) {
+      for (int encoded : other.sparse) {
+        if (encoded != 0) {
+          addEncoded(encoded);
+        }
+      }
+      return;
+    }
+    mergeRegisters(other.registers, other.precision);
+  }
+
+  /**
+   * Lowers the precision of a dense sketch by one bit, which halves the memory of its registers and
+   * multiplies its relative error by the square root of two. A sparse sketch is already smaller than its
+   * registers, so it is not shrunk.
+   *
+   * @return true if the sketch was shrunk, false if it is sparse or at the minimum precision.
+   */
+  public boolean shrink() {
+    if (registers == null || precision == MIN_PRECISION) {
+      return false;
+    }
+    fold(precision - 1);
+    return true;
+  }
+
+  /**
+   * Writes the binary form of the sketch. A sparse sketch writes its sorted entries as variable length
+   * deltas, which take about two bytes per entry, and a dense sketch writes its registers.
+   *
+   * @param out to write the sketch to.
+   */
+  public void write(StateOutput out) {
+    out.writeVarInt(precision);
+    if (registers != null) {
+      out.writeByte(DENSE);
+      out.writeBytes(registers);
+      return;
+    }
+    out.writeByte(SPARSE);
+    int[] entries = new int[sparseSize];
+    int size = 0;
+    for (int encoded : sparse) {
+      if (encoded != 0) {
+        entries[size++] = encoded;
+      }
+    }
+    Arrays.sort(entries);
+    out.writeVarInt(size);
+    int previous = 0;
+    for (int encoded : entries) {
+      out.writeVarInt(encoded - previous);
+      previous = encoded;
+    }
+  }
+
+  /**
+   * Merges a sketch read from its binary form into this one, at the lowest of their precisions.
+   *
+   * @param in to read the sketch from.
+   */
+  public void merge(StateInput in) {
+    int otherPrecision = in.readVarInt();
+    if (in.readByte() == DENSE) {
+      mergeRegisters(in.readBytes(), otherPrecision);
+      return;
+    }
+    int size = in.readVarInt();
+    int encoded = 0;
+    for (int i = 0; i < size; i++) {
+      encoded += in.readVarInt();
+      addEncoded(encoded);
+    }
+  }
+
+  /**
+   * @return estimate of the number of distinct values added to the sketch.
+   */
+  public long cardinality() {
+    if (registers == null) {
+      // Linear counting over the indexes of the sparse precision.
+      double m = 1 << SPARSE_PRECISION;
+      return Math.round(m * Math.log(m / (m - sparseSize)));
+    }
+    int q = 64 - precision;
+    int m = registers.capacity();
+    int[] histogram = new int[q + 2];
+    for (int i = 0; i < m; i++) {
+      histogram[registers.get(i)]++;
+    }
+    double z = m * tau(1d - (double) histogram[q + 1] / m);
+    for (int k = q; k >= 1; k--) {
+      z = 0.5 * (z + histogram[k]);
+    }
+    z = z + m * sigma((double) histogram[0] / m);
+    return Math.round(m / (2d * Math.log(2d)) * m / z);
+  }
+
+  private void add(long hash) {
+    // Index at the sparse precision and rank of the remaining bits.
+    int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+    int rank = Math.min(Long.numberOfLeadingZeros(hash << SPARSE_PRECISION), 64 - SPARSE_PRECISION) + 1;
+    addEncoded(index << RANK_BITS | rank);
+  }
+
+  private void addEncoded(int encoded) {
+    if (registers != null) {
+      addDense(encoded);
+      return;
+    }
+    int index = encoded >>> RANK_BITS;
+    int mask = sparse.length - 1;
+    int slot = (index * 0x9E3779B1) >>> 7 & mask;
+    while (true) {
+      int current = sparse[slot];
+      if (current == 0) {
+        sparse[slot] = encoded;
+        sparseSize++;
+        if (sparseSize * 2 > sparse.length) {
+          growSparse();
+        }
+        return;
+      }
+      if (current >>> RANK_BITS == index) {
+        if ((current & RANK_MASK) < (encoded & RANK_MASK)) {
+          sparse[slot] = encoded;
+        }
+        return;
+      }
+      slot = slot + 1 & mask;
+    }
+  }
+
+  // Converts an entry of the sparse precision to a register of the dense precision.
+  private void addDense(int encoded) {
+    int sparseIndex = encoded >>> RANK_BITS;
+    int extraBits = SPARSE_PRECISION - precision;
+    int index = sparseIndex >>> extraBits;
+    int extra = sparseIndex & ((1 << extraBits) - 1);
+    int rank = extra != 0
+      ? Integer.numberOfLeadingZeros(extra) - (32 - extraBits) + 1
+      : extraBits + (encoded & RANK_MASK);
+    if (registers.get(index) < rank) {
+      registers.put(index, (byte) rank);
+    }
+  }
+
+  // Merges registers of any precision, bringing both sketches to the lowest of their precisions.
+  private void mergeRegisters(ByteBuffer other, int otherPrecision) {
+    if (registers == null) {
+      densify();
+    }
+    if (otherPrecision < precision) {
+      fold(otherPrecision);
+    }
+    // The bits of the index beyond the precision of this sketch are folded into the rank, like addDense does.
+    int extraBits = otherPrecision - precision;
+    int base = other.position();
+    int length = 1 << otherPrecision;
+    for (int i = 0; i < length; i++) {
+      int rank = other.get(base + i);
+      if (rank == 0) {
+        continue;
+      }
+      int index = i >>> extraBits;
+      int extra = i & ((1 << extraBits) - 1);
+      rank = extra != 0 ? Integer.numberOfLeadingZeros(extra) - (32 - extraBits) + 1 : extraBits + rank;
+      if (registers.get(index) < rank) {
+        registers.put(index, (byte) rank);
+      }
+    }
+  }
+
+  // Lowers the precision of the registers.
+  private void fold(int target) {
+    ByteBuffer folded = registers;
+    int foldedPrecision = precision;
+    precision = target;
+    registers = slab == null ? ByteBuffer.allocate(1 << precision) : slab.allocate(1 << precision);
+    mergeRegisters(folded, foldedPrecision);
+    if (slab != null) {
+      slab.release(folded);
+    }
+  }
+
+  private void growSparse() {
+    // Once the sparse set is bigger than the registers, the registers are used instead.
+    if (sparse.length * 2 * 4 > (1 << precision)) {
+      densify();
+      return;
+    }
+    int[] entries = sparse;
+    sparse = new int[entries.length * 2];
+    sparseSize = 0;
+    for (int encoded : entries) {
+      if (encoded != 0) {
+        addEncoded(encoded);
+      }
+    }
+  }
+
+  private void densify() {
+    registers = slab == null ? ByteBuffer.allocate(1 << precision) : slab.allocate(1 << precision);
+    for (int encoded : sparse) {
+      if (encoded != 0) {
+        addDense(encoded);
+      }
+    }
+    sparse = null;
+    sparseSize = 0;
+  }
+
+  /**
+   * Empties the sketch, giving its registers back to the slab they were allocated from.
+   */
+  public void release() {
+    if (registers != null && slab != null) {
+      slab.release(registers);
+    }
+    registers = null;
+    sparse = new int[MIN_SPARSE_CAPACITY];
+    sparseSize = 0;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeBoolean(registers != null);
+    if (registers != null) {
+      byte[] bytes = new byte[registers.capacity()];
+      registers.duplicate().get(bytes);
+      out.write(bytes);
+    }
+  }
+
+  // Deserialized registers are kept in the heap, the slab of the sketch being local to its JVM.
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (in.readBoolean()) {
+      byte[] bytes = new byte[1 << precision];
+      in.readFully(bytes);
+      registers = ByteBuffer.wrap(bytes);
+    }
+  }
+
+  private static long mix(long hash, long block) {
+    block *= C1;
+    block = Long.rotateLeft(block, 31);
+    block *= C2;
+    hash ^= block;
+    hash = Long.rotateLeft(hash, 27);
+    return hash * 5 + 0x52DCE729;
+  }
+
+  // Finalization mix of MurmurHash3, so that every bit of the input affects every bit of the hash.
+  private static long fmix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static double sigma(double x) {
+    if (x == 1d) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double y = 1d;
+    double z = x;
+    double previous;
+    do {
+      x = x * x;
+      previous = z;
+      z += x * y;
+      y += y;
+    } while (z != previous);
+    return z;
+  }
+
+  private static double tau(double x) {
+    if (x == 0d || x == 1d) {
+      return 0d;
+    }
+    double y = 1d;
+    double z = 1d - x;
+    double previous;
+    do {
+      x = Math.sqrt(x);
+      previous = z;
+      y *= 0.5;
+      z -= (1d - x) * (1d - x) * y;
+    } while (z != previous);
+    return z / 3d;
+  }
+}
@@ -19,6 +19,9 @@ package io.cdap.plugin.profiles;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
 
 import java.util.Arrays;
 import java.util.List;
@@ -27,9 +30,7 @@ import java.util.List;
  * This class <code>Logical</code> profilers profiles boolean columns.
  */
 public final class Logical extends Profile {
-  private long countTrue;
-  private long countFalse;
-  private long countUnknown;
+  private static final long serialVersionUID = 1L;
 
   public Logical() {
     super("logical");
@@ -50,32 +51,111 @@ public final class Logical extends Profile {
   }
 
   @Override
-  public void reset() {
-    this.countTrue = 0;
-    this.countFalse = 0;
-    this.countUnknown = 0;
+  public boolean isSampled() {
+    return false;
   }
 
   @Override
-  public void update(Object value) {
-    if (value instanceof Boolean) {
-      if (value == null) {
-        countUnknown++;
-      } else {
-        boolean val = (Boolean) value;
-        if (val) {
-          countTrue++;
+  public ProfileState newState() {
+    return new State();
+  }
+
+  /**
+   * State of the logical profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private long countTrue;
+    private long countFalse;
+    private long countUnknown;
+
+    @Override
+    public void update(Object value) {
+      if (value instanceof Boolean) {
+        if (value == null) {
+          countUnknown++;
         } else {
-          countFalse++;
+          update(((Boolean) value).booleanValue());
         }
       }
     }
-  }
 
-  @Override
-  public void results(StructuredRecord.Builder builder) {
-    builder.set("positive", countTrue);
-    builder.set("negative", countFalse);
-    builder.set("unknown", countUnknown);
+    @Override
+    public void updateNull() {
+      // Only boolean values are counted.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Only boolean values are counted.
+    }
+
+    @Override
+    public void update(boolean value) {
+      if (value) {
+        countTrue++;
+      } else {
+        countFalse++;
+      }
+    }
+
+    @Override
+    public void update(boolean value, long times) {
+      if (value) {
+        countTrue += times;
+      } else {
+        countFalse += times;
+      }
+    }
+
+    @Override
+    public void skip(Object value) {
+      // Counting booleans is as cheap as skipping them, so every value is counted.
+      if (value != null) {
+        update(value);
+      }
+    }
+
+    @Override
+    public void skip(Object value, long times) {
+      if (value instanceof Boolean) {
+        update(((Boolean) value).booleanValue(), times);
+      }
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      State state = (State) other;
+      countTrue += state.countTrue;
+      countFalse += state.countFalse;
+      countUnknown += state.countUnknown;
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      out.writeVarLong(countTrue);
+      out.writeVarLong(countFalse);
+      out.writeVarLong(countUnknown);
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      countTrue += in.readVarLong();
+      countFalse += in.readVarLong();
+      countUnknown += in.readVarLong();
+    }
+
+    @Override
+    public long estimateSize() {
+      return 3 * 8;
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      builder.set("positive", countTrue);
+      builder.set("negative", countFalse);
+      builder.set("unknown", countUnknown);
+    }
   }
 }
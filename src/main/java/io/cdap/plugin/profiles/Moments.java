@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import java.io.Serializable;
+
+/**
+ * This class <code>Moments</code> accumulates the count, minimum, maximum, sum, sum of squares,
+ * sum of logs and the central moments (M2 to M4) of a stream of values in constant memory.
+ *
+ * Values are added one at a time with the updates of Welford and Terriberry, and accumulators
+ * of different partitions are merged with the pairwise formulas of Pébay ("Formulas for Robust,
+ * One-Pass Parallel Computation of Covariances and Arbitrary-Order Statistical Moments"), so
+ * no values are kept and no extra passes are needed when the results are retrieved.
+ *
+ * The statistics are estimated the same way as <code>DescriptiveStatistics</code>.
+ */
+public final class Moments implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Below this variance, the values are considered constant.
+  private static final double MIN_VARIANCE = 10E-20;
+  /**
+   * Number of bytes used by an accumulator, for its count and its nine doubles.
+   */
+  public static final long SIZE = 80;
+
+  private long n;
+  private double mean;
+  private double m2;
+  private double m3;
+  private double m4;
+  private double sum;
+  private double sumOfSquares;
+  private double sumOfLogs;
+  private double min = Double.NaN;
+  private double max = Double.NaN;
+
+  /**
+   * Adds a value to the accumulator.
+   *
+   * @param value to be added.
+   */
+  public void update(double value) {
+    long n0 = n;
+    n++;
+    double delta = value - mean;
+    double deltaN = delta / n;
+    double deltaN2 = deltaN * deltaN;
+    double term = delta * deltaN * n0;
+    mean += deltaN;
+    m4 += term * deltaN2 * ((double) n * n - 3d * n + 3d) + 6d * deltaN2 * m2 - 4d * deltaN * m3;
+    m3 += term * deltaN * (n - 2d) - 3d * deltaN * m2;
+    m2 += term;
+    sum += value;
+    sumOfSquares += value * value;
+    sumOfLogs += Math.log(value);
+    if (n0 == 0) {
+      min = value;
+      max = value;
+    } else {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+  }
+
+  /**
+   * Adds the same value a number of times, by merging the moments of the repeated value, which has
+   * no spread, instead of adding it once per repetition.
+   *
+   * @param value to be added.
+   * @param times number of repetitions of the value.
+   */
+  public void update(double value, long times) {
+    merge(times, value, 0d, 0d, 0d, value * times, value * value * times, Math.log(value) * times, value, value);
+  }
+
+  /**
+   * Adds a batch of values to the accumulator, in a single loop over the array. The values are added
+   * in order with the same updates as <code>update(double)</code>, which the JIT inlines in the loop,
+   * so the results don't depend on how the values are batched.
+   *
+   * @param values to be added.
+   * @param length number of values of the array to be added.
+   */
+  public void update(double[] values, int length) {
+    for (int i = 0; i < length; i++) {
+      update(values[i]);
+    }
+  }
+
+  /**
+   * Merges the values of another accumulator into this one.
+   *
+   * @param other accumulator to be merged.
+   */
+  public void merge(Moments other) {
+    merge(other.n, other.mean, other.m2, other.m3, other.m4, other.sum, other.sumOfSquares, other.sumOfLogs,
+          other.min, other.max);
+  }
+
+  /**
+   * Writes the binary form of the accumulator.
+   *
+   * @param out to write the accumulator to.
+   */
+  public void write(StateOutput out) {
+    out.writeVarLong(n);
+    if (n == 0) {
+      return;
+    }
+    out.writeDouble(mean);
+    out.writeDouble(m2);
+    out.writeDouble(m3);
+    out.writeDouble(m4);
+    out.writeDouble(sum);
+    out.writeDouble(sumOfSquares);
+    out.writeDouble(sumOfLogs);
+    out.writeDouble(min);
+    out.writeDouble(max);
+  }
+
+  /**
+   * Merges an accumulator read from its binary form into this one.
+   *
+   * @param in to read the accumulator from.
+   */
+  public void merge(StateInput in) {
+    long otherN = in.readVarLong();
+    if (otherN == 0) {
+      return;
+    }
+    merge(otherN, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+          in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+  }
+
+  private void merge(long otherN, double otherMean, double otherM2, double otherM3, double otherM4,
+                     double otherSum, double otherSumOfSquares, double otherSumOfLogs,
+                     double otherMin, double otherMax) {
+    if (otherN == 0) {
+      return;
+    }
+    if (n == 0) {
+      n = otherN;
+      mean = otherMean;
+      m2 = otherM2;
+      m3 = otherM3;
+      m4 = otherM4;
+      sum = otherSum;
+      sumOfSquares = otherSumOfSquares;
+      sumOfLogs = otherSumOfLogs;
+      min = otherMin;
+      max = otherMax;
+      return;
+    }
+    double na = n;
+    double nb = otherN;
+    double total = na + nb;
+    double delta = otherMean - mean;
+    double delta2 = delta * delta;
+    double delta3 = delta2 * delta;
+    double delta4 = delta2 * delta2;
+    double newM4 = m4 + otherM4
+      + delta4 * na * nb * (na * na - na * nb + nb * nb) / (total * total * total)
+      + 6d * delta2 * (na * na * otherM2 + nb * nb * m2) / (total * total)
+      + 4d * delta * (na * otherM3 - nb * m3) / total;
+    double newM3 = m3 + otherM3
+      + delta3 * na * nb * (na - nb) / (total * total)
+      + 3d * delta * (na * otherM2 - nb * m2) / total;
+    m2 = m2 + otherM2 + delta2 * na * nb / total;
+    m3 = newM3;
+    m4 = newM4;
+    mean = mean + delta * nb / total;
+    n += otherN;
+    sum += otherSum;
+    sumOfSquares += otherSumOfSquares;
+    sumOfLogs += otherSumOfLogs;
+    min = Math.min(min, otherMin);
+    max = Math.max(max, otherMax);
+  }
+
+  /**
+   * Clears all the values added to the accumulator.
+   */
+  public void clear() {
+    n = 0;
+    mean = 0;
+    m2 = 0;
+    m3 = 0;
+    m4 = 0;
+    sum = 0;
+    sumOfSquares = 0;
+    sumOfLogs = 0;
+    min = Double.NaN;
+    max = Double.NaN;
+  }
+
+  public long getN() {
+    return n;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  public double getMean() {
+    return n == 0 ? Double.NaN : mean;
+  }
+
+  /**
+   * @return bias corrected variance of the values.
+   */
+  public double getVariance() {
+    if (n == 0) {
+      return Double.NaN;
+    }
+    return n == 1 ? 0d : m2 / (n - 1d);
+  }
+
+  public double getPopulationVariance() {
+    return n == 0 ? Double.NaN : m2 / n;
+  }
+
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  /**
+   * @return bias corrected skewness of the values, or NaN with fewer than three values.
+   */
+  public double getSkewness() {
+    if (n < 3) {
+      return Double.NaN;
+    }
+    double variance = getVariance();
+    if (variance < MIN_VARIANCE) {
+      return 0d;
+    }
+    double n0 = n;
+    return n0 * m3 / ((n0 - 1d) * (n0 - 2d) * Math.sqrt(variance) * variance);
+  }
+
+  /**
+   * @return bias corrected excess kurtosis of the values, or NaN with fewer than four values.
+   */
+  public double getKurtosis() {
+    if (n < 4) {
+      return Double.NaN;
+    }
+    double variance = getVariance();
+    if (variance < MIN_VARIANCE) {
+      return 0d;
+    }
+    double n0 = n;
+    double coefficient = n0 * (n0 + 1d) / ((n0 - 1d) * (n0 - 2d) * (n0 - 3d));
+    double term = 3d * (n0 - 1d) * (n0 - 1d) / ((n0 - 2d) * (n0 - 3d));
+    return coefficient * m4 / (variance * variance) - term;
+  }
+
+  public double getGeometricMean() {
+    return n == 0 ? Double.NaN : Math.exp(sumOfLogs / n);
+  }
+
+  public double getQuadraticMean() {
+    return n == 0 ? Double.NaN : Math.sqrt(sumOfSquares / n);
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class <code>QuantileSketch</code> is a KLL streaming quantile sketch
+ * (Karnin, Lang and Liberty, "Optimal Quantile Approximation in Streams").
+ *
+ * Values are kept in a stack of compactors. When a compactor is full, its values are sorted
+ * and every other value is promoted to the compactor above, where each value stands for twice
+ * as many values. The capacity of the compactors decreases geometrically from the top, so
+ * the sketch holds about 3k values no matter how many values were added. The rank error
+ * is about 1.65 / k, and sketches built on different partitions can be merged.
+ *
+ * As long as nothing was compacted, the sketch holds every value and the percentiles are
+ * exact, estimated the same way as <code>DescriptiveStatistics.getPercentile</code>.
+ *
+ * The accuracy of a sketch can be lowered to halve its memory, and sketches of different accuracies are
+ * merged at the lowest of their accuracies.
+ */
+public final class QuantileSketch implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final int DEFAULT_K = 200;
+  public static final int MIN_K = 8;
+  private static final double CAPACITY_DECAY = 2d / 3d;
+  private static final int MIN_CAPACITY = 2;
+
+  private int k;
+  private double[][] levels;
+  private int[] sizes;
+  private int numLevels;
+  private int size;
+  private int maxSize;
+  private long count;
+  private long random;
+
+  /**
+   * @param k accuracy of the sketch, the rank error is about 1.65 / k.
+   */
+  public QuantileSketch(int k) {
+    this.k = Math.max(k, MIN_K);
+    this.levels = new double[1][];
+    this.sizes = new int[1];
+    this.numLevels = 1;
+    this.levels[0] = new double[capacity(0)];
+    this.maxSize = capacity(0);
+    this.random = 0x9E3779B97F4A7C15L;
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  /**
+   * @return number of values added to the sketch.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return estimated number of bytes used by the sketch, the capacity of all its compactors.
+   */
+  public long estimateSize() {
+    long bytes = 4L * sizes.length;
+    for (int level = 0; level < numLevels; level++) {
+      bytes += 8L * levels[level].length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Adds a value to the sketch.
+   *
+   * @param value to be added.
+   */
+  public void update(double value) {
+    append(0, value);
+    size++;
+    count++;
+    if (size >= maxSize) {
+      compress();
+    }
+  }
+
+  /**
+   * Adds the same value a number of times. As long as the sketch has room, the value is added once per
+   * repetition. Beyond that, the value is appended once to every compactor whose weight is a bit of the
+   * number of repetitions, so the cost only grows with the logarithm of the number of repetitions.
+   *
+   * @param value to be added.
+   * @param times number of repetitions of the value.
+   */
+  public void update(double value, long times) {
+    if (times <= maxSize - size) {
+      for (long i = 0; i < times; i++) {
+        update(value);
+      }
+      return;
+    }
+    count += times;
+    for (int level = 0; times != 0; level++, times >>>= 1) {
+      if ((times & 1) != 0) {
+        while (numLevels <= level) {
+          grow();
+        }
+        append(level, value);
+        size++;
+      }
+    }
+    while (size >= maxSize) {
+      compress();
+    }
+  }
+
+  /**
+   * Adds a batch of values to the sketch, copying them to the lowest compactor as long as it has room.
+   *
+   * @param values to be added.
+   * @param length number of values of the array to be added.
+   */
+  public void update(double[] values, int length) {
+    int offset = 0;
+    while (offset < length) {
+      while (size >= maxSize) {
+        compress();
+      }
+      int chunk = Math.min(length - offset, maxSize - size);
+      ensureCapacity(0, sizes[0] + chunk);
+      System.arraycopy(values, offset, levels[0], sizes[0], chunk);
+      sizes[0] += chunk;
+      size += chunk;
+      count += chunk;
+      offset += chunk;
+    }
+    if (size >= maxSize) {
+      compress();
+    }
+  }
+
+  /**
+   * Halves the accuracy of the sketch, compacting its values into compactors half as big, down to a k of
+   * <code>MIN_K</code>.
+   *
+   * @return true if the sketch was shrunk, false if its accuracy is already the lowest.
+   */
+  public boolean shrink() {
+    if (k == MIN_K) {
+      return false;
+    }
+    setK(Math.max(MIN_K, k / 2));
+    return true;
+  }
+
+  /**
+   * Merges another sketch into this one.
+   *
+   * @param other sketch to be merged.
+   */
+  public void merge(QuantileSketch other) {
+    if (other.k < k) {
+      setK(other.k);
+    }
+    while (numLevels < other.numLevels) {
+      grow();
+    }
+    for (int level = 0; level < other.numLevels; level++) {
+      for (int i = 0; i < other.sizes[level]; i++) {
+        append(level, other.levels[level][i]);
+      }
+      size += other.sizes[level];
+    }
+    count += other.count;
+    while (size >= maxSize) {
+      compress();
+    }
+  }
+
+  /**
+   * Writes the binary form of the sketch, the values of every compactor packed level by level.
+   *
+   * @param out to write the sketch to.
+   */
+  public void write(StateOutput out) {
+    out.writeVarInt(k);
+    out.writeVarLong(count);
+    out.writeVarInt(numLevels);
+    for (int level = 0; level < numLevels; level++) {
+      out.writeDoubles(levels[level], sizes[level]);
+    }
+  }
+
+  /**
+   * Merges a sketch read from its binary form into this one, appending its values straight
+   * to the compactors of this sketch.
+   *
+   * @param in to read the sketch from.
+   */
+  public void merge(StateInput in) {
+    int otherK = in.readVarInt();
+    if (otherK < k) {
+      setK(otherK);
+    }
+    count += in.readVarLong();
+    int otherLevels = in.readVarInt();
+    while (numLevels < otherLevels) {
+      grow();
+    }
+    for (int level = 0; level < otherLevels; level++) {
+      int length = in.readVarInt();
+      for (int i = 0; i < length; i++) {
+        append(level, in.readDouble());
+      }
+      size += length;
+    }
+    while (size >= maxSize) {
+      compress();
+    }
+  }
+
+  /**
+   * Estimates a percentile of the values added to the sketch.
+   *
+   * @param percentile between 0 and 100.
+   * @return estimate of the percentile, or NaN if the sketch is empty.
+   */
+  public double getPercentile(double percentile) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (numLevels == 1) {
+      return exact(percentile);
+    }
+    double[][] sorted = new double[numLevels][];
+    for (int level = 0; level < numLevels; level++) {
+      sorted[level] = Arrays.copyOf(levels[level], sizes[level]);
+      Arrays.sort(sorted[level]);
+    }
+    // Walks the values of all the compactors in order, where a value of level h weighs 2^h.
+    double rank = percentile / 100 * count;
+    int[] positions = new int[numLevels];
+    long cumulative = 0;
+    double value = Double.NaN;
+    while (true) {
+      int next = -1;
+      for (int level = 0; level < numLevels; level++) {
+        if (positions[level] < sorted[level].length
+          && (next < 0 || sorted[level][positions[level]] < sorted[next][positions[next]])) {
+          next = level;
+        }
+      }
+      if (next < 0) {
+        return value;
+      }
+      value = sorted[next][positions[next]++];
+      cumulative += 1L << next;
+      if (cumulative >= rank) {
+        return value;
+      }
+    }
+  }
+
+  // Same estimation as the default (legacy) estimation of commons-math Percentile.
+  private double exact(double percentile) {
+    int n = sizes[0];
+    double[] sorted = Arrays.copyOf(levels[0], n);
+    Arrays.sort(sorted);
+    double position = percentile * (n + 1) / 100;
+    double floor = Math.floor(position);
+    if (position < 1) {
+      return sorted[0];
+    }
+    if (position >= n) {
+      return sorted[n - 1];
+    }
+    double lower = sorted[(int) floor - 1];
+    double upper = sorted[(int) floor];
+    return lower + (position - floor) * (upper - lower);
+  }
+
+  private int capacity(int level) {
+    int depth = numLevels - level - 1;
+    return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+  }
+
+  private void append(int level, double value) {
+    double[] values = levels[level];
+    if (sizes[level] == values.length) {
+      values = Arrays.copyOf(values, Math.max(MIN_CAPACITY, values.length * 2));
+      levels[level] = values;
+    }
+    values[sizes[level]++] = value;
+  }
+
+  private void ensureCapacity(int level, int capacity) {
+    if (levels[level].length < capacity) {
+      levels[level] = Arrays.copyOf(levels[level], Math.max(capacity, levels[level].length * 2));
+    }
+  }
+
+  // Lowers the accuracy of the sketch, and gives back the memory of the compactors beyond their capacity.
+  private void setK(int k) {
+    this.k = k;
+    maxSize = 0;
+    for (int level = 0; level < numLevels; level++) {
+      maxSize += capacity(level);
+    }
+    while (size >= maxSize) {
+      compress();
+    }
+    for (int level = 0; level < numLevels; level++) {
+      int capacity = Math.max(sizes[level], capacity(level));
+      if (levels[level].length > capacity) {
+        levels[level] = Arrays.copyOf(levels[level], capacity);
+      }
+    }
+  }
+
+  private void grow() {
+    numLevels++;
+    levels = Arrays.copyOf(levels, numLevels);
+    sizes = Arrays.copyOf(sizes, numLevels);
+    levels[numLevels - 1] = new double[capacity(numLevels - 1)];
+    maxSize = 0;
+    for (int level = 0; level < numLevels; level++) {
+      maxSize += capacity(level);
+    }
+  }
+
+  // Compacts the lowest compactor that is over its capacity.
+  private void compress() {
+    for (int level = 0; level < numLevels; level++) {
+      if (sizes[level] >= capacity(level)) {
+        if (level + 1 >= numLevels) {
+          grow();
+        }
+        compact(level);
+        return;
+      }
+    }
+  }
+
+  private void compact(int level) {
+    double[] values = levels[level];
+    int n = sizes[level];
+    // An odd value out stays in this compactor.
+    int pairs = n / 2;
+    Arrays.sort(values, 0, 2 * pairs);
+    int offset = nextBit();
+    for (int i = 0; i < pairs; i++) {
+      append(level + 1, values[2 * i + offset]);
+    }
+    if (n % 2 == 1) {
+      values[0] = values[n - 1];
+    }
+    sizes[level] = n % 2;
+    size -= pairs;
+  }
+
+  private int nextBit() {
+    random ^= random << 13;
+    random ^= random >>> 7;
+    random ^= random << 17;
+    return (int) (random >>> 63);
+  }
+}
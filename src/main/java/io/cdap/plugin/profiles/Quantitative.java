@@ -19,8 +19,11 @@ package io.cdap.plugin.profiles;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.Profile;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 
@@ -28,13 +31,26 @@ import java.util.List;
  * This class <code>Quantitative</code> profiler profiles numbers to determine
  * minimum, maximum, mean, total, standard devication, median, skewness, kurtosis,
  * population variance, percentiles (80,95,99), geometric mean and quadratic mean.
+ *
+ * The median and percentiles are estimated with a <code>QuantileSketch</code> and the other
+ * statistics are accumulated in <code>Moments</code>, so the memory is bounded no matter how
+ * many values are profiled.
  */
 public final class Quantitative extends Profile {
-  private DescriptiveStatistics statistics;
+  private static final long serialVersionUID = 1L;
+
+  private final int accuracy;
 
   public Quantitative() {
+    this(QuantileSketch.DEFAULT_K);
+  }
+
+  /**
+   * @param accuracy of the quantile sketch, see <code>QuantileSketch</code>.
+   */
+  public Quantitative(int accuracy) {
     super("quantitative");
-    statistics = new DescriptiveStatistics();
+    this.accuracy = accuracy;
   }
 
   @Override
@@ -68,42 +84,160 @@ public final class Quantitative extends Profile {
   }
 
   @Override
-  public void reset() {
-    statistics.clear();
+  public ProfileState newState() {
+    return new State(accuracy);
   }
 
-  @Override
-  public void update(Object value) {
-    if (value != null) {
-      double val = 0;
-      if (value instanceof Integer) {
-        val = Double.valueOf((Integer) value).doubleValue();
-      } else if (value instanceof Long) {
-        val = Double.valueOf((Long) value).doubleValue();
-      } else if (value instanceof Float) {
-        val = Double.valueOf((Float) value).doubleValue();
-      } else if (value instanceof Double) {
-        val = (Double) value;
+  /**
+   * State of the quantitative profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final Moments statistics;
+    private final QuantileSketch quantiles;
+    // Non null values of a batch, converted to doubles.
+    private transient double[] batch;
+
+    State(int accuracy) {
+      statistics = new Moments();
+      quantiles = new QuantileSketch(accuracy);
+    }
+
+    @Override
+    public void update(Object value) {
+      if (value != null) {
+        double val = 0;
+        if (value instanceof Integer) {
+          val = Double.valueOf((Integer) value).doubleValue();
+        } else if (value instanceof Long) {
+          val = Double.valueOf((Long) value).doubleValue();
+        } else if (value instanceof Float) {
+          val = Double.valueOf((Float) value).doubleValue();
+        } else if (value instanceof Double) {
+          val = (Double) value;
+        }
+        update(val);
       }
-      statistics.addValue(val);
     }
-  }
 
-  @Override
-  public void results(StructuredRecord.Builder builder) {
-    builder.set("maximum", V(statistics.getMax()));
-    builder.set("minimum", V(statistics.getMin()));
-    builder.set("mean", V(statistics.getMean()));
-    builder.set("stdev", V(statistics.getStandardDeviation()));
-    builder.set("median", V(statistics.getPercentile(50)));
-    builder.set("percentile_80", V(statistics.getPercentile(80)));
-    builder.set("percentile_95", V(statistics.getPercentile(95)));
-    builder.set("percentile_99", V(statistics.getPercentile(99)));
-    builder.set("geometric_mean", V(statistics.getGeometricMean()));
-    builder.set("skewness", V(statistics.getSkewness()));
-    builder.set("kurtosis", V(statistics.getKurtosis()));
-    builder.set("population_variance", V(statistics.getPopulationVariance()));
-    builder.set("quadratic_mean", V(statistics.getQuadraticMean()));
-    builder.set("total", V(statistics.getSum()));
+    @Override
+    public void updateNull() {
+      // Nulls are not part of the statistics.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls are not part of the statistics.
+    }
+
+    @Override
+    public void update(long value) {
+      update((double) value);
+    }
+
+    @Override
+    public void update(double value) {
+      statistics.update(value);
+      quantiles.update(value);
+    }
+
+    @Override
+    public void update(long value, long times) {
+      update((double) value, times);
+    }
+
+    @Override
+    public void update(double value, long times) {
+      statistics.update(value, times);
+      quantiles.update(value, times);
+    }
+
+    @Override
+    public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+      double[] dense = batch(n);
+      int length = 0;
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          dense[length++] = values[i];
+        }
+      }
+      updateDense(dense, length);
+    }
+
+    @Override
+    public void updateBatch(double[] values, @Nullable long[] nulls, int n) {
+      if (nulls == null) {
+        updateDense(values, n);
+        return;
+      }
+      double[] dense = batch(n);
+      int length = 0;
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          dense[length++] = values[i];
+        }
+      }
+      updateDense(dense, length);
+    }
+
+    private void updateDense(double[] values, int length) {
+      statistics.update(values, length);
+      quantiles.update(values, length);
+    }
+
+    private double[] batch(int n) {
+      if (batch == null || batch.length < n) {
+        batch = new double[n];
+      }
+      return batch;
+    }
+
+    @Override
+    public long estimateSize() {
+      return Moments.SIZE + quantiles.estimateSize();
+    }
+
+    @Override
+    public boolean shrink() {
+      return quantiles.shrink();
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      State state = (State) other;
+      statistics.merge(state.statistics);
+      quantiles.merge(state.quantiles);
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      statistics.write(out);
+      quantiles.write(out);
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      statistics.merge(in);
+      quantiles.merge(in);
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      builder.set("maximum", V(statistics.getMax()));
+      builder.set("minimum", V(statistics.getMin()));
+      builder.set("mean", V(statistics.getMean()));
+      builder.set("stdev", V(statistics.getStandardDeviation()));
+      builder.set("median", V(quantiles.getPercentile(50)));
+      builder.set("percentile_80", V(quantiles.getPercentile(80)));
+      builder.set("percentile_95", V(quantiles.getPercentile(95)));
+      builder.set("percentile_99", V(quantiles.getPercentile(99)));
+      builder.set("geometric_mean", V(statistics.getGeometricMean()));
+      builder.set("skewness", V(statistics.getSkewness()));
+      builder.set("kurtosis", V(statistics.getKurtosis()));
+      builder.set("population_variance", V(statistics.getPopulationVariance()));
+      builder.set("quadratic_mean", V(statistics.getQuadraticMean()));
+      builder.set("total", V(statistics.getSum()));
+    }
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.profiles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class <code>Slab</code> allocates fixed-size blocks of direct memory, out of the Java heap, for
+ * the structures of the profile states that don't grow once created, like the registers of <code>HllSketch</code>.
+ *
+ * Blocks are carved out of large direct chunks, so profiling thousands of fields allocates a handful of
+ * buffers that the garbage collector never scans or copies, instead of thousands of arrays. Released blocks
+ * are zeroed and reused for blocks of the same size. A chunk is freed by the garbage collector once none of
+ * its blocks is reachable anymore, so blocks that are never released don't leak.
+ */
+public final class Slab {
+  public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+  private final int chunkSize;
+  private final Map<Integer, Deque<ByteBuffer>> free;
+  private ByteBuffer chunk;
+  private long allocated;
+
+  public Slab() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param chunkSize number of bytes of the direct chunks the blocks are carved out of.
+   */
+  public Slab(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size must be positive, but was " + chunkSize + ".");
+    }
+    this.chunkSize = chunkSize;
+    this.free = new HashMap<>();
+  }
+
+  /**
+   * Allocates a block of zeroed direct memory. Blocks bigger than a chunk get a direct buffer of their own.
+   *
+   * @param size number of bytes of the block.
+   * @return block with a position of 0 and a capacity of size.
+   */
+  public synchronized ByteBuffer allocate(int size) {
+    allocated += size;
+    Deque<ByteBuffer> blocks = free.get(size);
+    if (blocks != null && !blocks.isEmpty()) {
+      ByteBuffer block = blocks.pop();
+      zero(block);
+      return block;
+    }
+    if (size > chunkSize) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    if (chunk == null || chunk.remaining() < size) {
+      chunk = ByteBuffer.allocateDirect(chunkSize);
+    }
+    int position = chunk.position();
+    chunk.limit(position + size);
+    ByteBuffer block = chunk.slice();
+    chunk.limit(chunk.capacity());
+    chunk.position(position + size);
+    return block;
+  }
+
+  /**
+   * Releases a block, which is reused by the next allocation of the same size. The block must not be
+   * used anymore once released.
+   *
+   * @param block allocated by this slab.
+   */
+  public synchronized void release(ByteBuffer block) {
+    int size = block.capacity();
+    allocated -= size;
+    Deque<ByteBuffer> blocks = free.get(size);
+    if (blocks == null) {
+      blocks = new ArrayDeque<>();
+      free.put(size, blocks);
+    }
+    blocks.push(block);
+  }
+
+  /**
+   * @return number of bytes of the blocks allocated and not released.
+   */
+  public synchronized long getAllocated() {
+    return allocated;
+  }
+
+  private static void zero(ByteBuffer block) {
+    int capacity = block.capacity();
+    int i = 0;
+    for (; i + 8 <= capacity; i += 8) {
+      block.putLong(i, 0L);
+    }
+    for (; i < capacity; i++) {
+      block.put(i, (byte) 0);
+    }
+  }
+}
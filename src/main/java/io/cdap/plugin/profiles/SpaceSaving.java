@@ -0,0 +1,455 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class <code>SpaceSaving</code> keeps the most frequent values of a stream in a fixed number of
+ * counters, with the Space-Saving algorithm (Metwally, Agrawal and El Abbadi, "Efficient Computation
+ * of Frequent and Top-k Elements in Data Streams").
+ *
+ * A value that isn't counted yet replaces the value with the smallest count, and inherits that count
+ * as its error. The counters are kept in a stream summary, a list of buckets of counters with the same
+ * count ordered by count, so every update costs O(1). With c counters, the count of every value is
+ * overestimated by at most n / c, where n is the number of values added.
+ *
+ * Summaries of different partitions are merged by adding their counts, where a value missing from a
+ * full summary is counted with the smallest count of that summary (Berinde et al., "Space-optimal Heavy
+ * Hitters with Strong Error Bounds"), so the error bound still holds after the merge.
+ */
+public final class SpaceSaving implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final int LONG = 0;
+  private static final int STRING = 1;
+  // Approximate heap size of a counter, with its entry in the map and its value.
+  private static final long COUNTER_SIZE = 96;
+
+  private int capacity;
+  private transient Map<Object, Counter> counters;
+  // Bucket with the smallest count.
+  private transient Bucket min;
+  private long total;
+
+  /**
+   * @param capacity number of counters.
+   */
+  public SpaceSaving(int capacity) {
+    this.capacity = Math.max(capacity, 1);
+    this.counters = new HashMap<>();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return estimated number of bytes used by the summary, from the number of counters.
+   */
+  public long estimateSize() {
+    return COUNTER_SIZE * counters.size();
+  }
+
+  /**
+   * @return number of values added.
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Counts a value.
+   *
+   * @param value to be counted, must implement equals and hashCode.
+   */
+  public void update(Object value) {
+    total++;
+    Counter counter = counters.get(value);
+    if (counter != null) {
+      increment(counter, 1);
+      return;
+    }
+    if (counters.size() < capacity) {
+      counter = new Counter(value, 0);
+      counters.put(value, counter);
+      attach(counter, 1);
+      return;
+    }
+    // Replaces the value with the smallest count.
+    counter = min.head;
+    counters.remove(counter.value);
+    counter.value = value;
+    counter.error = counter.bucket.count;
+    counters.put(value, counter);
+    increment(counter, 1);
+  }
+
+  /**
+   * Counts the same value a number of times at once, as if it was counted as many times by
+   * <code>update(Object)</code>.
+   *
+   * @param value to be counted, must implement equals and hashCode.
+   * @param times number of repetitions of the value.
+   */
+  public void update(Object value, long times) {
+    if (times <= 0) {
+      return;
+    }
+    total += times;
+    Counter counter = counters.get(value);
+    if (counter == null && counters.size() < capacity) {
+      counter = new Counter(value, 0);
+      counters.put(value, counter);
+      attach(counter, 0);
+    } else if (counter == null) {
+      counter = min.head;
+      counters.remove(counter.value);
+      counter.value = value;
+      counter.error = counter.bucket.count;
+      counters.put(value, counter);
+    }
+    increment(counter, times);
+  }
+
+  /**
+   * Halves the number of counters of the summary, down to a minimum, keeping the counters of the most
+   * frequent values. The values whose counters are dropped are counted at most the smallest count kept,
+   * so the counts are still overestimated by at most n / c, for the new number of counters c.
+   *
+   * @param minCapacity minimum number of counters.
+   * @return true if the summary was shrunk, false if it already has the minimum number of counters.
+   */
+  public boolean shrink(int minCapacity) {
+    if (capacity <= minCapacity) {
+      return false;
+    }
+    capacity = Math.max(minCapacity, capacity / 2);
+    if (counters.size() > capacity) {
+      List<Counter> sorted = new ArrayList<>(counters.size());
+      for (Counter counter : counters.values()) {
+        Counter copy = new Counter(counter.value, counter.error);
+        copy.count = counter.bucket.count;
+        sorted.add(copy);
+      }
+      Collections.sort(sorted, BY_COUNT);
+      rebuild(sorted.subList(0, capacity));
+    }
+    return true;
+  }
+
+  /**
+   * Merges another summary into this one, keeping the smallest number of counters of the two summaries.
+   *
+   * @param other summary to be merged.
+   */
+  public void merge(SpaceSaving other) {
+    merge(other.top(other.counters.size()), other.isFull(), other.total, other.capacity);
+  }
+
+  /**
+   * Writes the binary form of the summary, its counters from the most to the least frequent.
+   *
+   * @param out to write the summary to.
+   */
+  public void write(StateOutput out) {
+    List<Item> items = top(counters.size());
+    out.writeVarInt(capacity);
+    out.writeVarLong(total);
+    out.writeVarInt(items.size());
+    for (Item item : items) {
+      if (item.value instanceof Long) {
+        out.writeByte(LONG);
+        out.writeSignedVarLong((Long) item.value);
+      } else if (item.value instanceof String) {
+        out.writeByte(STRING);
+        out.writeString((String) item.value);
+      } else {
+        throw new IllegalArgumentException("Unable to write values of " + item.value.getClass() + ".");
+      }
+      out.writeVarLong(item.count);
+      out.writeVarLong(item.error);
+    }
+  }
+
+  /**
+   * Merges a summary read from its binary form into this one.
+   *
+   * @param in to read the summary from.
+   */
+  public void merge(StateInput in) {
+    int otherCapacity = in.readVarInt();
+    long otherTotal = in.readVarLong();
+    int size = in.readVarInt();
+    List<Item> items = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Object value = in.readByte() == LONG ? (Object) in.readSignedVarLong() : in.readString();
+      items.add(new Item(value, in.readVarLong(), in.readVarLong()));
+    }
+    merge(items, size >= otherCapacity, otherTotal, otherCapacity);
+  }
+
+  // Merges the counters of another summary, sorted by decreasing count.
+  private void merge(List<Item> items, boolean otherFull, long otherTotal, int otherCapacity) {
+    long thisMin = isFull() ? min.count : 0;
+    long otherMin = otherFull && !items.isEmpty() ? items.get(items.size() - 1).count : 0;
+    capacity = Math.min(capacity, otherCapacity);
+    Map<Object, Counter> merged = new HashMap<>();
+    for (Counter counter : counters.values()) {
+      Counter copy = new Counter(counter.value, counter.error + otherMin);
+      copy.count = counter.bucket.count + otherMin;
+      merged.put(counter.value, copy);
+    }
+    for (Item item : items) {
+      Counter copy = merged.get(item.value);
+      if (copy == null) {
+        copy = new Counter(item.value, item.error + thisMin);
+        copy.count = item.count + thisMin;
+        merged.put(item.value, copy);
+      } else {
+        // Both summaries count the value, so the smallest count of the other summary was added for nothing.
+        copy.count += item.count - otherMin;
+        copy.error += item.error - otherMin;
+      }
+    }
+    List<Counter> sorted = new ArrayList<>(merged.values());
+    Collections.sort(sorted, BY_COUNT);
+    rebuild(sorted.subList(0, Math.min(capacity, sorted.size())));
+    total += otherTotal;
+  }
+
+  /**
+   * Returns the most frequent values, from the most to the least frequent.
+   *
+   * @param k maximum number of values.
+   * @return list of the values with their count and the maximum overestimation of their count.
+   */
+  public List<Item> top(int k) {
+    List<Item> items = new ArrayList<>(Math.min(k, counters.size()));
+    // Buckets are ordered by increasing count, so the list is walked from its last bucket.
+    Bucket bucket = min;
+    while (bucket != null && bucket.next != null) {
+      bucket = bucket.next;
+    }
+    for (; bucket != null && items.size() < k; bucket = bucket.prev) {
+      for (Counter counter = bucket.head; counter != null && items.size() < k; counter = counter.next) {
+        items.add(new Item(counter.value, bucket.count, counter.error));
+      }
+    }
+    return items;
+  }
+
+  private boolean isFull() {
+    return counters.size() >= capacity;
+  }
+
+  // Moves a counter from its bucket to the bucket of its count plus the increment.
+  private void increment(Counter counter, long increment) {
+    Bucket bucket = counter.bucket;
+    long count = bucket.count + increment;
+    // Increments above one can move the counter past buckets of lower counts.
+    Bucket after = bucket;
+    while (after.next != null && after.next.count < count) {
+      after = after.next;
+    }
+    Bucket next = after.next;
+    detach(counter);
+    if (next == null || next.count != count) {
+      next = insertAfter(after, new Bucket(count));
+    }
+    push(next, counter);
+    if (bucket.head == null) {
+      unlink(bucket);
+    }
+  }
+
+  // Adds a counter to the bucket of the given count, which must not be higher than any other count.
+  private void attach(Counter counter, long count) {
+    if (min == null || min.count != count) {
+      Bucket bucket = new Bucket(count);
+      bucket.next = min;
+      if (min != null) {
+        min.prev = bucket;
+      }
+      min = bucket;
+    }
+    push(min, counter);
+  }
+
+  private void push(Bucket bucket, Counter counter) {
+    counter.bucket = bucket;
+    counter.prev = null;
+    counter.next = bucket.head;
+    if (bucket.head != null) {
+      bucket.head.prev = counter;
+    }
+    bucket.head = counter;
+  }
+
+  private void detach(Counter counter) {
+    Bucket bucket = counter.bucket;
+    if (counter.prev != null) {
+      counter.prev.next = counter.next;
+    } else {
+      bucket.head = counter.next;
+    }
+    if (counter.next != null) {
+      counter.next.prev = counter.prev;
+    }
+    counter.prev = null;
+    counter.next = null;
+  }
+
+  private void unlink(Bucket bucket) {
+    if (bucket.prev != null) {
+      bucket.prev.next = bucket.next;
+    } else {
+      min = bucket.next;
+    }
+    if (bucket.next != null) {
+      bucket.next.prev = bucket.prev;
+    }
+  }
+
+  private Bucket insertAfter(Bucket after, Bucket bucket) {
+    bucket.prev = after;
+    bucket.next = after.next;
+    if (after.next != null) {
+      after.next.prev = bucket;
+    }
+    after.next = bucket;
+    return bucket;
+  }
+
+  // Rebuilds the summary from counters sorted by decreasing count.
+  private void rebuild(List<Counter> sorted) {
+    counters = new HashMap<>();
+    min = null;
+    Bucket last = null;
+    // Counters are added by increasing count, so they go to the last bucket or a new one after it.
+    for (int i = sorted.size() - 1; i >= 0; i--) {
+      Counter source = sorted.get(i);
+      Counter counter = new Counter(source.value, source.error);
+      counters.put(counter.value, counter);
+      if (last == null) {
+        attach(counter, source.count);
+        last = min;
+      } else if (last.count == source.count) {
+        push(last, counter);
+      } else {
+        last = insertAfter(last, new Bucket(source.count));
+        push(last, counter);
+      }
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    List<Item> items = top(counters.size());
+    out.writeInt(items.size());
+    for (Item item : items) {
+      out.writeObject(item.value);
+      out.writeLong(item.count);
+      out.writeLong(item.error);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int size = in.readInt();
+    List<Counter> sorted = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Counter counter = new Counter(in.readObject(), 0);
+      counter.count = in.readLong();
+      counter.error = in.readLong();
+      sorted.add(counter);
+    }
+    rebuild(sorted);
+  }
+
+  private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+    @Override
+    public int compare(Counter first, Counter second) {
+      return Long.compare(second.count, first.count);
+    }
+  };
+
+  /**
+   * A frequent value, with its estimated count and the maximum overestimation of the count.
+   */
+  public static final class Item {
+    private final Object value;
+    private final long count;
+    private final long error;
+
+    Item(Object value, long count, long error) {
+      this.value = value;
+      this.count = count;
+      this.error = error;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+  }
+
+  private static final class Counter {
+    private Object value;
+    private long error;
+    // Only used while merging, the count of a counter is the count of its bucket.
+    private long count;
+    private Bucket bucket;
+    private Counter prev;
+    private Counter next;
+
+    Counter(Object value, long error) {
+      this.value = value;
+      this.error = error;
+    }
+  }
+
+  private static final class Bucket {
+    private final long count;
+    private Counter head;
+    private Bucket prev;
+    private Bucket next;
+
+    Bucket(long count) {
+      this.count = count;
+    }
+  }
+}
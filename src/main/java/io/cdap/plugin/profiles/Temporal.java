@@ -0,0 +1,372 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class <code>Temporal</code> profiler reports the range of the values of date, time and timestamp
+ * fields, and the number of values in every hour or day.
+ *
+ * Values are kept as the epoch long of their logical type, converted to microseconds with a multiplication,
+ * so no date object is created per value. The values are counted in buckets of an hour, or of a day for dates.
+ * When the values span more than <code>MAX_BUCKETS</code> buckets, the buckets are merged into buckets of a
+ * day, then of two days, four days and so on, so the state has a bounded size. Every bucket width divides the
+ * next one, so states of different partitions are merged by bringing them to the widest of their widths.
+ */
+public final class Temporal extends Profile {
+  private static final long serialVersionUID = 1L;
+
+  public static final int MAX_BUCKETS = 1024;
+  private static final long MICROS_PER_SECOND = 1000000L;
+  private static final long MILLIS = 1000L;
+  private static final long HOUR = 3600L * MICROS_PER_SECOND;
+  private static final long DAY = 24L * HOUR;
+  private static final String START = "start";
+  private static final String COUNT = "count";
+  private static final String BUCKETS = "buckets";
+
+  private static final Schema TIMESTAMP = Schema.of(Schema.LogicalType.TIMESTAMP_MICROS);
+  // Schema of every bucket.
+  private static final Schema SCHEMA = Schema.recordOf(
+    "temporalbucket",
+    Schema.Field.of(START, TIMESTAMP),
+    Schema.Field.of(COUNT, Schema.of(Schema.Type.LONG))
+  );
+
+  // Number of microseconds of one unit of the values of the field.
+  private final long unit;
+
+  public Temporal() {
+    this(1L);
+  }
+
+  private Temporal(long unit) {
+    super("temporal");
+    this.unit = unit;
+  }
+
+  @Override
+  public List<Schema.Type> types() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public List<Schema.LogicalType> logicalTypes() {
+    return Arrays.asList(
+      Schema.LogicalType.DATE,
+      Schema.LogicalType.TIMESTAMP_MILLIS,
+      Schema.LogicalType.TIMESTAMP_MICROS,
+      Schema.LogicalType.TIME_MILLIS,
+      Schema.LogicalType.TIME_MICROS
+    );
+  }
+
+  @Override
+  public List<Schema.Field> fields() {
+    return Arrays.asList(
+      Schema.Field.of("minimum", Schema.nullableOf(TIMESTAMP)),
+      Schema.Field.of("maximum", Schema.nullableOf(TIMESTAMP)),
+      Schema.Field.of("range_seconds", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+      Schema.Field.of("bucket_seconds", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of(BUCKETS, Schema.nullableOf(Schema.arrayOf(SCHEMA)))
+    );
+  }
+
+  /**
+   * Binds the profile to the unit of the logical type of a field: days for dates, milliseconds or
+   * microseconds for times and timestamps. Times are reported as timestamps of the first of January 1970.
+   *
+   * @param schema of the field.
+   * @return profile of the field.
+   */
+  @Override
+  public Profile forSchema(Schema schema) {
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType == Schema.LogicalType.DATE) {
+      return new Temporal(DAY);
+    }
+    if (logicalType == Schema.LogicalType.TIMESTAMP_MILLIS || logicalType == Schema.LogicalType.TIME_MILLIS) {
+      return new Temporal(MILLIS);
+    }
+    return this;
+  }
+
+  @Override
+  public ProfileState newState() {
+    return new State(unit);
+  }
+
+  private static long floorDiv(long x, long y) {
+    long quotient = x / y;
+    if (x % y != 0 && (x ^ y) < 0) {
+      quotient--;
+    }
+    return quotient;
+  }
+
+  /**
+   * State of the temporal profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MIN_CAPACITY = 16;
+    private final long unit;
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    // Width of the buckets in microseconds.
+    private long width;
+    // Open addressing map of the start of every bucket divided by the width to its count, 0 for empty slots.
+    private long[] keys;
+    private long[] counts;
+    private int size;
+
+    State(long unit) {
+      this.unit = unit;
+      this.width = unit == DAY ? DAY : HOUR;
+      this.keys = new long[MIN_CAPACITY];
+      this.counts = new long[MIN_CAPACITY];
+    }
+
+    @Override
+    public void update(Object value) {
+      if (value instanceof Number) {
+        update(((Number) value).longValue());
+      }
+    }
+
+    @Override
+    public void updateNull() {
+      // Nulls have no time.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls have no time.
+    }
+
+    @Override
+    public void update(long value) {
+      update(value, 1);
+    }
+
+    @Override
+    public void update(long value, long times) {
+      long micros = value * unit;
+      if (micros < min) {
+        min = micros;
+      }
+      if (micros > max) {
+        max = micros;
+      }
+      count += times;
+      add(floorDiv(micros, width), times);
+    }
+
+    @Override
+    public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          update(values[i]);
+        }
+      }
+    }
+
+    private void add(long key, long n) {
+      if (!insert(key, n)) {
+        return;
+      }
+      if (size > MAX_BUCKETS) {
+        widen(next(width));
+      } else if (size * 2 > keys.length) {
+        rehash(keys.length * 2, 1);
+      }
+    }
+
+    // Adds a count to a bucket, returning true if the bucket is new.
+    private boolean insert(long key, long n) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (counts[slot] != 0) {
+        if (keys[slot] == key) {
+          counts[slot] += n;
+          return false;
+        }
+        slot = slot + 1 & mask;
+      }
+      keys[slot] = key;
+      counts[slot] = n;
+      size++;
+      return true;
+    }
+
+    // Merges the buckets into buckets at least as wide as the target, and few enough.
+    private void widen(long target) {
+      while (width < target || size > MAX_BUCKETS) {
+        long next = next(width);
+        rehash(keys.length, next / width);
+        width = next;
+      }
+    }
+
+    private void rehash(int capacity, long factor) {
+      long[] oldKeys = keys;
+      long[] oldCounts = counts;
+      keys = new long[capacity];
+      counts = new long[capacity];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldCounts[i] != 0) {
+          insert(floorDiv(oldKeys[i], factor), oldCounts[i]);
+        }
+      }
+    }
+
+    private void merge(long otherWidth, long otherCount, long otherMin, long otherMax) {
+      if (otherCount == 0) {
+        return;
+      }
+      widen(otherWidth);
+      count += otherCount;
+      min = Math.min(min, otherMin);
+      max = Math.max(max, otherMax);
+    }
+
+    @Override
+    public long estimateSize() {
+      return 48 + 16L * keys.length;
+    }
+
+    @Override
+    public boolean shrink() {
+      if (keys.length == MIN_CAPACITY) {
+        return false;
+      }
+      // Buckets twice as wide are at most half as many, and go to the smallest table that holds them.
+      widen(next(width));
+      int capacity = MIN_CAPACITY;
+      while (size * 2 > capacity) {
+        capacity *= 2;
+      }
+      if (capacity < keys.length) {
+        rehash(capacity, 1);
+      }
+      return true;
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      State state = (State) other;
+      merge(state.width, state.count, state.min, state.max);
+      for (int i = 0; i < state.keys.length; i++) {
+        if (state.counts[i] != 0) {
+          // The width of this state is a multiple of the width of the other state.
+          add(floorDiv(state.keys[i] * state.width, width), state.counts[i]);
+        }
+      }
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      out.writeVarLong(count);
+      if (count == 0) {
+        return;
+      }
+      out.writeVarLong(width);
+      out.writeSignedVarLong(min);
+      out.writeSignedVarLong(max);
+      out.writeVarInt(size);
+      for (int i = 0; i < keys.length; i++) {
+        if (counts[i] != 0) {
+          out.writeSignedVarLong(keys[i]);
+          out.writeVarLong(counts[i]);
+        }
+      }
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      long otherCount = in.readVarLong();
+      if (otherCount == 0) {
+        return;
+      }
+      long otherWidth = in.readVarLong();
+      merge(otherWidth, otherCount, in.readSignedVarLong(), in.readSignedVarLong());
+      int otherSize = in.readVarInt();
+      for (int i = 0; i < otherSize; i++) {
+        long key = in.readSignedVarLong();
+        add(floorDiv(key * otherWidth, width), in.readVarLong());
+      }
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      builder.set("bucket_seconds", width / MICROS_PER_SECOND);
+      if (count == 0) {
+        return;
+      }
+      builder.set("minimum", min);
+      builder.set("maximum", max);
+      builder.set("range_seconds", (double) (max - min) / MICROS_PER_SECOND);
+      long[] starts = new long[size];
+      int n = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (counts[i] != 0) {
+          starts[n++] = keys[i];
+        }
+      }
+      Arrays.sort(starts);
+      List<StructuredRecord> buckets = new ArrayList<>();
+      for (long key : starts) {
+        buckets.add(StructuredRecord.builder(SCHEMA).set(START, key * width).set(COUNT, get(key)).build());
+      }
+      builder.set(BUCKETS, buckets);
+    }
+
+    private long get(long key) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (keys[slot] != key || counts[slot] == 0) {
+        slot = slot + 1 & mask;
+      }
+      return counts[slot];
+    }
+
+    private static int slot(long key, int mask) {
+      return (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+    }
+
+    // Width of the buckets following buckets of the given width.
+    private static long next(long width) {
+      return width == HOUR ? DAY : width * 2;
+    }
+  }
+}
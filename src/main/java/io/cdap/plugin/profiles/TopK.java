@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.Profile;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class <code>TopK</code> profiler reports the most frequent values of strings and integers,
+ * using a Space-Saving summary with a fixed number of counters, see <code>SpaceSaving</code>.
+ *
+ * The summary keeps max(k, 1 / error) counters, so the count of every reported value is overestimated
+ * by at most error times the number of values of the field. Every reported value comes with that
+ * overestimation, its count minus its error being a guaranteed lower bound of its real count.
+ */
+public final class TopK extends Profile {
+  private static final long serialVersionUID = 1L;
+
+  public static final int DEFAULT_K = 10;
+  public static final double DEFAULT_ERROR = 0.001d;
+  private static final String VALUE = "value";
+  private static final String COUNT = "count";
+  private static final String ERROR = "error";
+  private static final String RECORD = "topk";
+
+  // Schema for each frequent value.
+  private static final Schema SCHEMA = Schema.recordOf(
+    "topkrec",
+    Schema.Field.of(VALUE, Schema.of(Schema.Type.STRING)),
+    Schema.Field.of(COUNT, Schema.of(Schema.Type.LONG)),
+    Schema.Field.of(ERROR, Schema.of(Schema.Type.LONG))
+  );
+
+  private final int k;
+  private final int capacity;
+
+  public TopK() {
+    this(DEFAULT_K, DEFAULT_ERROR);
+  }
+
+  /**
+   * @param k number of frequent values reported.
+   * @param error maximum overestimation of the counts, as a fraction of the number of values.
+   */
+  public TopK(int k, double error) {
+    super("topk");
+    this.k = k;
+    this.capacity = (int) Math.max(k, Math.ceil(1d / error));
+  }
+
+  @Override
+  public List<Schema.Type> types() {
+    return Arrays.asList(
+      Schema.Type.STRING,
+      Schema.Type.INT,
+      Schema.Type.LONG
+    );
+  }
+
+  @Override
+  public List<Schema.Field> fields() {
+    return Arrays.asList(
+      Schema.Field.of(
+        RECORD, Schema.nullableOf(
+          Schema.arrayOf(SCHEMA)
+        )
+      )
+    );
+  }
+
+  @Override
+  public ProfileState newState() {
+    return new State(k, capacity);
+  }
+
+  /**
+   * State of the top-k profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final int k;
+    private final SpaceSaving summary;
+
+    State(int k, int capacity) {
+      this.k = k;
+      this.summary = new SpaceSaving(capacity);
+    }
+
+    @Override
+    public void update(Object value) {
+      if (value instanceof CharSequence) {
+        update((CharSequence) value);
+      } else if (value instanceof Integer || value instanceof Long) {
+        update(((Number) value).longValue());
+      }
+    }
+
+    @Override
+    public void updateNull() {
+      // Nulls are counted by the other profiles.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls are counted by the other profiles.
+    }
+
+    @Override
+    public void update(long value) {
+      summary.update(value);
+    }
+
+    @Override
+    public void update(CharSequence value) {
+      summary.update(value.toString());
+    }
+
+    @Override
+    public void update(long value, long times) {
+      summary.update(value, times);
+    }
+
+    @Override
+    public void update(CharSequence value, long times) {
+      summary.update(value.toString(), times);
+    }
+
+    @Override
+    public long estimateSize() {
+      return summary.estimateSize();
+    }
+
+    @Override
+    public boolean shrink() {
+      // At least k counters are kept, to report k values.
+      return summary.shrink(k);
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      summary.merge(((State) other).summary);
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      summary.write(out);
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      summary.merge(in);
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      List<SpaceSaving.Item> items = summary.top(k);
+      if (!items.isEmpty()) {
+        List<StructuredRecord> values = new ArrayList<>(items.size());
+        for (SpaceSaving.Item item : items) {
+          StructuredRecord.Builder top = StructuredRecord.builder(SCHEMA);
+          top.set(VALUE, String.valueOf(item.getValue()));
+          top.set(COUNT, item.getCount());
+          top.set(ERROR, item.getError());
+          values.add(top.build());
+        }
+        builder.set(RECORD, values);
+      }
+    }
+  }
+}
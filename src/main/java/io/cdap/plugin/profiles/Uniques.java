@@ -19,26 +19,66 @@ package io.cdap.plugin.profiles;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.Profile;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import io.cdap.plugin.ProfileState;
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
 
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
 /**
- * This class <code>Uniques</code> profiler profiles String types using Hyper Log Log to determine
- * the cardinality.
+ * This class <code>Uniques</code> profiler estimates the number of distinct values of strings,
+ * numbers and bytes using a HyperLogLog++ sketch, see <code>HllSketch</code>.
  */
 public final class Uniques extends Profile {
-  private HyperLogLog hpp;
+  private static final long serialVersionUID = 1L;
+
+  private final int precision;
+  private final boolean offHeap;
+  // Created where the states are, the profile being serialized with the plugin.
+  private transient Slab slab;
 
   public Uniques() {
+    this(HllSketch.DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision of the sketch, see <code>HllSketch</code>.
+   */
+  public Uniques(int precision) {
+    this(precision, false);
+  }
+
+  /**
+   * @param precision of the sketch, see <code>HllSketch</code>.
+   * @param offHeap true to keep the registers of the sketches in direct memory, see <code>Slab</code>.
+   */
+  public Uniques(int precision, boolean offHeap) {
     super("uniques");
+    this.precision = precision;
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * @return slab allocating the registers of the states created by this profile, or null if the registers
+   *         are kept in the heap or no state was created yet.
+   */
+  @Nullable
+  public Slab getSlab() {
+    return slab;
   }
 
   @Override
   public List<Schema.Type> types() {
     return Arrays.asList(
-      Schema.Type.STRING
+      Schema.Type.STRING,
+      Schema.Type.INT,
+      Schema.Type.LONG,
+      Schema.Type.FLOAT,
+      Schema.Type.DOUBLE,
+      Schema.Type.BYTES
     );
   }
 
@@ -50,19 +90,155 @@ public final class Uniques extends Profile {
   }
 
   @Override
-  public void reset() {
-    hpp = new HyperLogLog(0.1f);
+  public boolean isSampled() {
+    return false;
   }
 
   @Override
-  public void update(Object value) {
-    if (value instanceof String) {
-      hpp.offer(value);
+  public ProfileState newState() {
+    if (offHeap && slab == null) {
+      slab = new Slab();
     }
+    return new State(precision, slab);
   }
 
-  @Override
-  public void results(StructuredRecord.Builder builder) {
-    builder.set("value", hpp.cardinality());
+  /**
+   * State of the uniques profile of a field.
+   */
+  private static final class State extends ProfileState {
+    private static final long serialVersionUID = 1L;
+
+    private final HllSketch sketch;
+
+    State(int precision, @Nullable Slab slab) {
+      sketch = new HllSketch(precision, slab);
+    }
+
+    @Override
+    public void update(Object value) {
+      if (value instanceof CharSequence) {
+        update((CharSequence) value);
+      } else if (value instanceof Integer || value instanceof Long) {
+        update(((Number) value).longValue());
+      } else if (value instanceof Number) {
+        update(((Number) value).doubleValue());
+      } else if (value instanceof ByteBuffer) {
+        sketch.update((ByteBuffer) value);
+      } else if (value instanceof byte[]) {
+        sketch.update((byte[]) value);
+      }
+    }
+
+    @Override
+    public void updateNull() {
+      // Nulls are not counted as a unique value.
+    }
+
+    @Override
+    public void updateNull(long times) {
+      // Nulls are not counted as a unique value.
+    }
+
+    @Override
+    public void update(long value) {
+      sketch.update(value);
+    }
+
+    @Override
+    public void update(double value) {
+      sketch.update(value);
+    }
+
+    @Override
+    public void updateBatch(long[] values, @Nullable long[] nulls, int n) {
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          sketch.update(values[i]);
+        }
+      }
+    }
+
+    @Override
+    public void updateBatch(double[] values, @Nullable long[] nulls, int n) {
+      for (int i = 0; i < n; i++) {
+        if (!isNull(nulls, i)) {
+          sketch.update(values[i]);
+        }
+      }
+    }
+
+    @Override
+    public void update(CharSequence value) {
+      sketch.update(value);
+    }
+
+    // Repeated values are counted once, whatever the number of repetitions.
+    @Override
+    public void update(long value, long times) {
+      update(value);
+    }
+
+    @Override
+    public void update(double value, long times) {
+      update(value);
+    }
+
+    @Override
+    public void update(CharSequence value, long times) {
+      update(value);
+    }
+
+    @Override
+    public void update(Object value, long times) {
+      update(value);
+    }
+
+    @Override
+    public void skip(Object value) {
+      // The number of unique values can't be estimated from a sample, so every value is counted.
+      if (value != null) {
+        update(value);
+      }
+    }
+
+    @Override
+    public void skip(Object value, long times) {
+      skip(value);
+    }
+
+    @Override
+    public long estimateSize() {
+      return sketch.estimateSize();
+    }
+
+    @Override
+    public boolean shrink() {
+      return sketch.shrink();
+    }
+
+    @Override
+    public void release() {
+      sketch.release();
+    }
+
+    @Override
+    public void merge(ProfileState other) {
+      sketch.merge(((State) other).sketch);
+    }
+
+    @Override
+    public void write(StateOutput out) {
+      sketch.write(out);
+    }
+
+    @Override
+    public void merge(StateInput in) {
+      sketch.merge(in);
+    }
+
+    @Override
+    public void results(StructuredRecord.Builder builder) {
+      builder.set("value", sketch.cardinality());
+    }
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Logical;
+import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.TopK;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for ColumnBlock.
+ */
+public class ColumnBlockTest {
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testColumnBlock() throws Exception {
+    for (Schema.Type type : Arrays.asList(Schema.Type.LONG, Schema.Type.DOUBLE, Schema.Type.BOOLEAN,
+                                          Schema.Type.STRING)) {
+      // Blocks are appended at offsets that are not a multiple of the words of their bitmaps.
+      ColumnBlock expected = ColumnBlock.of(type);
+      ColumnBlock block = ColumnBlock.of(type);
+      for (int size : new int[] {3, 61, 130, 0, 64}) {
+        ColumnBlock other = ColumnBlock.of(type);
+        for (int i = 0; i < size; i++) {
+          Object value = i % 3 == 0 ? null : type == Schema.Type.LONG ? (Object) (long) i
+            : type == Schema.Type.DOUBLE ? (Object) (i / 2d) : type == Schema.Type.BOOLEAN ? (Object) (i % 2 == 0)
+            : "v" + i;
+          other.add(value);
+          expected.add(value);
+        }
+        block.addAll(other);
+      }
+      Assert.assertEquals(expected.size(), block.size());
+      Assert.assertEquals(expected.nulls(), block.nulls());
+      ProfileState[] expectedStates = new ProfileState[] {new Categorical().newState(), new Logical().newState(),
+        new Quantitative().newState(), new TopK().newState()};
+      ProfileState[] states = new ProfileState[] {new Categorical().newState(), new Logical().newState(),
+        new Quantitative().newState(), new TopK().newState()};
+      expected.replay(expectedStates);
+      block.replay(states);
+      for (int i = 0; i < states.length; i++) {
+        Assert.assertEquals(expectedStates[i].serialize(), states[i].serialize());
+      }
+    }
+  }
+
+  @Test
+  public void testBatchUpdate() throws Exception {
+    SparkDataProfiler.Conf conf = new SparkDataProfiler.Conf();
+    DefaultProfiler profiler = DataProfiler.createProfiler(conf, schema);
+    Random random = new Random(3);
+    for (String name : new String[] {"l", "d"}) {
+      FieldPlan plan = profiler.getPlan(name);
+      ProfileState[] expected = plan.newStates();
+      ProfileState[] actual = plan.newStates();
+      ColumnBlock batch = plan.newBatch();
+      for (int i = 0; i < 10000; i++) {
+        Object value = i % 7 == 0 ? null : name.equals("l") ? (Object) (long) random.nextInt(500)
+          : (Object) random.nextGaussian();
+        plan.update(value, expected);
+        batch.add(value);
+        // Batches of different sizes, some of them without nulls.
+        if (batch.size() == 1 + i % 300 || i % 7 == 6) {
+          batch.replay(actual);
+          batch.clear();
+        }
+      }
+      batch.replay(actual);
+      Assert.assertEquals(profiler.result(name, expected), profiler.result(name, actual));
+    }
+    Assert.assertNull(profiler.getPlan("s").newBatch());
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.DatasetInstantiationException;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.dataset.Dataset;
+import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
+import io.cdap.cdap.etl.mock.common.MockEmitter;
+import io.cdap.cdap.etl.mock.transform.MockTransformContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Tests of the keyed stages, the Data Profiler, the Reducible Data Profiler and the Data Profile Merger, run
+ * without a pipeline.
+ */
+public class DataProfilerTest {
+
+  private final Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))));
+
+  @Test
+  public void testKeyedSampling() throws Exception {
+    DataProfiler.Conf conf = new DataProfiler.Conf();
+    set(conf, "sampling", "bernoulli");
+    set(conf, "samplingRate", 0.1d);
+    set(conf, "shards", "3");
+    set(conf, "seed", 42L);
+    List<StructuredRecord> records = new ArrayList<>();
+    Random random = new Random(1);
+    long nulls = 0;
+    for (int i = 0; i < 10000; i++) {
+      String s = i % 6 == 0 ? null : "v" + random.nextInt(100);
+      nulls += s == null ? 1 : 0;
+      records.add(StructuredRecord.builder(schema).set("s", s).set("l", (long) random.nextInt(1000)).build());
+    }
+
+    // Sampled records are keyed by every field, the others only once per shard, the same way on every run.
+    Map<String, List<StructuredRecord>> shuffled = shuffle(conf, records);
+    List<StructuredRecord> sample = new ArrayList<>();
+    long skipped = 0;
+    for (Map.Entry<String, List<StructuredRecord>> key : shuffled.entrySet()) {
+      if (key.getKey().startsWith("#skipped#")) {
+        skipped += key.getValue().size();
+      } else if (key.getKey().startsWith("s#")) {
+        sample.addAll(key.getValue());
+      }
+    }
+    long sampled = sample.size();
+    List<StructuredRecord> again = new ArrayList<>();
+    for (Map.Entry<String, List<StructuredRecord>> key : shuffle(conf, records).entrySet()) {
+      if (key.getKey().startsWith("s#")) {
+        again.addAll(key.getValue());
+      }
+    }
+    Assert.assertEquals(new HashSet<>(sample), new HashSet<>(again));
+    // Every shard is dealt the same records too, so the sketches merged from the shards do not change.
+    Assert.assertEquals(shuffled, shuffle(conf, records));
+    Assert.assertEquals(records.size(), sampled + skipped);
+    Assert.assertEquals(0.1d, (double) sampled / records.size(), 0.02d);
+
+    DataProfiler profiler = new DataProfiler(conf);
+    profiler.initialize(new Context(schema));
+    Map<String, List<StructuredRecord>> partials = new TreeMap<>();
+    for (Map.Entry<String, List<StructuredRecord>> key : shuffled.entrySet()) {
+      MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+      profiler.aggregate(key.getKey(), key.getValue().iterator(), emitter);
+      for (StructuredRecord partial : emitter.getEmitted()) {
+        Assert.assertEquals(Profiler.PARTIAL_SCHEMA, partial.getSchema());
+        if (!partials.containsKey(partial.<String>get("name"))) {
+          partials.put(partial.<String>get("name"), new ArrayList<StructuredRecord>());
+        }
+        partials.get(partial.<String>get("name")).add(partial);
+      }
+    }
+    Assert.assertEquals(2, partials.size());
+
+    // The merger adds the exact counters of the skipped records to the profiles of the sample.
+    DataProfiler.Conf mergerConf = new DataProfiler.Conf();
+    set(mergerConf, "sampling", "bernoulli");
+    DataProfileMerger merger = new DataProfileMerger(mergerConf);
+    merger.initialize(new Context(Profiler.PARTIAL_SCHEMA));
+    MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+    merger.aggregate("s", partials.get("s").iterator(), emitter);
+    StructuredRecord result = emitter.getEmitted().get(0);
+    StructuredRecord categorical = result.get("categorical");
+    Assert.assertEquals(nulls, (long) categorical.<Long>get("nulls"));
+    Assert.assertEquals(records.size() - nulls, (long) categorical.<Long>get("non_nulls"));
+    StructuredRecord description = result.get(Profiler.SAMPLE);
+    Assert.assertEquals(sampled, (long) description.<Long>get("rows"));
+    Assert.assertEquals((double) sampled / records.size(), description.<Double>get("rate"), 0d);
+  }
+  @Test
+  public void testReducibleShards() throws Exception {
+    DataProfiler.Conf conf = new DataProfiler.Conf();
+    set(conf, "shards", "4");
+    set(conf, "seed", 42L);
+    List<StructuredRecord> records = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      records.add(StructuredRecord.builder(schema).set("s", "v" + i).set("l", (long) i).build());
+    }
+
+    // The records are dealt to the same shards on every run, in blocks starting from a shard of the task.
+    List<List<String>> runs = new ArrayList<>();
+    for (int run = 0; run < 2; run++) {
+      ReducibleDataProfiler profiler = new ReducibleDataProfiler(conf);
+      profiler.initialize(new Context(schema));
+      MockEmitter<String> keys = new MockEmitter<>();
+      for (StructuredRecord record : records) {
+        profiler.groupBy(record, keys);
+      }
+      runs.add(new ArrayList<>(keys.getEmitted()));
+    }
+    Assert.assertEquals(runs.get(0), runs.get(1));
+    Assert.assertEquals(records.size(), runs.get(0).size());
+    Assert.assertEquals(4, new HashSet<>(runs.get(0)).size());
+  }
+
+  @Test
+  public void testShardedPartials() throws Exception {
+    Schema nested = Schema.recordOf(
+      "nested",
+      Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("r", Schema.nullableOf(Schema.recordOf(
+        "r", Schema.Field.of("l", Schema.of(Schema.Type.LONG)), Schema.Field.of("d", Schema.of(Schema.Type.DOUBLE))))));
+    Schema inner = nested.getField("r").getSchema().getNonNullable();
+    DataProfiler.Conf conf = new DataProfiler.Conf();
+    DefaultProfiler expected = DataProfiler.createProfiler(conf, nested);
+    DefaultProfiler[] shards = new DefaultProfiler[3];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = DataProfiler.createProfiler(conf, nested);
+    }
+    Random random = new Random(5);
+    for (int i = 0; i < 5000; i++) {
+      StructuredRecord record = StructuredRecord.builder(nested)
+        .set("s", i % 9 == 0 ? null : "v" + random.nextInt(300))
+        .set("r", i % 4 == 0 ? null : StructuredRecord.builder(inner).set("l", (long) random.nextInt(1000))
+          .set("d", random.nextGaussian()).build()).build();
+      for (DefaultProfiler profiler : new DefaultProfiler[] {expected, shards[i % shards.length]}) {
+        profiler.update("s", record.get("s"));
+        profiler.update("r", record.get("r"));
+      }
+    }
+
+    // The partial profile of every shard carries the schema of its input field, which the merger profiles again,
+    // and merges to the same states as the shards merged in memory.
+    for (String name : new String[] {"s", "r.l", "r.d"}) {
+      DefaultProfiler merger = null;
+      ProfileState[] states = null;
+      ProfileState[] direct = expected.newStates(name);
+      for (DefaultProfiler shard : shards) {
+        for (int i = 0; i < direct.length; i++) {
+          direct[i].merge(shard.getStates(name)[i]);
+        }
+        StructuredRecord partial = shard.partial(name, shard.getStates(name), null);
+        Assert.assertEquals(Profiler.PARTIAL_SCHEMA, partial.getSchema());
+        Assert.assertNull(partial.get("seen"));
+        if (merger == null) {
+          merger = DataProfiler.createProfiler(conf, Schema.parseJson(partial.<String>get("field")));
+          states = merger.newStates(name);
+        }
+        Profiler.mergePartial(partial, states);
+      }
+      Assert.assertEquals(expected.result(name, direct), merger.result(name, states));
+      // Counts and bounds are exact whatever the shards.
+      String profile = name.equals("s") ? "categorical" : "quantitative";
+      StructuredRecord exact = expected.result(name).get(profile);
+      StructuredRecord sharded = merger.result(name, states).get(profile);
+      String[] results = name.equals("s") ? new String[] {"nulls", "non_nulls"} : new String[] {"minimum", "maximum"};
+      for (String result : results) {
+        Assert.assertEquals(exact.get(result), sharded.get(result));
+      }
+    }
+
+    // The merger adds up the records seen and sampled by every shard.
+    Sampler<Object> sampler = Sampler.bernoulli(0.5d, 11);
+    sampler.count(600, 300);
+    StructuredRecord partial = shards[0].partial("s", shards[0].getStates("s"), sampler);
+    Assert.assertEquals(600L, (long) partial.<Long>get("seen"));
+    Assert.assertEquals(300L, (long) partial.<Long>get("sampled"));
+    Sampler<Object> merged = Sampler.bernoulli(0.5d, 13);
+    merged.count(partial.<Long>get("seen"), partial.<Long>get("sampled"));
+    merged.count(400, 100);
+    Assert.assertEquals(400L, merged.getSampled());
+    Assert.assertEquals(0.4d, merged.getRate(), 0d);
+    Assert.assertEquals(1, conf.getShards(6));
+  }
+
+
+  // Groups the records by the keys the Data Profiler emits for them.
+  private static Map<String, List<StructuredRecord>> shuffle(DataProfiler.Conf conf, List<StructuredRecord> records)
+    throws Exception {
+    DataProfiler profiler = new DataProfiler(conf);
+    profiler.initialize(new Context(records.get(0).getSchema()));
+    Map<String, List<StructuredRecord>> shuffled = new TreeMap<>();
+    MockEmitter<String> keys = new MockEmitter<>();
+    for (StructuredRecord record : records) {
+      keys.clear();
+      profiler.groupBy(record, keys);
+      for (String key : keys.getEmitted()) {
+        if (!shuffled.containsKey(key)) {
+          shuffled.put(key, new ArrayList<StructuredRecord>());
+        }
+        shuffled.get(key).add(record);
+      }
+    }
+    return shuffled;
+  }
+
+  private static void set(Object conf, String name, Object value) throws Exception {
+    for (Class<?> type = conf.getClass(); type != null; type = type.getSuperclass()) {
+      try {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(conf, value);
+        return;
+      } catch (NoSuchFieldException e) {
+        // Declared by a super class.
+      }
+    }
+    throw new NoSuchFieldException(name);
+  }
+
+  /**
+   * Runtime context of a stage whose input has a given schema.
+   */
+  private static final class Context extends MockTransformContext implements BatchRuntimeContext {
+    private final Schema input;
+
+    Context(Schema input) {
+      this.input = input;
+    }
+
+    @Override
+    public Schema getInputSchema() {
+      return input;
+    }
+
+    @Override
+    public long getLogicalStartTime() {
+      return 0L;
+    }
+
+    @Override
+    public <T extends Dataset> T getDataset(String name) throws DatasetInstantiationException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Dataset> T getDataset(String namespace, String name) throws DatasetInstantiationException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Dataset> T getDataset(String name, Map<String, String> arguments)
+      throws DatasetInstantiationException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T extends Dataset> T getDataset(String namespace, String name, Map<String, String> arguments)
+      throws DatasetInstantiationException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void releaseDataset(Dataset dataset) {
+    }
+
+    @Override
+    public void discardDataset(Dataset dataset) {
+    }
+  }
+}
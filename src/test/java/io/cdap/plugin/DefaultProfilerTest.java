@@ -19,17 +19,29 @@ package io.cdap.plugin;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Decimal;
 import io.cdap.plugin.profiles.DynamicHistogram;
 import io.cdap.plugin.profiles.Histogram;
 import io.cdap.plugin.profiles.Logical;
 import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.Temporal;
+import io.cdap.plugin.profiles.TopK;
 import io.cdap.plugin.profiles.Uniques;
 import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class description here.
@@ -80,6 +92,220 @@ public class DefaultProfilerTest {
     Assert.assertEquals(1, non_nulls);
   }
 
+  @Test
+  public void testFieldsProfiledSideBySide() {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    Profiler profiler = new DefaultProfiler(profiles, schema);
+    profiler.update("s", "abc");
+    profiler.update("d", 1.5d);
+    profiler.update("s", null);
+    profiler.update("d", 2.5d);
+    StructuredRecord s = profiler.result("s").get("categorical");
+    StructuredRecord d = profiler.result("d").get("quantitative");
+    Assert.assertEquals(1L, (long) s.get("nulls"));
+    Assert.assertEquals(3d, (double) s.get("mean"), 0.000001d);
+    Assert.assertEquals(2d, (double) d.get("mean"), 0.000001d);
+    profiler.reset();
+    Assert.assertEquals(0L, (long) profiler.result("s").<StructuredRecord>get("categorical").get("nulls"));
+  }
+
+  @Test
+  public void testNestedFields() throws Exception {
+    Schema element = Schema.recordOf("element", Schema.Field.of("c", Schema.of(Schema.Type.INT)));
+    Schema nested = Schema.recordOf(
+      "nested",
+      Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+      Schema.Field.of("a", Schema.recordOf("a", Schema.Field.of("b", Schema.arrayOf(element)))),
+      Schema.Field.of("m", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.LONG))),
+      Schema.Field.of("tags", Schema.nullableOf(Schema.arrayOf(Schema.nullableOf(Schema.of(Schema.Type.STRING))))));
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    profiles.add(new Uniques());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, nested);
+    PartialProfile[] partials = {profiler.newPartialProfile(false), profiler.newPartialProfile(false)};
+    PartialProfile whole = profiler.newPartialProfile(false);
+    for (int i = 0; i < 100; i++) {
+      List<StructuredRecord> elements = new ArrayList<>();
+      for (int j = 0; j < i % 4; j++) {
+        elements.add(StructuredRecord.builder(element).set("c", i).build());
+      }
+      Map<String, Long> map = new HashMap<>();
+      map.put("k" + (i % 3), (long) i);
+      StructuredRecord record = StructuredRecord.builder(nested)
+        .set("id", i)
+        .set("a", StructuredRecord.builder(nested.getField("a").getSchema()).set("b", elements).build())
+        .set("m", map)
+        .set("tags", i % 5 == 0 ? null : Arrays.asList("x", null))
+        .build();
+      partials[i % 2].update(record);
+      whole.update(record);
+      for (Schema.Field field : nested.getFields()) {
+        profiler.update(field.getName(), record.get(field.getName()));
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(partials[1]);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      partials[1] = (PartialProfile) in.readObject();
+    }
+    PartialProfile merged = partials[0].merge(partials[1]);
+
+    List<String> names = new ArrayList<>();
+    Map<String, StructuredRecord> results = new HashMap<>();
+    for (int i = 0; i < merged.size(); i++) {
+      names.add(merged.getName(i));
+      results.put(merged.getName(i), profiler.result(merged.getName(i), merged.getStates(i)));
+      // Walking the records or the values of the fields updates the leaves the same way.
+      Assert.assertEquals(profiler.result(whole.getName(i)), profiler.result(whole.getName(i), whole.getStates(i)));
+    }
+    Assert.assertEquals(Arrays.asList("id", "a.b#size", "a.b[].c", "m#size", "m{key}", "m{value}",
+                                      "tags#size", "tags[]"), names);
+    long total = 0;
+    for (int i = 0; i < 100; i++) {
+      total += i * (i % 4);
+    }
+    StructuredRecord sizes = results.get("a.b#size").get("quantitative");
+    Assert.assertEquals(150d, (double) sizes.get("total"), 0.000001d);
+    Assert.assertEquals(1.5d, (double) sizes.get("mean"), 0.000001d);
+    Assert.assertEquals((double) total, (double) results.get("a.b[].c").<StructuredRecord>get("quantitative")
+      .get("total"), 0.000001d);
+    Assert.assertEquals(3L, (long) results.get("m{key}").<StructuredRecord>get("uniques").get("value"));
+    Assert.assertEquals(100d, (double) results.get("m#size").<StructuredRecord>get("quantitative").get("total"),
+                        0.000001d);
+    Assert.assertEquals(160d, (double) results.get("tags#size").<StructuredRecord>get("quantitative").get("total"),
+                        0.000001d);
+    StructuredRecord tags = results.get("tags[]").get("categorical");
+    Assert.assertEquals(80L, (long) tags.get("nulls"));
+    Assert.assertEquals(80L, (long) tags.get("non_nulls"));
+  }
+
+  @Test
+  public void testLogicalTypes() throws Exception {
+    Schema logical = Schema.recordOf(
+      "logical",
+      Schema.Field.of("ts", Schema.nullableOf(Schema.of(Schema.LogicalType.TIMESTAMP_MICROS))),
+      Schema.Field.of("days", Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS)),
+      Schema.Field.of("d", Schema.of(Schema.LogicalType.DATE)),
+      Schema.Field.of("amount", Schema.nullableOf(Schema.decimalOf(10, 2))),
+      Schema.Field.of("wide", Schema.decimalOf(30, 4)));
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Quantitative());
+    profiles.add(new Temporal());
+    profiles.add(new Decimal());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, logical);
+    PartialProfile partial = profiler.newPartialProfile(false);
+    long start = 1600000000000000L;
+    String[] amounts = {"12.30", "-5.00", "0.01", null};
+    for (int i = 0; i < 2000; i++) {
+      StructuredRecord.Builder builder = StructuredRecord.builder(logical)
+        .set("ts", i < 300 ? start + i * 600000000L : null)
+        .set("days", 1600000000000L + i * 86400000L)
+        .set("d", i % 10)
+        .setDecimal("wide", new BigDecimal("123456789012345678901.2300"));
+      if (amounts[i % 4] != null) {
+        builder.setDecimal("amount", new BigDecimal(amounts[i % 4]));
+      }
+      partial.update(builder.build());
+    }
+
+    // Timestamps are reported in microseconds and counted per hour, dates per day.
+    StructuredRecord ts = profiler.result("ts", partial.getStates(0)).get("temporal");
+    Assert.assertEquals(start, (long) ts.get("minimum"));
+    Assert.assertEquals(start + 299 * 600000000L, (long) ts.get("maximum"));
+    Assert.assertEquals(179400d, (double) ts.get("range_seconds"), 0.000001d);
+    Assert.assertEquals(3600L, (long) ts.get("bucket_seconds"));
+    List<StructuredRecord> buckets = ts.get("buckets");
+    Assert.assertEquals(51, buckets.size());
+    Assert.assertEquals(start / 3600000000L * 3600000000L, (long) buckets.get(0).get("start"));
+    Assert.assertEquals(4L, (long) buckets.get(0).get("count"));
+    Assert.assertNotNull(profiler.result("ts", partial.getStates(0)).get("quantitative"));
+    StructuredRecord d = profiler.result("d", partial.getStates(2)).get("temporal");
+    Assert.assertEquals(86400L, (long) d.get("bucket_seconds"));
+    Assert.assertEquals(10, d.<List<StructuredRecord>>get("buckets").size());
+    Assert.assertEquals(9 * 86400000000L, (long) d.get("maximum"));
+
+    // Too many hours are merged into days, then into pairs of days.
+    ProfileState[] states = partial.getStates(1);
+    StructuredRecord days = profiler.result("days", states).get("temporal");
+    Assert.assertEquals(2 * 86400L, (long) days.get("bucket_seconds"));
+    long total = 0;
+    for (StructuredRecord bucket : days.<List<StructuredRecord>>get("buckets")) {
+      total += (long) bucket.get("count");
+    }
+    Assert.assertEquals(2000L, total);
+    ProfileState[] decoded = profiler.newStates("days");
+    for (int i = 0; i < states.length; i++) {
+      decoded[i].merge(states[i].serialize());
+    }
+    Assert.assertEquals(profiler.result("days", states), profiler.result("days", decoded));
+
+    // Decimals are reported with the precision and scale they need without their trailing zeros.
+    StructuredRecord amount = profiler.result("amount", partial.getStates(3)).get("decimal");
+    Assert.assertEquals("-5.00", amount.get("minimum"));
+    Assert.assertEquals("12.30", amount.get("maximum"));
+    Assert.assertEquals("17.30", amount.get("range"));
+    Map<Integer, Long> precisions = new HashMap<>();
+    for (StructuredRecord count : amount.<List<StructuredRecord>>get("precisions")) {
+      precisions.put((Integer) count.get("value"), (Long) count.get("count"));
+    }
+    Map<Integer, Long> scales = new HashMap<>();
+    for (StructuredRecord count : amount.<List<StructuredRecord>>get("scales")) {
+      scales.put((Integer) count.get("value"), (Long) count.get("count"));
+    }
+    Assert.assertEquals(ImmutableMap.of(1, 1000L, 3, 500L), precisions);
+    Assert.assertEquals(ImmutableMap.of(0, 500L, 1, 500L, 2, 500L), scales);
+    StructuredRecord wide = profiler.result("wide", partial.getStates(4)).get("decimal");
+    Assert.assertEquals("123456789012345678901.2300", wide.get("maximum"));
+    Assert.assertEquals(23, (int) wide.<List<StructuredRecord>>get("precisions").get(0).get("value"));
+    Assert.assertEquals(2, (int) wide.<List<StructuredRecord>>get("scales").get(0).get("value"));
+  }
+
+  @Test
+  public void testMemoryBudget() throws Exception {
+    // The states of the fields profiled side by side are shrunk to fit in the budget of the profiler.
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    profiles.add(new Uniques());
+    profiles.add(new TopK());
+    profiles.add(new Temporal());
+    Schema times = Schema.recordOf(
+      "times",
+      Schema.Field.of("s", Schema.of(Schema.Type.STRING)),
+      Schema.Field.of("t", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)));
+    DefaultProfiler budgeted = new DefaultProfiler(profiles, times);
+    DefaultProfiler unlimited = new DefaultProfiler(profiles, times);
+    budgeted.setMemoryBudget(16 * 1024);
+    for (int i = 0; i < 100000; i++) {
+      for (DefaultProfiler p : Arrays.asList(budgeted, unlimited)) {
+        p.update("s", "value" + i);
+        p.update("t", i * 3600000000L);
+      }
+    }
+    Assert.assertTrue(size(unlimited, "s", "t") > 16 * 1024);
+    Assert.assertTrue(size(budgeted, "s", "t") < 16 * 1024);
+    StructuredRecord uniques = budgeted.result("s").get("uniques");
+    Assert.assertEquals(100000d, (long) uniques.get("value"), 100000d * 0.1);
+    StructuredRecord temporal = budgeted.result("t").get("temporal");
+    StructuredRecord exact = unlimited.result("t").get("temporal");
+    Assert.assertEquals((long) exact.get("minimum"), (long) temporal.get("minimum"));
+  }
+
+  private static long size(Profiler profiler, String... names) {
+    long size = 0;
+    for (String name : names) {
+      for (ProfileState state : profiler.getStates(name)) {
+        size += state.estimateSize();
+      }
+    }
+    return size;
+  }
+
   @Test
   public void testHyperLogLog() throws Exception {
     HyperLogLogPlus hll = new HyperLogLogPlus(32, 32);
@@ -0,0 +1,365 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Histogram;
+import io.cdap.plugin.profiles.Logical;
+import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.Slab;
+import io.cdap.plugin.profiles.TopK;
+import io.cdap.plugin.profiles.Uniques;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for PartialProfile.
+ */
+public class PartialProfileTest {
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testPartialProfileMerge() {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Logical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    PartialProfile first = profiler.newPartialProfile(false);
+    PartialProfile second = profiler.newPartialProfile(false);
+    for (int i = 0; i < 10; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("s", i % 3 == 0 ? null : "v" + i).set("i", i).set("b", i % 2 == 0).build();
+      if (i < 4) {
+        first.update(record);
+      } else {
+        second.update(record);
+      }
+    }
+    PartialProfile merged = first.merge(second);
+
+    StructuredRecord s = profiler.result("s", merged.getStates(0)).get("categorical");
+    Assert.assertEquals(4L, (long) s.get("nulls"));
+    Assert.assertEquals(6L, (long) s.get("non_nulls"));
+    StructuredRecord i = profiler.result("i", merged.getStates(1)).get("quantitative");
+    Assert.assertEquals(4.5d, (double) i.get("mean"), 0.000001d);
+    Assert.assertEquals(45d, (double) i.get("total"), 0.000001d);
+    StructuredRecord b = profiler.result("b", merged.getStates(5)).get("logical");
+    Assert.assertEquals(5L, (long) b.get("positive"));
+    Assert.assertEquals(5L, (long) b.get("negative"));
+  }
+
+  @Test
+  public void testSampledPartialProfile() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Logical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema, true);
+    List<Sampler<StructuredRecord>> samplers = new ArrayList<>();
+    samplers.add(Sampler.<StructuredRecord>bernoulli(0.1d, 7));
+    samplers.add(Sampler.<StructuredRecord>bernoulli(0.1d, 8));
+    samplers.add(Sampler.<StructuredRecord>reservoir(1000, 7));
+    samplers.add(Sampler.<StructuredRecord>reservoir(1000, 8));
+    PartialProfile[] partials = new PartialProfile[4];
+    for (int i = 0; i < partials.length; i++) {
+      partials[i] = profiler.newPartialProfile(i < 2, samplers.get(i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("s", i % 4 == 0 ? null : i % 4 == 1 ? "" : "v" + i).set("i", i % 100).set("b", i % 5 == 0).build();
+      // Bernoulli and reservoir partial profiles, every record going to one partition of each.
+      partials[i < 3000 ? 0 : 1].update(record);
+      partials[i < 7000 ? 2 : 3].update(record);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(partials[3]);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      partials[3] = (PartialProfile) in.readObject();
+    }
+
+    for (PartialProfile merged : new PartialProfile[] {partials[0].merge(partials[1]), partials[2].merge(partials[3])}) {
+      StructuredRecord s = profiler.result("s", merged.getStates(0), merged.getSampler());
+      StructuredRecord categorical = s.get("categorical");
+      Assert.assertEquals(2500L, (long) categorical.get("nulls"));
+      Assert.assertEquals(7500L, (long) categorical.get("non_nulls"));
+      Assert.assertEquals(2500L, (long) categorical.get("empty"));
+      StructuredRecord sample = s.get(Profiler.SAMPLE);
+      Assert.assertEquals(Arrays.asList("categorical"), sample.get("profiles"));
+
+      StructuredRecord i = profiler.result("i", merged.getStates(1), merged.getSampler());
+      Assert.assertEquals(49.5d, (double) i.<StructuredRecord>get("quantitative").get("mean"), 5d);
+      sample = i.get(Profiler.SAMPLE);
+      Assert.assertEquals(0.1d, (double) sample.get("rate"), 0.02d);
+      Assert.assertEquals((double) sample.get("rate") * 10000, (long) sample.get("rows"), 0.5d);
+
+      StructuredRecord b = profiler.result("b", merged.getStates(5), merged.getSampler()).get("logical");
+      Assert.assertEquals(2000L, (long) b.get("positive"));
+      Assert.assertEquals(8000L, (long) b.get("negative"));
+    }
+  }
+
+  @Test
+  public void testLazyStates() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Logical());
+    profiles.add(new Quantitative());
+    profiles.add(new Uniques());
+    profiles.add(new Histogram());
+    profiles.add(new TopK());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    PartialProfile[] partials = {profiler.newPartialProfile(false), profiler.newPartialProfile(false)};
+    // Eager states of the profiles of the constant field "i" and the null field "s".
+    Map<String, ProfileState[]> eager = new HashMap<>();
+    for (String name : new String[] {"s", "i"}) {
+      List<ProfileState> states = new ArrayList<>();
+      for (Profile profile : profiler.getProfiles(name)) {
+        states.add(profile.newState());
+      }
+      eager.put(name, states.toArray(new ProfileState[0]));
+    }
+    for (int i = 0; i < 1000; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("i", 7).set("l", (long) i).set("b", i % 10 == 0 ? null : true).build();
+      partials[i % 2].update(record);
+      for (ProfileState state : eager.get("s")) {
+        state.updateNull();
+      }
+      for (ProfileState state : eager.get("i")) {
+        state.update(7L);
+      }
+    }
+
+    // Only the fields with different values create the states of their profiles.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(partials[1]);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      partials[1] = (PartialProfile) in.readObject();
+    }
+    PartialProfile merged = partials[0].merge(partials[1]);
+    for (int field = 0; field < 6; field++) {
+      for (ProfileState state : merged.getStates(field)) {
+        Assert.assertEquals(field == 2, ((LazyState) state).isPromoted());
+        Assert.assertTrue(field == 2 || state.estimateSize() == LazyState.SIZE);
+      }
+    }
+    Assert.assertEquals(profiler.result("s", eager.get("s")), profiler.result("s", merged.getStates(0)));
+    // The constant value is replayed weighted, which only rounds the sums of the statistics differently.
+    StructuredRecord expected = profiler.result("i", eager.get("i"));
+    StructuredRecord actual = profiler.result("i", merged.getStates(1));
+    for (Schema.Field field : expected.getSchema().getFields()) {
+      if (!field.getName().equals("quantitative")) {
+        Assert.assertEquals(expected.get(field.getName()), actual.get(field.getName()));
+        continue;
+      }
+      StructuredRecord statistics = expected.get(field.getName());
+      for (Schema.Field statistic : statistics.getSchema().getFields()) {
+        Assert.assertEquals((double) statistics.get(statistic.getName()),
+                            (double) actual.<StructuredRecord>get(field.getName()).get(statistic.getName()), 0.000001d);
+      }
+    }
+    StructuredRecord b = profiler.result("b", merged.getStates(5)).get("logical");
+    Assert.assertEquals(900L, (long) b.get("positive"));
+
+    // A second value creates the state and replays the counted values into it.
+    ProfileState[] states = merged.getStates(1);
+    for (ProfileState state : states) {
+      state.update(8L);
+    }
+    StructuredRecord quantitative = profiler.result("i", states).get("quantitative");
+    Assert.assertEquals(7008d, (double) quantitative.get("total"), 0.000001d);
+    Assert.assertEquals(8d, (double) quantitative.get("maximum"), 0.000001d);
+
+    // Values left out of the sample are counted too, and the counted values are replayed weighted.
+    states = profiler.newStates("s");
+    for (int i = 0; i < 100000; i++) {
+      for (ProfileState state : states) {
+        state.update("abc");
+        state.skip(i % 2 == 0 ? "abc" : null);
+      }
+    }
+    for (ProfileState state : states) {
+      Assert.assertFalse(((LazyState) state).isPromoted());
+      state.update("de");
+    }
+    StructuredRecord s = profiler.result("s", states);
+    StructuredRecord categorical = s.get("categorical");
+    Assert.assertEquals(150001L, (long) categorical.get("non_nulls"));
+    Assert.assertEquals(50000L, (long) categorical.get("nulls"));
+    Assert.assertEquals(300002d / 100001d, (double) categorical.get("mean"), 0.000001d);
+    Assert.assertEquals(3d, (double) categorical.get("median"), 0.000001d);
+    Assert.assertEquals(2L, (long) s.<StructuredRecord>get("uniques").get("value"));
+    List<StructuredRecord> top = s.<StructuredRecord>get("topk").get("topk");
+    Assert.assertEquals("abc", top.get(0).get("value"));
+    Assert.assertEquals(100000L, (long) top.get(0).get("count"));
+    Assert.assertEquals(1L, (long) top.get(1).get("count"));
+  }
+
+  @Test
+  public void testProjectedPartialProfile() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Logical());
+    profiles.add(new Quantitative());
+    profiles.add(new Histogram());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    PartialProfile first = profiler.newPartialProfile(true);
+    PartialProfile second = profiler.newPartialProfile(true);
+    List<StructuredRecord> records = new ArrayList<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("s", i % 7 == 0 ? null : "v" + random.nextInt(1000)).set("i", random.nextInt(100))
+        .set("l", random.nextLong()).set("f", random.nextFloat()).set("d", random.nextGaussian())
+        .set("b", random.nextBoolean()).build();
+      records.add(record);
+      if (i < 120) {
+        first.update(record);
+      } else {
+        second.update(record);
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(second);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      second = (PartialProfile) in.readObject();
+    }
+    PartialProfile merged = first.merge(second);
+
+    Assert.assertEquals(schema.getFields().size(), merged.size());
+    for (int position = 0; position < merged.size(); position++) {
+      String name = merged.getName(position);
+      profiler.reset();
+      for (StructuredRecord record : records) {
+        profiler.update(name, record.get(name));
+      }
+      Assert.assertEquals(profiler.result(name), profiler.result(name, merged.getStates(position)));
+    }
+  }
+
+  @Test
+  public void testMemoryBudget() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    PartialProfile bounded = profiler.newPartialProfile(true);
+    PartialProfile unbounded = profiler.newPartialProfile(true);
+    bounded.setMemoryBudget(64 * 1024);
+    for (int i = 0; i < 20000; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("s", i % 10 == 0 ? null : "value" + i).set("d", (double) i).build();
+      (i % 2 == 0 ? bounded : unbounded).update(record);
+    }
+    // The values of the bounded partial profile were profiled once over the budget.
+    Assert.assertTrue(bounded.estimateSize() < 64 * 1024);
+    Assert.assertTrue(unbounded.estimateSize() > 64 * 1024);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(bounded);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      bounded = (PartialProfile) in.readObject();
+    }
+    // Merging the buffered values into the bounded partial profile goes over the budget again.
+    PartialProfile merged = bounded.merge(unbounded);
+    Assert.assertTrue(merged.estimateSize() < 64 * 1024);
+    StructuredRecord s = profiler.result("s", merged.getStates(0)).get("categorical");
+    Assert.assertEquals(2000L, (long) s.get("nulls"));
+    Assert.assertEquals(18000L, (long) s.get("non_nulls"));
+    StructuredRecord d = profiler.result("d", merged.getStates(4)).get("quantitative");
+    Assert.assertEquals(9999.5d, (double) d.get("mean"), 0.000001d);
+    Assert.assertEquals(9999.5d, (double) d.get("median"), 300d);
+
+    // A partial profile with buffered values merges the states of a partial profile without them.
+    PartialProfile other = profiler.newPartialProfile(true);
+    other.update(StructuredRecord.builder(schema).set("d", -1d).build());
+    d = profiler.result("d", other.merge(merged).getStates(4)).get("quantitative");
+    Assert.assertEquals(-1d, (double) d.get("minimum"), 0d);
+    Assert.assertEquals(19999d, (double) d.get("maximum"), 0d);
+  }
+
+  @Test
+  public void testSlabRelease() throws Exception {
+    Uniques uniques = new Uniques(12, true);
+    DefaultProfiler profiler = new DefaultProfiler(Arrays.<Profile>asList(uniques), schema);
+    PartialProfile[] partials = new PartialProfile[4];
+    for (int i = 0; i < partials.length; i++) {
+      partials[i] = profiler.newPartialProfile(false);
+      for (long value = 0; value < 10000; value++) {
+        partials[i].update(StructuredRecord.builder(schema).set("l", i * 10000 + value).build());
+      }
+    }
+    Slab slab = uniques.getSlab();
+    Assert.assertEquals(4L << 12, slab.getAllocated());
+
+    // The reducible and Spark profilers release the partial profiles merged into others, then the merged one.
+    PartialProfile reduced = new ReducibleDataProfiler(new DataProfiler.Conf())
+      .mergePartitions(partials[0], partials[1]);
+    PartialProfile merged = new SparkDataProfiler.MergePartitions().call(partials[2], partials[3]);
+    Assert.assertEquals(2L << 12, slab.getAllocated());
+    reduced.release();
+    merged.release();
+    Assert.assertEquals(0L, slab.getAllocated());
+
+    // The streaming profiler releases the evicted panes, the batches merged into a pane and the closed windows.
+    WindowedProfile windows = new WindowedProfile(profiler, 2000, 1000);
+    for (long time = 0; time < 10000; time += 500) {
+      PartialProfile batch = profiler.newPartialProfile(false);
+      for (long value = 0; value < 10000; value++) {
+        batch.update(StructuredRecord.builder(schema).set("l", time * 10000 + value).build());
+      }
+      for (WindowedProfile.Window window : windows.add(time, batch)) {
+        window.getProfile().release();
+      }
+      Assert.assertTrue(slab.getAllocated() <= 2L << 12);
+    }
+    for (WindowedProfile.Window window : windows.add(20000, null)) {
+      window.getProfile().release();
+    }
+    Assert.assertEquals(0L, slab.getAllocated());
+  }
+}
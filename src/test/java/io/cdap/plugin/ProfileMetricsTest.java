@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.metrics.Metrics;
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for ProfileMetrics.
+ */
+public class ProfileMetricsTest {
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testProfileMetrics() throws Exception {
+    DefaultProfiler profiler = DataProfiler.createProfiler(new DataProfiler.Conf(), schema);
+    final Map<String, Long> counts = new HashMap<>();
+    StageMetrics metrics = new StageMetrics() {
+      @Override
+      public void count(String name, int delta) {
+        countLong(name, delta);
+      }
+
+      @Override
+      public void countLong(String name, long delta) {
+        Long count = counts.get(name);
+        counts.put(name, count == null ? delta : count + delta);
+      }
+
+      @Override
+      public void gauge(String name, long value) {
+        counts.put(name, value);
+      }
+
+      @Override
+      public void pipelineCount(String name, int delta) {
+      }
+
+      @Override
+      public void pipelineGauge(String name, long value) {
+      }
+
+      @Override
+      public Metrics child(Map<String, String> tags) {
+        return this;
+      }
+
+      @Override
+      public Map<String, String> getTags() {
+        return new HashMap<>();
+      }
+    };
+
+    FieldPlan plan = profiler.getPlan("s");
+    ProfileState[] states = plan.newStates();
+    ProfileMetrics profileMetrics = new ProfileMetrics(plan);
+    for (int i = 0; i < 1000; i++) {
+      profileMetrics.update(i % 4 == 0 ? null : "v" + i % 10, states);
+    }
+    profileMetrics.emit(metrics, states, 5);
+    Assert.assertEquals(1000L, (long) counts.get("profile.s.records"));
+    Assert.assertEquals(750L, (long) counts.get("profile.s.values"));
+    Assert.assertEquals(5L, (long) counts.get("profile.s.result.nanos"));
+    Assert.assertTrue(counts.get("profile.s.categorical.nanos") > 0);
+    Assert.assertTrue(counts.get("profile.s.state.bytes") > 0);
+
+    plan = profiler.getPlan("d");
+    states = plan.newStates();
+    profileMetrics = new ProfileMetrics(plan);
+    ColumnBlock batch = plan.newBatch();
+    for (int i = 0; i < 1000; i++) {
+      batch.add(i % 5 == 0 ? null : (double) i);
+    }
+    profileMetrics.replay(batch, states);
+    profileMetrics.emit(metrics, states, 0);
+    Assert.assertEquals(1000L, (long) counts.get("profile.d.records"));
+    Assert.assertEquals(800L, (long) counts.get("profile.d.values"));
+    Assert.assertTrue(counts.get("profile.d.quantitative.nanos") > 0);
+    long size = 0;
+    for (ProfileState state : states) {
+      size += state.estimateSize();
+    }
+    Assert.assertEquals(size, (long) counts.get("profile.d.state.bytes"));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for SparkDataProfiler.
+ */
+public class SparkDataProfilerTest {
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testSparkPartitions() throws Exception {
+    SparkDataProfiler.Conf conf = new SparkDataProfiler.Conf();
+    DefaultProfiler profiler = DataProfiler.createProfiler(conf, schema);
+    SparkDataProfiler.ProfilePartition profile = new SparkDataProfiler.ProfilePartition(conf, schema, 0L);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(profile);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      profile = (SparkDataProfiler.ProfilePartition) in.readObject();
+    }
+    SparkDataProfiler.MergePartitions merge = new SparkDataProfiler.MergePartitions();
+    // Three partitions, the last one without records.
+    PartialProfile[] partials = new PartialProfile[3];
+    for (int i = 0; i < 1000; i++) {
+      StructuredRecord record = StructuredRecord.builder(schema)
+        .set("s", i % 3 == 0 ? null : "v" + i % 7).set("i", i).set("b", i % 4 == 0).build();
+      for (Schema.Field field : schema.getFields()) {
+        profiler.update(field.getName(), record.get(field.getName()));
+      }
+      partials[i % 2] = profile.call(partials[i % 2], record);
+    }
+    Assert.assertNull(merge.call(null, partials[2]));
+    PartialProfile merged = merge.call(merge.call(partials[2], partials[0]), merge.call(partials[1], null));
+
+    Assert.assertEquals(schema.getFields().size(), merged.size());
+    StructuredRecord expected = profiler.result("s").get("categorical");
+    StructuredRecord s = profiler.result("s", merged.getStates(0)).get("categorical");
+    Assert.assertEquals(334L, (long) s.get("nulls"));
+    Assert.assertEquals(expected.<Long>get("non_nulls"), s.<Long>get("non_nulls"));
+    Assert.assertEquals(expected.<Double>get("mean"), s.<Double>get("mean"), 0.000001d);
+    StructuredRecord i = profiler.result("i", merged.getStates(1)).get("quantitative");
+    Assert.assertEquals(499.5d, (double) i.get("mean"), 0.000001d);
+    StructuredRecord b = profiler.result("b", merged.getStates(5)).get("logical");
+    Assert.assertEquals(250L, (long) b.get("positive"));
+    Assert.assertEquals(750L, (long) b.get("negative"));
+  }
+
+  @Test
+  public void testSparkFieldShuffle() throws Exception {
+    SparkDataProfiler.BatchConf conf = new SparkDataProfiler.BatchConf();
+    SparkDataProfiler.ProjectPartition project = new SparkDataProfiler.ProjectPartition(conf, schema);
+    List<StructuredRecord> records = new ArrayList<>();
+    Random random = new Random(17);
+    for (int i = 0; i < 10000; i++) {
+      records.add(StructuredRecord.builder(schema)
+                    .set("s", i % 7 == 0 ? null : "v" + random.nextInt(1000)).set("i", random.nextInt(100))
+                    .set("l", random.nextLong()).set("f", random.nextFloat()).set("d", random.nextGaussian())
+                    .set("b", i % 5 == 0 ? null : random.nextBoolean()).build());
+    }
+    // Every partition takes the values of every field out in chunks, shuffled under the position of the field.
+    Map<Integer, List<FieldValues>> shuffled = new HashMap<>();
+    for (List<StructuredRecord> partition : Arrays.asList(records.subList(0, 7000), records.subList(7000, 10000))) {
+      Iterator<Tuple2<Integer, FieldValues>> pairs = project.call(0, partition.iterator());
+      while (pairs.hasNext()) {
+        Tuple2<Integer, FieldValues> pair = pairs.next();
+        if (!shuffled.containsKey(pair._1())) {
+          shuffled.put(pair._1(), new ArrayList<FieldValues>());
+        }
+        shuffled.get(pair._1()).add(roundTrip(pair._2()));
+      }
+    }
+    Assert.assertEquals(schema.getFields().size(), shuffled.size());
+    Assert.assertEquals(3, shuffled.get(0).size());
+
+    DefaultProfiler profiler = DataProfiler.createProfiler(conf, schema);
+    SparkDataProfiler.MergeValues merge = new SparkDataProfiler.MergeValues();
+    SparkDataProfiler.FieldResult result = new SparkDataProfiler.FieldResult(conf, schema, 0L);
+    for (Map.Entry<Integer, List<FieldValues>> field : shuffled.entrySet()) {
+      FieldValues values = new SparkDataProfiler.KeepValues().call(field.getValue().get(0));
+      for (FieldValues other : field.getValue().subList(1, field.getValue().size())) {
+        values = merge.call(values, other);
+      }
+      String name = values.getName();
+      profiler.reset();
+      for (StructuredRecord record : records) {
+        profiler.update(name, record.get(name));
+      }
+      Assert.assertEquals(profiler.result(name), result.call(new Tuple2<>(field.getKey(), values)));
+    }
+  }
+
+  private static FieldValues roundTrip(FieldValues values) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(values);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      return (FieldValues) in.readObject();
+    }
+  }
+}
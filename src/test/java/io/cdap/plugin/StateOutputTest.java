@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Histogram;
+import io.cdap.plugin.profiles.Logical;
+import io.cdap.plugin.profiles.Quantitative;
+import io.cdap.plugin.profiles.TopK;
+import io.cdap.plugin.profiles.Uniques;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for StateOutput and StateInput.
+ */
+public class StateOutputTest {
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testStateCodec() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Logical());
+    profiles.add(new Quantitative());
+    profiles.add(new Uniques());
+    profiles.add(new Histogram());
+    profiles.add(new TopK());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    Random random = new Random(11);
+    // Few values keep the sketches sparse and the histograms seeding, many values don't.
+    for (int n : new int[] {20, 20000}) {
+      for (String name : new String[] {"s", "l", "d", "b"}) {
+        ProfileState[] first = profiler.newStates(name);
+        ProfileState[] second = profiler.newStates(name);
+        for (int i = 0; i < n; i++) {
+          Object value;
+          if (name.equals("s")) {
+            value = i % 7 == 0 ? null : "v" + random.nextInt(n);
+          } else if (name.equals("l")) {
+            value = (long) random.nextInt(n) - n / 2;
+          } else if (name.equals("d")) {
+            value = random.nextGaussian();
+          } else {
+            value = random.nextBoolean();
+          }
+          ProfileState[] states = i % 3 == 0 ? first : second;
+          for (ProfileState state : states) {
+            state.update(value);
+          }
+        }
+        ProfileState[] copies = profiler.newStates(name);
+        ProfileState[] decoded = profiler.newStates(name);
+        for (int i = 0; i < first.length; i++) {
+          copies[i].merge(first[i].serialize());
+          decoded[i].merge(first[i].serialize());
+          decoded[i].merge(second[i].serialize());
+          first[i].merge(second[i]);
+        }
+        Assert.assertEquals(profiler.result(name, first), profiler.result(name, decoded));
+        Assert.assertNotEquals(profiler.result(name, first), profiler.result(name, copies));
+      }
+    }
+  }
+}
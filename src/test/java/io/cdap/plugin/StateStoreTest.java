@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Quantitative;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for StateStore.
+ */
+public class StateStoreTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testStateStore() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    String path = temporaryFolder.newFolder("state").toURI().toString();
+
+    // Each run profiles ten new values, the second run fails and the third one sees the states of the first.
+    for (long run = 1; run <= 3; run++) {
+      StateStore store = new StateStore(path, run);
+      ProfileState[] states = profiler.newStates("d");
+      for (int i = 0; i < 10; i++) {
+        states[0].update((double) i);
+      }
+      store.merge("d", states);
+      StructuredRecord d = profiler.result("d", states).get("quantitative");
+      Assert.assertEquals(run == 3 ? 90d : run * 45d, (double) d.get("total"), 0.000001d);
+      if (run == 2) {
+        store.abort();
+      } else {
+        store.commit();
+      }
+    }
+    ProfileState[] states = profiler.newStates("d");
+    Assert.assertTrue(new StateStore(path, 4).load("d", states));
+    Assert.assertEquals(90d, (double) profiler.result("d", states).<StructuredRecord>get("quantitative").get("total"),
+                        0.000001d);
+    Assert.assertFalse(new StateStore(path, 4).load("s", profiler.newStates("s")));
+
+    // The paths of the leaves of nested fields are encoded into valid file names.
+    String leaf = "m{}.a[]#size";
+    StateStore store = new StateStore(path, 5);
+    states = profiler.newStates("d");
+    states[0].update(1d);
+    store.merge(leaf, states);
+    store.commit();
+    states = profiler.newStates("d");
+    Assert.assertTrue(new StateStore(path, 6).load(leaf, states));
+    Assert.assertEquals(1d, (double) profiler.result("d", states).<StructuredRecord>get("quantitative").get("total"),
+                        0.000001d);
+  }
+
+  @Test
+  public void testStateStoreProfilesChanged() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    String path = temporaryFolder.newFolder("state").toURI().toString();
+
+    // A field of strings turned into a field of doubles keeps the number of its states, but not its profiles.
+    ProfileState[] strings = profiler.newStates("s");
+    strings[0].update("abc");
+    StateStore store = new StateStore(path, 1);
+    store.merge("v", strings);
+    store.commit();
+    ProfileState[] doubles = profiler.newStates("d");
+    Assert.assertEquals(strings.length, doubles.length);
+    try {
+      new StateStore(path, 2).load("v", doubles);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    Assert.assertTrue(new StateStore(path, 2).load("v", profiler.newStates("s")));
+  }
+}
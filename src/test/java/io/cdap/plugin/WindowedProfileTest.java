@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.profiles.Categorical;
+import io.cdap.plugin.profiles.Quantitative;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for WindowedProfile.
+ */
+public class WindowedProfileTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Schema schema = Schema.recordOf(
+    "data",
+    Schema.Field.of("s", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("i", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("l", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
+    Schema.Field.of("f", Schema.nullableOf(Schema.of(Schema.Type.FLOAT))),
+    Schema.Field.of("d", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("b", Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
+
+  @Test
+  public void testWindowedProfile() throws Exception {
+    List<Profile> profiles = new ArrayList<>();
+    profiles.add(new Categorical());
+    profiles.add(new Quantitative());
+    DefaultProfiler profiler = new DefaultProfiler(profiles, schema);
+    // Windows of 30 seconds sliding every 10 seconds, and tumbling windows of 10 seconds.
+    WindowedProfile sliding = new WindowedProfile(profiler, 30000, 10000);
+    WindowedProfile tumbling = new WindowedProfile(profiler, 10000, 10000);
+    List<WindowedProfile.Window> slidingWindows = new ArrayList<>();
+    List<WindowedProfile.Window> tumblingWindows = new ArrayList<>();
+    // Micro-batches every 5 seconds, with one record per second, and no records between 40 and 60 seconds.
+    for (long time = 0; time < 100000; time += 5000) {
+      PartialProfile sliced = null;
+      PartialProfile tumbled = null;
+      if (time < 40000 || time >= 60000) {
+        sliced = profiler.newPartialProfile(false);
+        tumbled = profiler.newPartialProfile(false);
+        for (long second = time / 1000; second < time / 1000 + 5; second++) {
+          StructuredRecord record = StructuredRecord.builder(schema).set("i", (int) second).build();
+          sliced.update(record);
+          tumbled.update(record);
+        }
+      }
+      slidingWindows.addAll(sliding.add(time, sliced));
+      tumblingWindows.addAll(tumbling.add(time, tumbled));
+    }
+
+    // Tumbling windows, without the empty windows and the window still open.
+    Assert.assertEquals(7, tumblingWindows.size());
+    long[] starts = {0, 10000, 20000, 30000, 60000, 70000, 80000};
+    for (int i = 0; i < starts.length; i++) {
+      WindowedProfile.Window window = tumblingWindows.get(i);
+      Assert.assertEquals(starts[i], window.getStart());
+      Assert.assertEquals(starts[i] + 10000, window.getEnd());
+      StructuredRecord result = profiler.result("i", window.getProfile().getStates(1)).get("quantitative");
+      Assert.assertEquals(starts[i] / 1000 + 4.5d, (double) result.get("mean"), 0.000001d);
+      Assert.assertEquals(starts[i] / 1000d, (double) result.get("minimum"), 0d);
+    }
+
+    // Sliding windows ending every 10 seconds from 10 to 90 seconds, all of them spanning some records.
+    List<Long> ends = new ArrayList<>();
+    for (WindowedProfile.Window window : slidingWindows) {
+      ends.add(window.getEnd());
+      Assert.assertEquals(window.getEnd() - 30000, window.getStart());
+      long first = Math.max(window.getStart(), 0) / 1000;
+      long total = 0;
+      for (long second = first; second < window.getEnd() / 1000; second++) {
+        total += second < 40 || second >= 60 ? second : 0;
+      }
+      StructuredRecord result = profiler.result("i", window.getProfile().getStates(1)).get("quantitative");
+      Assert.assertEquals(total, (double) result.get("total"), 0d);
+    }
+    Assert.assertEquals(Arrays.asList(10000L, 20000L, 30000L, 40000L, 50000L, 60000L, 70000L, 80000L, 90000L), ends);
+  }
+
+  @Test
+  public void testWindowedProfileRestart() throws Exception {
+    DefaultProfiler profiler = new DefaultProfiler(Arrays.<Profile>asList(new Categorical(), new Quantitative()),
+                                                   schema);
+    String panes = temporaryFolder.newFolder().getPath() + "/panes";
+    WindowedProfile expected = new WindowedProfile(profiler, 30000, 10000);
+    WindowedProfile restarted = new WindowedProfile(profiler, 30000, 10000);
+    Assert.assertFalse(restarted.load(panes));
+    List<WindowedProfile.Window> expectedWindows = new ArrayList<>();
+    List<WindowedProfile.Window> restartedWindows = new ArrayList<>();
+    // Records until 40 seconds, then micro-batches without records, which still close the windows.
+    for (long time = 0; time < 80000; time += 5000) {
+      PartialProfile batch = null;
+      PartialProfile copy = null;
+      if (time < 40000) {
+        batch = profiler.newPartialProfile(false);
+        copy = profiler.newPartialProfile(false);
+        for (long second = time / 1000; second < time / 1000 + 5; second++) {
+          StructuredRecord record = StructuredRecord.builder(schema).set("i", (int) second).build();
+          batch.update(record);
+          copy.update(record);
+        }
+      }
+      expectedWindows.addAll(expected.add(time, batch));
+      restartedWindows.addAll(restarted.add(time, copy));
+      restarted.save(panes);
+      // The driver restarts after 25 seconds, in the middle of the windows, and loads the saved panes.
+      if (time == 25000) {
+        restarted = new WindowedProfile(profiler, 30000, 10000);
+        Assert.assertTrue(restarted.load(panes));
+      }
+    }
+
+    // The last window spanning records ends at 60 seconds, and is closed by a micro-batch without records.
+    Assert.assertEquals(6, expectedWindows.size());
+    Assert.assertEquals(60000L, expectedWindows.get(5).getEnd());
+    Assert.assertEquals(expectedWindows.size(), restartedWindows.size());
+    for (int i = 0; i < expectedWindows.size(); i++) {
+      WindowedProfile.Window window = restartedWindows.get(i);
+      Assert.assertEquals(expectedWindows.get(i).getStart(), window.getStart());
+      Assert.assertEquals(expectedWindows.get(i).getEnd(), window.getEnd());
+      Assert.assertEquals(profiler.result("i", expectedWindows.get(i).getProfile().getStates(1)),
+                          profiler.result("i", window.getProfile().getStates(1)));
+      // The null field of the loaded panes is still only counted.
+      for (ProfileState state : window.getProfile().getStates(0)) {
+        Assert.assertFalse(((LazyState) state).isPromoted());
+      }
+    }
+
+    // Panes saved for windows of another width are not loaded.
+    try {
+      new WindowedProfile(profiler, 20000, 10000).load(panes);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+}
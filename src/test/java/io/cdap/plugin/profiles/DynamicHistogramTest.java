@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for DynamicHistogram.
+ */
+public class DynamicHistogramTest {
+
+  @Test
+  public void testDynamicHistogramRepartition() throws Exception {
+    Random random = new Random(3);
+    DynamicHistogram histogram = new DynamicHistogram(10, 5, 10);
+    for (int i = 0; i < 100000; i++) {
+      histogram.addDataPoint(i % 2 == 0 ? random.nextGaussian() : i);
+    }
+    DynamicHistogram.Bucket[] buckets = histogram.getHistogram();
+    Assert.assertEquals(11, buckets.length);
+    for (int i = 1; i < buckets.length; i++) {
+      Assert.assertTrue(buckets[i - 1].getHigh() <= buckets[i].getHigh());
+    }
+    Assert.assertEquals(0, histogram.findBucketIndex(Double.NEGATIVE_INFINITY));
+    Assert.assertEquals(9, histogram.findBucketIndex(Double.POSITIVE_INFINITY));
+  }
+
+  @Test
+  public void testDynamicHistogramMerge() throws Exception {
+    DynamicHistogram first = new DynamicHistogram(10, 5, 1000);
+    DynamicHistogram second = new DynamicHistogram(10, 5, 1000);
+    for (int i = 0; i < 1000; i++) {
+      first.addDataPoint(i / 100d);
+      second.addDataPoint(10 + i / 100d);
+    }
+    first.merge(second);
+    DynamicHistogram.Bucket[] buckets = first.getHistogram();
+    Assert.assertEquals(0d, buckets[0].getHigh(), 0.000001d);
+    Assert.assertEquals(19.99d, buckets[buckets.length - 1].getHigh(), 0.000001d);
+  }
+}
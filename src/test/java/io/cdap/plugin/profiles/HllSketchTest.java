@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import io.cdap.plugin.StateInput;
+import io.cdap.plugin.StateOutput;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Tests for HllSketch.
+ */
+public class HllSketchTest {
+
+  @Test
+  public void testHllSketch() throws Exception {
+    HllSketch small = new HllSketch(HllSketch.DEFAULT_PRECISION);
+    for (int i = 0; i < 1000; i++) {
+      small.update("value-" + (i % 100));
+    }
+    Assert.assertEquals(100, small.cardinality());
+
+    HllSketch first = new HllSketch(HllSketch.DEFAULT_PRECISION);
+    HllSketch second = new HllSketch(HllSketch.DEFAULT_PRECISION);
+    for (long i = 0; i < 1000000; i++) {
+      if (i % 2 == 0) {
+        first.update(i);
+      } else {
+        second.update(i);
+        second.update((double) i);
+      }
+    }
+    first.merge(second);
+    first.merge(small);
+    Assert.assertEquals(1500100d, first.cardinality(), 1500100d * 0.05);
+  }
+
+  @Test
+  public void testOffHeapHllSketch() throws Exception {
+    Slab slab = new Slab(1 << 16);
+    HllSketch heap = new HllSketch(HllSketch.DEFAULT_PRECISION);
+    HllSketch offHeap = new HllSketch(HllSketch.DEFAULT_PRECISION, slab);
+    for (long i = 0; i < 100000; i++) {
+      heap.update(i);
+      offHeap.update(i);
+    }
+    Assert.assertEquals(heap.cardinality(), offHeap.cardinality());
+    Assert.assertEquals(1L << HllSketch.DEFAULT_PRECISION, slab.getAllocated());
+
+    // Serialized registers are read back in the heap.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(offHeap);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      Assert.assertEquals(heap.cardinality(), ((HllSketch) in.readObject()).cardinality());
+    }
+
+    // Released registers are zeroed and reused by the next sketch.
+    offHeap.release();
+    Assert.assertEquals(0L, slab.getAllocated());
+    HllSketch reused = new HllSketch(HllSketch.DEFAULT_PRECISION, slab);
+    reused.merge(heap);
+    Assert.assertEquals(heap.cardinality(), reused.cardinality());
+    for (long i = 0; i < 10000; i++) {
+      offHeap.update(i);
+    }
+    Assert.assertEquals(2L << HllSketch.DEFAULT_PRECISION, slab.getAllocated());
+    Assert.assertEquals(10000d, offHeap.cardinality(), 10000d * 0.05);
+    Assert.assertEquals(heap.cardinality(), reused.cardinality());
+  }
+
+  @Test
+  public void testShrink() throws Exception {
+    // A sketch folded to a lower precision has the registers of a sketch built at that precision.
+    Slab slab = new Slab(1 << 16);
+    HllSketch folded = new HllSketch(12, slab);
+    HllSketch low = new HllSketch(10);
+    for (long i = 0; i < 100000; i++) {
+      folded.update(i);
+      low.update(i);
+    }
+    Assert.assertTrue(folded.shrink());
+    Assert.assertTrue(folded.shrink());
+    Assert.assertEquals(10, folded.getPrecision());
+    Assert.assertEquals(1 << 10, slab.getAllocated());
+    Assert.assertEquals(low.cardinality(), folded.cardinality());
+    // Sketches of different precisions are merged at the lowest one, from objects or their binary form.
+    HllSketch high = new HllSketch(14);
+    for (long i = 50000; i < 150000; i++) {
+      high.update(i);
+    }
+    StateOutput out = new StateOutput();
+    high.write(out);
+    low.merge(new StateInput(out.toByteBuffer()));
+    high.merge(folded);
+    Assert.assertEquals(10, high.getPrecision());
+    Assert.assertEquals(low.cardinality(), high.cardinality());
+    Assert.assertEquals(150000d, low.cardinality(), 150000d * 0.1);
+    HllSketch sparse = new HllSketch(HllSketch.MIN_PRECISION);
+    sparse.update(1L);
+    Assert.assertFalse(sparse.shrink());
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for Moments.
+ */
+public class MomentsTest {
+
+  @Test
+  public void testMomentsMerge() throws Exception {
+    Random random = new Random(11);
+    DescriptiveStatistics expected = new DescriptiveStatistics();
+    Moments first = new Moments();
+    Moments second = new Moments();
+    for (int i = 0; i < 10000; i++) {
+      double value = 100 + random.nextGaussian() * 10 + random.nextDouble() * random.nextDouble() * 50;
+      expected.addValue(value);
+      if (i < 3000) {
+        first.update(value);
+      } else {
+        second.update(value);
+      }
+    }
+    first.merge(second);
+    Assert.assertEquals(expected.getN(), first.getN());
+    Assert.assertEquals(expected.getMin(), first.getMin(), 0d);
+    Assert.assertEquals(expected.getMax(), first.getMax(), 0d);
+    Assert.assertEquals(expected.getSum(), first.getSum(), 0.000001d);
+    Assert.assertEquals(expected.getMean(), first.getMean(), 0.000001d);
+    Assert.assertEquals(expected.getStandardDeviation(), first.getStandardDeviation(), 0.000001d);
+    Assert.assertEquals(expected.getPopulationVariance(), first.getPopulationVariance(), 0.000001d);
+    Assert.assertEquals(expected.getSkewness(), first.getSkewness(), 0.000001d);
+    Assert.assertEquals(expected.getKurtosis(), first.getKurtosis(), 0.000001d);
+    Assert.assertEquals(expected.getGeometricMean(), first.getGeometricMean(), 0.000001d);
+    Assert.assertEquals(expected.getQuadraticMean(), first.getQuadraticMean(), 0.000001d);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for QuantileSketch.
+ */
+public class QuantileSketchTest {
+
+  @Test
+  public void testQuantileSketch() throws Exception {
+    QuantileSketch exact = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    for (int i = 1; i <= 100; i++) {
+      exact.update(i);
+    }
+    Assert.assertEquals(50.5d, exact.getPercentile(50), 0.000001d);
+    Assert.assertEquals(99.99d, exact.getPercentile(99), 0.000001d);
+
+    Random random = new Random(7);
+    QuantileSketch first = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    QuantileSketch second = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    for (int i = 0; i < 100000; i++) {
+      double value = random.nextDouble();
+      if (i % 3 == 0) {
+        first.update(value);
+      } else {
+        second.update(value);
+      }
+    }
+    first.merge(second);
+    Assert.assertEquals(100000, first.getCount());
+    Assert.assertEquals(0.5d, first.getPercentile(50), 0.02d);
+    Assert.assertEquals(0.95d, first.getPercentile(95), 0.02d);
+    Assert.assertEquals(0.99d, first.getPercentile(99), 0.02d);
+
+    // Repeated values weigh a value per bit of their number of repetitions.
+    QuantileSketch weighted = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    weighted.update(1d, 1000000000L);
+    weighted.update(2d, 3000000000L);
+    weighted.merge(first);
+    Assert.assertEquals(4000100000L, weighted.getCount());
+    Assert.assertEquals(1d, weighted.getPercentile(20), 0.000001d);
+    Assert.assertEquals(2d, weighted.getPercentile(30), 0.000001d);
+    Assert.assertEquals(2d, weighted.getPercentile(99), 0.000001d);
+  }
+
+  @Test
+  public void testShrink() throws Exception {
+    Random random = new Random(13);
+    QuantileSketch quantiles = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    QuantileSketch other = new QuantileSketch(QuantileSketch.DEFAULT_K);
+    for (int i = 0; i < 100000; i++) {
+      (i % 2 == 0 ? quantiles : other).update(random.nextDouble());
+    }
+    long size = quantiles.estimateSize();
+    Assert.assertTrue(quantiles.shrink());
+    Assert.assertEquals(QuantileSketch.DEFAULT_K / 2, quantiles.getK());
+    Assert.assertTrue(quantiles.estimateSize() < size);
+    quantiles.merge(other);
+    Assert.assertEquals(QuantileSketch.DEFAULT_K / 2, quantiles.getK());
+    Assert.assertEquals(100000, quantiles.getCount());
+    Assert.assertEquals(0.5d, quantiles.getPercentile(50), 0.04d);
+    while (quantiles.shrink()) {
+      Assert.assertEquals(100000, quantiles.getCount());
+    }
+    Assert.assertEquals(QuantileSketch.MIN_K, quantiles.getK());
+  }
+}
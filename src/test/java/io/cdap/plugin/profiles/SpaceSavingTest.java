@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2018-2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.profiles;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for SpaceSaving.
+ */
+public class SpaceSavingTest {
+
+  @Test
+  public void testSpaceSaving() throws Exception {
+    Random random = new Random(5);
+    Map<Long, Long> counts = new HashMap<>();
+    SpaceSaving first = new SpaceSaving(100);
+    SpaceSaving second = new SpaceSaving(100);
+    int n = 200000;
+    for (int i = 0; i < n; i++) {
+      // Skewed values, where value v is about twice as frequent as value v + 1.
+      long value = Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE) * 1000L + random.nextInt(3);
+      Long count = counts.get(value);
+      counts.put(value, count == null ? 1L : count + 1);
+      (i % 2 == 0 ? first : second).update(value);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(second);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      second = (SpaceSaving) in.readObject();
+    }
+    first.merge(second);
+
+    Assert.assertEquals(n, first.getTotal());
+    List<SpaceSaving.Item> items = first.top(5);
+    Assert.assertEquals(5, items.size());
+    long previous = Long.MAX_VALUE;
+    for (SpaceSaving.Item item : items) {
+      long count = counts.get((Long) item.getValue());
+      Assert.assertTrue(item.getCount() <= previous);
+      Assert.assertTrue(item.getCount() >= count && item.getCount() - item.getError() <= count);
+      Assert.assertTrue(item.getError() <= n / 100);
+      previous = item.getCount();
+    }
+    Assert.assertTrue(items.get(0).getValue().equals(0L) || items.get(0).getValue().equals(1L)
+                        || items.get(0).getValue().equals(2L));
+
+    // Repeated values are counted at once, past the counters of lower counts.
+    SpaceSaving weighted = new SpaceSaving(2);
+    weighted.update("a");
+    weighted.update("b", 5);
+    weighted.update("a", 10);
+    weighted.update("c", 3);
+    Assert.assertEquals(19, weighted.getTotal());
+    items = weighted.top(2);
+    Assert.assertEquals("a", items.get(0).getValue());
+    Assert.assertEquals(11L, items.get(0).getCount());
+    Assert.assertEquals("c", items.get(1).getValue());
+    Assert.assertEquals(8L, items.get(1).getCount());
+    Assert.assertEquals(5L, items.get(1).getError());
+  }
+
+  @Test
+  public void testShrink() throws Exception {
+    // A shrunk summary keeps the most frequent values, and merges with others at its number of counters.
+    SpaceSaving summary = new SpaceSaving(100);
+    for (int i = 0; i < 100; i++) {
+      summary.update((long) i, i + 1);
+    }
+    Assert.assertTrue(summary.shrink(10));
+    Assert.assertEquals(50, summary.getCapacity());
+    Assert.assertEquals(99L, summary.top(1).get(0).getValue());
+    Assert.assertEquals(50, summary.top(100).size());
+    SpaceSaving wide = new SpaceSaving(100);
+    wide.update("a", 1000);
+    summary.merge(wide);
+    Assert.assertEquals(50, summary.getCapacity());
+    Assert.assertEquals("a", summary.top(1).get(0).getValue());
+    Assert.assertTrue(summary.shrink(10));
+    Assert.assertTrue(summary.shrink(10));
+    Assert.assertEquals(12, summary.getCapacity());
+    Assert.assertTrue(summary.shrink(10));
+    Assert.assertFalse(summary.shrink(10));
+    Assert.assertEquals(10, summary.top(100).size());
+  }
+}